@@ -0,0 +1,116 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.MapPatch;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileHashHandler;
+
+public class MapPatchTest {
+	private static final int SIZE = 40;
+
+	/**
+	 * Creates a patch between two versions of a map file and applies it to a third file equal to
+	 * the old version. A truncated patch must leave the target unchanged, the complete one must
+	 * turn it into the new version. Both ways of finding the modified tiles are tested: with the
+	 * hash trees stored in the files and without.
+	 * 
+	 * @param args
+	 * @throws IOException
+	 */
+	public static void main(String[] args) throws IOException {
+		for (int factor : new int[] { 4, 0 }) {
+			final PCTilePersistenceManager oldMap = createMap("/tmp/test-patch-old.map", factor);
+			final PCTilePersistenceManager newMap = createMap("/tmp/test-patch-new.map", factor);
+			final PCTilePersistenceManager target = createMap("/tmp/test-patch-target.map", factor);
+			final byte interval = (byte) (oldMap.getMetaData().getAmountOfZoomIntervals() - 1);
+
+			// 10 changed, 5 deleted and 5 added tiles
+			for (int i = 0; i < 10; i++) {
+				newMap.insertOrUpdateTile(("changed " + i).getBytes(), i * 3, i, interval);
+			}
+			for (int i = 0; i < 5; i++) {
+				newMap.deleteTile(i, SIZE - 1, interval);
+				newMap.insertOrUpdateTile(("added " + i).getBytes(), SIZE + i, 0, interval);
+			}
+			MapFileMetaData metaData = newMap.getMetaData();
+			metaData.setComment("week 2");
+			newMap.setMetaData(metaData);
+
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			check(MapPatch.create(oldMap, newMap, out) == 20, factor + ": records");
+			final byte[] patch = out.toByteArray();
+
+			// Nothing is changed by a patch that ends early
+			try {
+				MapPatch.apply(target, new ByteArrayInputStream(Arrays.copyOf(patch, patch.length / 2)));
+				check(false, factor + ": truncated patch applied");
+			} catch (IOException e) {
+				// expected
+			}
+			check(hashes(target, interval).equals(hashes(oldMap, interval)), factor + ": tiles after failure");
+			check(!"week 2".equals(target.getMetaData().getComment()), factor + ": metadata after failure");
+			check(factor == 0 || target.getHashTreeRoot(interval) == oldMap.getHashTreeRoot(interval),
+					factor + ": root after failure");
+
+			check(MapPatch.apply(target, new ByteArrayInputStream(patch)) == 20, factor + ": applied records");
+			check(hashes(target, interval).equals(hashes(newMap, interval)), factor + ": tiles after applying");
+			check("week 2".equals(target.getMetaData().getComment()), factor + ": metadata after applying");
+			check(factor == 0 || target.getHashTreeRoot(interval) == newMap.getHashTreeRoot(interval),
+					factor + ": root after applying");
+			check(Arrays.equals(target.getTileData(SIZE + 2, 0, interval), "added 2".getBytes()), factor + ": added");
+			check(target.getTileData(2, SIZE - 1, interval) == null, factor + ": deleted");
+			oldMap.close();
+			newMap.close();
+			target.close();
+
+			final PCTilePersistenceManager reopened = new PCTilePersistenceManager("/tmp/test-patch-target.map");
+			check(Arrays.equals(reopened.getTileData(9, 3, interval), "changed 3".getBytes()), factor + ": reopened");
+			check("week 2".equals(reopened.getMetaData().getComment()), factor + ": reopened metadata");
+			reopened.close();
+
+			System.out.println("Hash tree factor " + factor + ": OK");
+		}
+
+		System.out.println("Done.");
+	}
+
+	private static PCTilePersistenceManager createMap(String file, int factor) {
+		new File(file).delete();
+		MapFileMetaData mfm = MapFileMetaData.createInstanceWithDefaultValues();
+		mfm.setHashTreeFactor(factor);
+		PCTilePersistenceManager tpm = new PCTilePersistenceManager(file, mfm);
+		final byte interval = (byte) (mfm.getAmountOfZoomIntervals() - 1);
+		for (int x = 0; x < SIZE; x++) {
+			for (int y = 0; y < SIZE; y++) {
+				tpm.insertOrUpdateTile(("tile " + x + "," + y).getBytes(), x, y, interval);
+			}
+		}
+		return tpm;
+	}
+
+	/**
+	 * @return The hashes of all tiles of the zoom interval by id.
+	 */
+	private static Map<Long, Long> hashes(PCTilePersistenceManager tpm, byte interval) {
+		final Map<Long, Long> hashes = new HashMap<Long, Long>();
+		tpm.getTileHashes(interval, new TileHashHandler() {
+			@Override
+			public void handleTileHash(long id, int xPos, int yPos, long hash) {
+				hashes.put(Long.valueOf(id), Long.valueOf(hash));
+			}
+		});
+		return hashes;
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,121 @@
+import java.io.File;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileCodec;
+import org.mapsforge.storage.tile.TileDataContainer;
+
+public class TileCodecTest {
+	private static final int SIZE = 12;
+
+	/**
+	 * Writes a map file with each tile codec, switches to another codec half way and checks that
+	 * all tiles read back unchanged after reopening.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		for (TileCodec codec : TileCodec.values()) {
+			final String file = "/tmp/test-" + codec.name().toLowerCase() + ".map";
+			new File(file).delete();
+
+			MapFileMetaData mfm = MapFileMetaData.createInstanceWithDefaultValues();
+			mfm.setTileCodec(codec);
+			PCTilePersistenceManager tpm = new PCTilePersistenceManager(file, mfm);
+			final byte interval = (byte) (tpm.getMetaData().getAmountOfZoomIntervals() - 1);
+			for (int x = 0; x < SIZE; x++) {
+				for (int y = 0; y < SIZE; y++) {
+					tpm.insertOrUpdateTile(tileData(x, y, 0), x, y, interval);
+				}
+			}
+			if (codec == TileCodec.DEFLATE_DICTIONARY) {
+				check(tpm.trainCompressionDictionary(interval, SIZE * SIZE, 4096), codec + ": dictionary");
+				for (int x = 0; x < SIZE; x++) {
+					tpm.insertOrUpdateTile(tileData(x, 0, 1), x, 0, interval);
+				}
+			}
+			tpm.close();
+
+			tpm = new PCTilePersistenceManager(file);
+			check(tpm.getMetaData().getTileCodec() == codec, codec + ": codec after reopening");
+			final int firstRowVersion = codec == TileCodec.DEFLATE_DICTIONARY ? 1 : 0;
+			checkTiles(tpm, interval, firstRowVersion, false, codec.name());
+
+			// Tiles written with the previous codec stay readable
+			MapFileMetaData metaData = tpm.getMetaData();
+			metaData.setTileCodec(codec == TileCodec.DEFLATE ? TileCodec.NONE : TileCodec.DEFLATE);
+			tpm.setMetaData(metaData);
+			for (int y = 0; y < SIZE; y++) {
+				tpm.insertOrUpdateTile(tileData(SIZE - 1, y, 2), SIZE - 1, y, interval);
+			}
+			tpm.close();
+
+			tpm = new PCTilePersistenceManager(file);
+			checkTiles(tpm, interval, firstRowVersion, true, codec + " and " + tpm.getMetaData().getTileCodec());
+			tpm.close();
+
+			System.out.println(codec + ": OK");
+		}
+
+		System.out.println("Done.");
+	}
+
+	/**
+	 * @return Compressible data for most tiles and random bytes for every seventh.
+	 */
+	private static byte[] tileData(int x, int y, int version) {
+		if ((x + y) % 7 == 0) {
+			byte[] data = new byte[300];
+			new Random(x * 1000 + y * 10 + version).nextBytes(data);
+			return data;
+		}
+
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 40; i++) {
+			sb.append("way ").append(x).append(',').append(y).append(" version ").append(version).append(';');
+		}
+		return sb.toString().getBytes();
+	}
+
+	/**
+	 * Checks all tiles by single and multi-get.
+	 * 
+	 * @param firstRowVersion
+	 *            The version of the tiles in the first row.
+	 * @param lastColumnRewritten
+	 *            Whether the tiles of the last column have been written again as version 2.
+	 */
+	private static void checkTiles(PCTilePersistenceManager tpm, byte interval, int firstRowVersion,
+			boolean lastColumnRewritten, String name) {
+		final long[] ids = new long[SIZE * SIZE];
+		int n = 0;
+		for (int x = 0; x < SIZE; x++) {
+			for (int y = 0; y < SIZE; y++) {
+				int version = y == 0 ? firstRowVersion : 0;
+				if (lastColumnRewritten && x == SIZE - 1) {
+					version = 2;
+				}
+				final byte[] expected = tileData(x, y, version);
+				check(Arrays.equals(tpm.getTileData(x, y, interval), expected), name + ": tile " + x + "," + y);
+				ids[n++] = tpm.getMetaData().getTileIdLayout().coordinatesToId(x, y,
+						tpm.getMetaData().getBaseZoomLevels()[interval]);
+			}
+		}
+
+		int found = 0;
+		for (TileDataContainer tile : tpm.getTileData(ids, interval)) {
+			check(Arrays.equals(tile.getData(), tpm.getTileData(tile.getxPos(), tile.getyPos(), interval)),
+					name + ": multi-get " + tile.getxPos() + "," + tile.getyPos());
+			found++;
+		}
+		check(found == SIZE * SIZE, name + ": multi-get found " + found);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,89 @@
+import java.io.File;
+import java.util.Arrays;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileCodec;
+
+public class TileDeduplicationTest {
+	private static final int SIZE = 8;
+
+	/**
+	 * Writes a deduplicating map file in which many tiles share their data, replaces and deletes
+	 * some of them and checks that the remaining tiles stay readable. Replacing the metadata by a
+	 * fresh object must not turn deduplication off.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		for (TileCodec codec : new TileCodec[] { TileCodec.NONE, TileCodec.DEFLATE }) {
+			final String file = "/tmp/test-dedup-" + codec.name().toLowerCase() + ".map";
+			new File(file).delete();
+
+			MapFileMetaData mfm = MapFileMetaData.createInstanceWithDefaultValues();
+			mfm.setTileDeduplication(true);
+			mfm.setTileCodec(codec);
+			PCTilePersistenceManager tpm = new PCTilePersistenceManager(file, mfm);
+			final byte interval = (byte) (tpm.getMetaData().getAmountOfZoomIntervals() - 1);
+
+			// Only three distinct tiles, e.g. sea, land and coast
+			for (int x = 0; x < SIZE; x++) {
+				for (int y = 0; y < SIZE; y++) {
+					tpm.insertOrUpdateTile(tileData(x % 3), x, y, interval);
+				}
+			}
+			check(tpm.getTileHash(0, 0, interval) == tpm.getTileHash(3, 5, interval), codec + ": shared hash");
+
+			// Replacing or deleting one copy leaves the others untouched
+			tpm.insertOrUpdateTile(tileData(1), 0, 0, interval);
+			tpm.deleteTile(3, 0, interval);
+			tpm.deleteTiles(new long[] { id(tpm, 1, 1, interval), id(tpm, 4, 1, interval) }, interval);
+
+			tpm.setMetaData(MapFileMetaData.createInstanceWithDefaultValues());
+			check(tpm.getMetaData().isTileDeduplication(), codec + ": deduplication after setMetaData");
+			tpm.close();
+
+			tpm = new PCTilePersistenceManager(file);
+			check(tpm.getMetaData().isTileDeduplication(), codec + ": deduplication after reopening");
+			for (int x = 0; x < SIZE; x++) {
+				for (int y = 0; y < SIZE; y++) {
+					byte[] expected = tileData(x % 3);
+					if (x == 0 && y == 0) {
+						expected = tileData(1);
+					} else if ((x == 3 && y == 0) || (x == 1 && y == 1) || (x == 4 && y == 1)) {
+						expected = null;
+					}
+					check(Arrays.equals(tpm.getTileData(x, y, interval), expected), codec + ": tile " + x + "," + y);
+				}
+			}
+
+			// Writing after reopening must use the same schema
+			tpm.insertOrUpdateTile(tileData(2), 3, 0, interval);
+			check(Arrays.equals(tpm.getTileData(3, 0, interval), tileData(2)), codec + ": written after reopening");
+			tpm.close();
+
+			System.out.println(codec + ": OK");
+		}
+
+		System.out.println("Done.");
+	}
+
+	private static byte[] tileData(int kind) {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < 50; i++) {
+			sb.append("tile kind ").append(kind).append(';');
+		}
+		return sb.toString().getBytes();
+	}
+
+	private static long id(PCTilePersistenceManager tpm, int x, int y, byte interval) {
+		return tpm.getMetaData().getTileIdLayout().coordinatesToId(x, y,
+				tpm.getMetaData().getBaseZoomLevels()[interval]);
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
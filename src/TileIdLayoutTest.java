@@ -0,0 +1,71 @@
+import java.io.File;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileDataContainer;
+import org.mapsforge.storage.tile.TileDataHandler;
+import org.mapsforge.storage.tile.TileIdLayout;
+
+public class TileIdLayoutTest {
+
+	/**
+	 * Writes a map file in each tile id layout, replaces its metadata by a fresh object and checks
+	 * that the file reopens in its own layout with all tiles readable.
+	 * 
+	 * @param args
+	 */
+	public static void main(String[] args) {
+		for (TileIdLayout layout : TileIdLayout.values()) {
+			final String file = "/tmp/test-" + layout.name().toLowerCase() + ".map";
+			new File(file).delete();
+
+			MapFileMetaData mfm = MapFileMetaData.createInstanceWithDefaultValues();
+			mfm.setTileIdLayout(layout);
+			PCTilePersistenceManager tpm = new PCTilePersistenceManager(file, mfm);
+			final byte interval = (byte) (tpm.getMetaData().getAmountOfZoomIntervals() - 1);
+			for (int x = 0; x < 16; x++) {
+				for (int y = 0; y < 16; y++) {
+					tpm.insertOrUpdateTile((x + "," + y).getBytes(), x, y, interval);
+				}
+			}
+
+			// The layout is fixed by the file, a default metadata object must not change it
+			tpm.setMetaData(MapFileMetaData.createInstanceWithDefaultValues());
+			check(tpm.getMetaData().getTileIdLayout() == layout, layout + ": layout after setMetaData");
+			tpm.close();
+
+			tpm = new PCTilePersistenceManager(file);
+			check(tpm.getMetaData().getTileIdLayout() == layout, layout + ": layout after reopening");
+			for (int x = 0; x < 16; x++) {
+				for (int y = 0; y < 16; y++) {
+					byte[] data = tpm.getTileData(x, y, interval);
+					check(data != null && new String(data).equals(x + "," + y), layout + ": tile " + x + "," + y);
+				}
+			}
+
+			final int[] found = new int[1];
+			tpm.getTilesInRect(4, 6, 7, 9, interval, new TileDataHandler() {
+				@Override
+				public void handleTile(TileDataContainer tile) {
+					check(new String(tile.getData()).equals(tile.getxPos() + "," + tile.getyPos()),
+							"tile in rect " + tile.getxPos() + "," + tile.getyPos());
+					check(tile.getxPos() >= 4 && tile.getxPos() <= 7 && tile.getyPos() >= 6 && tile.getyPos() <= 9,
+							"tile outside of rect " + tile.getxPos() + "," + tile.getyPos());
+					found[0]++;
+				}
+			});
+			check(found[0] == 16, layout + ": tiles in rect " + found[0]);
+			tpm.close();
+
+			System.out.println(layout + ": OK");
+		}
+
+		System.out.println("Done.");
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
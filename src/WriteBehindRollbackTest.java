@@ -0,0 +1,108 @@
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+
+public class WriteBehindRollbackTest {
+	private static final String FILE = "/tmp/test-rollback.map";
+
+	/**
+	 * Makes a write-behind flush and a single tile write fail half way, using a trigger that
+	 * rejects inserts, and checks that neither leaves partial tiles, hash tree nodes or bounds
+	 * behind for the next commit.
+	 * 
+	 * @param args
+	 * @throws SQLException
+	 */
+	public static void main(String[] args) throws SQLException {
+		new File(FILE).delete();
+		new File(FILE + "-wal").delete();
+		new File(FILE + "-shm").delete();
+
+		// A reader pool puts the file into WAL mode, so the trigger can be changed while it is open
+		PCTilePersistenceManager tpm = new PCTilePersistenceManager(FILE, null, 1);
+		tpm.buildHashTree(4);
+		final byte interval = (byte) (tpm.getMetaData().getAmountOfZoomIntervals() - 1);
+		tpm.insertOrUpdateTile("a".getBytes(), 1, 1, interval);
+		tpm.insertOrUpdateTile("b".getBytes(), 2, 2, interval);
+		final long root = tpm.getHashTreeRoot(interval);
+		final String bounds = storedBounds(interval);
+
+		execute("CREATE TABLE fail (x INTEGER);");
+		execute("CREATE TRIGGER fail_insert BEFORE INSERT ON tiles_" + interval
+				+ " WHEN EXISTS (SELECT 1 FROM fail) BEGIN SELECT RAISE(ABORT, 'rejected'); END;");
+
+		// Both writes are pending when the insert fails
+		execute("INSERT INTO fail VALUES (1);");
+		tpm.enableWriteBehind(1000, 1 << 20, 0);
+		tpm.deleteTile(1, 1, interval);
+		tpm.insertOrUpdateTile("c".getBytes(), 10, 10, interval);
+		tpm.flush();
+		check(tpm.getTileData(10, 10, interval) == null, "tile of failed flush");
+		check(Arrays.equals(tpm.getTileData(1, 1, interval), "a".getBytes()), "deletion of failed flush");
+		check(tpm.getHashTreeRoot(interval) == root, "root after failed flush");
+
+		// The next flush must neither retry nor commit anything of the failed one
+		execute("DELETE FROM fail;");
+		tpm.insertOrUpdateTile("d".getBytes(), 3, 3, interval);
+		tpm.flush();
+		check(tpm.getTileData(10, 10, interval) == null, "failed tile retried");
+		check(Arrays.equals(tpm.getTileData(1, 1, interval), "a".getBytes()), "failed deletion retried");
+		check(storedBounds(interval).equals("1,1,3,3"), "bounds after flush " + storedBounds(interval));
+		tpm.disableWriteBehind();
+
+		// The same for a single tile write
+		execute("INSERT INTO fail VALUES (1);");
+		tpm.insertOrUpdateTile("e".getBytes(), 30, 30, interval);
+		check(tpm.getTileData(30, 30, interval) == null, "failed single write");
+		execute("DELETE FROM fail;");
+		tpm.deleteTile(3, 3, interval);
+		check(storedBounds(interval).equals(bounds), "bounds after delete " + storedBounds(interval));
+		check(tpm.getHashTreeRoot(interval) == root, "root after delete");
+
+		// The incrementally updated tree matches one built from scratch
+		tpm.buildHashTree(4);
+		check(tpm.getHashTreeRoot(interval) == root, "rebuilt root");
+		tpm.close();
+
+		System.out.println("Done.");
+	}
+
+	private static void execute(String sql) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + FILE);
+		try {
+			Statement stmt = conn.createStatement();
+			stmt.execute(sql);
+			stmt.close();
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static String storedBounds(byte interval) throws SQLException {
+		Connection conn = DriverManager.getConnection("jdbc:sqlite:" + FILE);
+		try {
+			Statement stmt = conn.createStatement();
+			ResultSet rs = stmt.executeQuery("SELECT value FROM metadata WHERE key = 'tileBounds_" + interval + "';");
+			try {
+				return rs.next() ? rs.getString(1) : null;
+			} finally {
+				rs.close();
+				stmt.close();
+			}
+		} finally {
+			conn.close();
+		}
+	}
+
+	private static void check(boolean condition, String message) {
+		if (!condition) {
+			throw new IllegalStateException(message);
+		}
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.benchmark;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mapsforge.storage.tile.BulkLoader;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileDataContainer;
+
+/**
+ * Compares building a new map database with {@link BulkLoader} to building it with
+ * {@link PCTilePersistenceManager#insertOrUpdateTiles(java.util.Collection)}.
+ */
+public class BulkLoadBenchmark {
+	private static final int GRID_SIZE = 256;
+	private static final int TILE_SIZE = 1024;
+	private static final int TILES_PER_CALL = 1000;
+	private static final int ROUNDS = 3;
+
+	private static void delete(String path) {
+		new File(path).delete();
+		new File(path + "-journal").delete();
+	}
+
+	private static ArrayList<TileDataContainer> createTiles(byte interval) {
+		Random random = new Random(42);
+		ArrayList<TileDataContainer> tiles = new ArrayList<TileDataContainer>(GRID_SIZE * GRID_SIZE);
+		for (int y = 0; y < GRID_SIZE; y++) {
+			for (int x = 0; x < GRID_SIZE; x++) {
+				byte[] data = new byte[TILE_SIZE];
+				random.nextBytes(data);
+				tiles.add(new TileDataContainer(data, TileDataContainer.TILE_TYPE_VECTOR, x, y, interval));
+			}
+		}
+		return tiles;
+	}
+
+	/**
+	 * Prints the throughput of both ways of creating a map database.
+	 * 
+	 * @param args
+	 *            Optional directory for the database files.
+	 * @throws Exception
+	 *             if the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		final String dir = args.length > 0 ? args[0] : "/tmp";
+		final String path = dir + "/BulkLoadBenchmark.map";
+		final ArrayList<TileDataContainer> tiles = createTiles((byte) 1);
+
+		// Only the last round is reported, the others warm up the JIT
+		double insertSeconds = 0;
+		double bulkSeconds = 0;
+		for (int round = 0; round < ROUNDS; round++) {
+			delete(path);
+			long start = System.nanoTime();
+			PCTilePersistenceManager tpm = new PCTilePersistenceManager(path);
+			for (int i = 0; i < tiles.size(); i += TILES_PER_CALL) {
+				tpm.insertOrUpdateTiles(tiles.subList(i, Math.min(i + TILES_PER_CALL, tiles.size())));
+			}
+			tpm.close();
+			insertSeconds = (System.nanoTime() - start) / 1e9;
+
+			delete(path);
+			start = System.nanoTime();
+			BulkLoader loader = new BulkLoader(path, null);
+			for (int i = 0; i < tiles.size(); i += TILES_PER_CALL) {
+				loader.addTiles(tiles.subList(i, Math.min(i + TILES_PER_CALL, tiles.size())));
+			}
+			loader.finish();
+			bulkSeconds = (System.nanoTime() - start) / 1e9;
+		}
+		delete(path);
+
+		System.out.printf("%d tiles of %d bytes: insertOrUpdateTiles %10.0f tiles/s, BulkLoader %10.0f tiles/s%n",
+				tiles.size(), TILE_SIZE, tiles.size() / insertSeconds, tiles.size() / bulkSeconds);
+	}
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.benchmark;
+
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mapsforge.storage.tile.HashTreeUtil;
+import org.mapsforge.storage.tile.ModifiedTileHandler;
+import org.mapsforge.storage.util.Tuple;
+
+/**
+ * Compares the iterative hash tree diff of {@link HashTreeUtil} with the former recursive one, on
+ * in-memory trees in which a varying share of the tiles has changed.
+ */
+public class HashTreeDiffBenchmark {
+	private static final int GRID_SIZE = 1024;
+	private static final int FACTOR = 4;
+	private static final double[] CHANGE_RATES = { 0.01, 0.1, 0.5 };
+	private static final int ROUNDS = 5;
+
+	private static List<Tuple<Integer, Integer>> legacyFindModifiedTiles(long[][][] a, long[][][] b, int startX,
+			int startY, int z, int factor) {
+		if (a.length != b.length) {
+			return null;
+		}
+
+		List<Tuple<Integer, Integer>> modified = new LinkedList<Tuple<Integer, Integer>>();
+
+		if (z >= a.length) {
+			modified.add(new Tuple<Integer, Integer>(startX / factor, startY / factor));
+		} else {
+			for (int x = startX; x < startX + factor && x < a[z].length; ++x) {
+				for (int y = startY; y < startY + factor && y < a[z][x].length; ++y) {
+					if (a[z][x][y] != b[z][x][y]) {
+						modified.addAll(legacyFindModifiedTiles(a, b, x * factor, y * factor, z + 1, factor));
+					}
+				}
+			}
+		}
+
+		return modified;
+	}
+
+	private static long[][][] buildTree(long[][] leaves) {
+		int depth = 1;
+		for (int size = leaves.length; size > 1; size = (size + FACTOR - 1) / FACTOR) {
+			depth++;
+		}
+
+		long[][][] tree = new long[depth][][];
+		tree[depth - 1] = leaves;
+		for (int i = depth - 2; i >= 0; i--) {
+			int size = (tree[i + 1].length + FACTOR - 1) / FACTOR;
+			tree[i] = new long[size][size];
+			for (int x = 0; x < size; x++) {
+				for (int y = 0; y < size; y++) {
+					tree[i][x][y] = HashTreeUtil.combineChildren(tree[i + 1], x, y, FACTOR);
+				}
+			}
+		}
+		return tree;
+	}
+
+	/**
+	 * Prints the time each implementation needs to diff two trees of {@link #GRID_SIZE} squared
+	 * tiles for every change rate.
+	 * 
+	 * @param args
+	 *            Not used.
+	 */
+	public static void main(String[] args) {
+		Random random = new Random(42);
+		long[][] leaves = new long[GRID_SIZE][GRID_SIZE];
+		for (int x = 0; x < GRID_SIZE; x++) {
+			for (int y = 0; y < GRID_SIZE; y++) {
+				leaves[x][y] = random.nextLong();
+			}
+		}
+		long[][][] a = buildTree(leaves);
+		ForkJoinPool pool = new ForkJoinPool();
+
+		for (double rate : CHANGE_RATES) {
+			long[][] changedLeaves = new long[GRID_SIZE][];
+			for (int x = 0; x < GRID_SIZE; x++) {
+				changedLeaves[x] = leaves[x].clone();
+				for (int y = 0; y < GRID_SIZE; y++) {
+					if (random.nextDouble() < rate) {
+						changedLeaves[x][y] = random.nextLong();
+					}
+				}
+			}
+			long[][][] b = buildTree(changedLeaves);
+
+			// Run all implementations a few times so that the JIT has settled,
+			// only the last round is reported
+			final long[] count = new long[1];
+			ModifiedTileHandler counter = new ModifiedTileHandler() {
+				@Override
+				public void handleModifiedTile(int xPos, int yPos, long oldHash, long newHash) {
+					count[0]++;
+				}
+			};
+			int legacyCount = 0;
+			int bufferCount = 0;
+			int parallelCount = 0;
+			double legacySeconds = 0;
+			double callbackSeconds = 0;
+			double bufferSeconds = 0;
+			double parallelSeconds = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				long start = System.nanoTime();
+				legacyCount = legacyFindModifiedTiles(a, b, 0, 0, 0, FACTOR).size();
+				legacySeconds = (System.nanoTime() - start) / 1e9;
+
+				count[0] = 0;
+				start = System.nanoTime();
+				HashTreeUtil.findModifiedTiles(a, b, FACTOR, counter);
+				callbackSeconds = (System.nanoTime() - start) / 1e9;
+
+				start = System.nanoTime();
+				bufferCount = HashTreeUtil.findModifiedTiles(a, b, FACTOR).length;
+				bufferSeconds = (System.nanoTime() - start) / 1e9;
+
+				start = System.nanoTime();
+				parallelCount = HashTreeUtil.findModifiedTiles(a, b, FACTOR, pool).length;
+				parallelSeconds = (System.nanoTime() - start) / 1e9;
+			}
+
+			boolean match = legacyCount == count[0] && legacyCount == bufferCount && legacyCount == parallelCount;
+			System.out.printf("%4.0f%% changed (%7d tiles): recursive %7.1f ms, callback %7.1f ms, "
+					+ "buffer %7.1f ms, parallel (%d threads) %7.1f ms%s%n", rate * 100, legacyCount,
+					legacySeconds * 1e3, callbackSeconds * 1e3, bufferSeconds * 1e3, pool.getParallelism(),
+					parallelSeconds * 1e3, match ? "" : " (result mismatch!)");
+		}
+
+		pool.shutdown();
+	}
+}
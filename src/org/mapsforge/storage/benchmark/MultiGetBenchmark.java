@@ -0,0 +1,139 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.benchmark;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Random;
+
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+import org.mapsforge.storage.tile.TileDataContainer;
+
+/**
+ * Compares the chunked prepared-statement multi-get of {@link PCTilePersistenceManager} with the
+ * former approach of concatenating all ids into the SQL string.
+ */
+public class MultiGetBenchmark {
+	private static final int GRID_SIZE = 256;
+	private static final int TILE_SIZE = 1024;
+	private static final int[] REQUEST_SIZES = { 16, 256, 4096 };
+	private static final int TILES_PER_RUN = 200000;
+	private static final int ROUNDS = 5;
+
+	private static long[] randomIds(Random random, int n, int baseZoomLevel) {
+		long[] ids = new long[n];
+		for (int i = 0; i < n; i++) {
+			ids[i] = ((long) random.nextInt(GRID_SIZE) << baseZoomLevel) + random.nextInt(GRID_SIZE);
+		}
+		return ids;
+	}
+
+	private static int legacyMultiGet(Statement stmt, long[] ids, byte baseZoomInterval) throws SQLException {
+		StringBuilder sb = new StringBuilder();
+		for (int i = 0; i < ids.length; i++) {
+			sb.append(ids[i]);
+			if (i != ids.length - 1) {
+				sb.append(',');
+			}
+		}
+
+		int found = 0;
+		ResultSet rs = stmt.executeQuery("SELECT id, data FROM tiles_" + baseZoomInterval + " WHERE id IN ("
+				+ sb + ");");
+		while (rs.next()) {
+			if (rs.getBytes(2) != null) {
+				++found;
+			}
+		}
+		rs.close();
+
+		return found;
+	}
+
+	/**
+	 * Creates a test database if necessary and prints the throughput of both implementations.
+	 * 
+	 * @param args
+	 *            Optional path to the database file.
+	 * @throws Exception
+	 *             if the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		final String path = args.length > 0 ? args[0] : "/tmp/MultiGetBenchmark.map";
+		final byte interval = 1;
+		final boolean create = !new File(path).exists();
+
+		PCTilePersistenceManager tpm = new PCTilePersistenceManager(path);
+		final int bzl = tpm.getMetaData().getBaseZoomLevels()[interval];
+		if (create) {
+			Random random = new Random(42);
+			ArrayList<TileDataContainer> tiles = new ArrayList<TileDataContainer>(GRID_SIZE);
+			for (int y = 0; y < GRID_SIZE; y++) {
+				for (int x = 0; x < GRID_SIZE; x++) {
+					byte[] data = new byte[TILE_SIZE];
+					random.nextBytes(data);
+					tiles.add(new TileDataContainer(data, TileDataContainer.TILE_TYPE_VECTOR, x, y, interval));
+				}
+				tpm.insertOrUpdateTiles(tiles);
+				tiles.clear();
+			}
+		}
+
+		Class.forName("org.sqlite.JDBC");
+		Connection legacyConn = DriverManager.getConnection("jdbc:sqlite:/" + path);
+		Statement legacyStmt = legacyConn.createStatement();
+
+		Random random = new Random(1337);
+		for (int n : REQUEST_SIZES) {
+			final int runs = Math.max(1, TILES_PER_RUN / n);
+			long[][] requests = new long[runs][];
+			for (int r = 0; r < runs; r++) {
+				requests[r] = randomIds(random, n, bzl);
+			}
+
+			// Alternate both paths a few times so that the JIT has settled,
+			// only the last round is reported
+			long found = 0;
+			double legacySeconds = 0;
+			double chunkedSeconds = 0;
+			for (int round = 0; round < ROUNDS; round++) {
+				found = 0;
+				long start = System.nanoTime();
+				for (int r = 0; r < runs; r++) {
+					found += legacyMultiGet(legacyStmt, requests[r], interval);
+				}
+				legacySeconds = (System.nanoTime() - start) / 1e9;
+
+				start = System.nanoTime();
+				for (int r = 0; r < runs; r++) {
+					found -= tpm.getTileData(requests[r], interval).size();
+				}
+				chunkedSeconds = (System.nanoTime() - start) / 1e9;
+			}
+
+			System.out.printf("%5d ids: string IN list %10.0f tiles/s, chunked prepared %10.0f tiles/s%s%n", n,
+					runs * n / legacySeconds, runs * n / chunkedSeconds, found == 0 ? "" : " (result mismatch!)");
+		}
+
+		legacyStmt.close();
+		legacyConn.close();
+		tpm.close();
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.benchmark;
+
+import java.io.File;
+import java.util.Random;
+
+import org.mapsforge.storage.tile.BulkLoader;
+import org.mapsforge.storage.tile.PCTilePersistenceManager;
+
+/**
+ * Measures how long it takes to open many small map databases and to read their first tile, as
+ * done when a server loads all of its regional map files on startup.
+ */
+public class OpenLatencyBenchmark {
+	private static final int FILES = 200;
+	private static final int GRID_SIZE = 16;
+	private static final int TILE_SIZE = 256;
+	private static final int ROUNDS = 5;
+
+	private static String path(String dir, int file) {
+		return dir + "/OpenLatencyBenchmark-" + file + ".map";
+	}
+
+	private static void delete(String path) {
+		new File(path).delete();
+		new File(path + "-journal").delete();
+	}
+
+	/**
+	 * Creates the test databases and prints the average time for opening a database and for
+	 * opening it and reading a tile.
+	 * 
+	 * @param args
+	 *            Optional directory for the database files.
+	 * @throws Exception
+	 *             if the benchmark fails.
+	 */
+	public static void main(String[] args) throws Exception {
+		final String dir = args.length > 0 ? args[0] : "/tmp";
+		final byte interval = 1;
+
+		Random random = new Random(42);
+		for (int f = 0; f < FILES; f++) {
+			delete(path(dir, f));
+			BulkLoader loader = new BulkLoader(path(dir, f), null);
+			for (int y = 0; y < GRID_SIZE; y++) {
+				for (int x = 0; x < GRID_SIZE; x++) {
+					byte[] data = new byte[TILE_SIZE];
+					random.nextBytes(data);
+					loader.addTile(data, x, y, interval);
+				}
+			}
+			loader.finish();
+		}
+
+		// Only the last round is reported, the others warm up the JIT and the page cache
+		double openSeconds = 0;
+		double firstTileSeconds = 0;
+		final PCTilePersistenceManager[] tpms = new PCTilePersistenceManager[FILES];
+		for (int round = 0; round < ROUNDS; round++) {
+			openSeconds = 0;
+			firstTileSeconds = 0;
+			for (int f = 0; f < FILES; f++) {
+				long start = System.nanoTime();
+				tpms[f] = new PCTilePersistenceManager(path(dir, f));
+				long opened = System.nanoTime();
+				if (tpms[f].getTileData(f % GRID_SIZE, f / GRID_SIZE % GRID_SIZE, interval) == null) {
+					throw new IllegalStateException("Tile missing in " + path(dir, f));
+				}
+				long read = System.nanoTime();
+
+				openSeconds += (opened - start) / 1e9;
+				firstTileSeconds += (read - start) / 1e9;
+			}
+
+			// Closing is not part of the measurement
+			for (int f = 0; f < FILES; f++) {
+				tpms[f].close();
+			}
+		}
+
+		for (int f = 0; f < FILES; f++) {
+			delete(path(dir, f));
+		}
+
+		System.out.printf("%d files: open %8.0f us/file, open and read first tile %8.0f us/file%n", FILES,
+				openSeconds * 1e6 / FILES, firstTileSeconds * 1e6 / FILES);
+	}
+}
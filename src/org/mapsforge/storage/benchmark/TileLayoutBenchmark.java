@@ -0,0 +1,98 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.benchmark;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.mapsforge.storage.tile.TileIdLayout;
+
+/**
+ * Estimates how many database pages a viewport touches under each {@link TileIdLayout}.
+ * 
+ * A tile table is a B-tree ordered by id, so a fully populated region of tiles is spread over the
+ * leaf pages in id order. The benchmark assigns every tile of a square region to page
+ * <code>rank(id) / tilesPerPage</code> and counts for randomly placed viewports the distinct leaf
+ * pages, the runs of consecutive pages (i.e. the random reads needed on a cold cache) and the id
+ * ranges that have to be scanned. Interior B-tree pages are ignored as they are usually cached.
+ */
+public class TileLayoutBenchmark {
+	private static final int SAMPLES = 20000;
+
+	/**
+	 * @param args
+	 *            Optional: region size in tiles (default 1024), tiles per leaf page (default 4),
+	 *            base zoom level (default 14).
+	 */
+	public static void main(String[] args) {
+		final int regionSize = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		final int tilesPerPage = args.length > 1 ? Integer.parseInt(args[1]) : 4;
+		final byte baseZoomLevel = args.length > 2 ? Byte.parseByte(args[2]) : 14;
+
+		// An arbitrary region that is not aligned to the quad tree
+		final int originX = (1 << baseZoomLevel) / 2 - 333;
+		final int originY = (1 << baseZoomLevel) / 3 - 555;
+
+		System.out.println("Region " + regionSize + "x" + regionSize + " at base zoom level " + baseZoomLevel + ", "
+				+ tilesPerPage + " tiles per leaf page");
+
+		for (TileIdLayout layout : TileIdLayout.values()) {
+			long[] ids = new long[regionSize * regionSize];
+			for (int y = 0; y < regionSize; y++) {
+				for (int x = 0; x < regionSize; x++) {
+					ids[y * regionSize + x] = layout.coordinatesToId(originX + x, originY + y, baseZoomLevel);
+				}
+			}
+			Arrays.sort(ids);
+
+			for (int viewport : new int[] { 4, 8, 16 }) {
+				Random random = new Random(42);
+				long pages = 0;
+				long runs = 0;
+				long ranges = 0;
+				int[] viewportPages = new int[viewport * viewport];
+
+				for (int s = 0; s < SAMPLES; s++) {
+					int minX = originX + random.nextInt(regionSize - viewport);
+					int minY = originY + random.nextInt(regionSize - viewport);
+
+					int n = 0;
+					for (int y = minY; y < minY + viewport; y++) {
+						for (int x = minX; x < minX + viewport; x++) {
+							int rank = Arrays.binarySearch(ids, layout.coordinatesToId(x, y, baseZoomLevel));
+							viewportPages[n++] = rank / tilesPerPage;
+						}
+					}
+					Arrays.sort(viewportPages);
+					for (int i = 0; i < n; i++) {
+						if (i == 0 || viewportPages[i] != viewportPages[i - 1]) {
+							++pages;
+							if (i == 0 || viewportPages[i] != viewportPages[i - 1] + 1) {
+								++runs;
+							}
+						}
+					}
+
+					ranges += layout.idRangesInRect(minX, minY, minX + viewport - 1, minY + viewport - 1,
+							baseZoomLevel).length / 2;
+				}
+
+				System.out.printf("%-9s %2dx%-2d viewport: %6.2f leaf pages, %6.2f page runs, %6.2f id ranges%n",
+						layout, viewport, viewport, (double) pages / SAMPLES, (double) runs / SAMPLES,
+						(double) ranges / SAMPLES);
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.ForwardingTilePersistenceManager;
+import org.mapsforge.storage.tile.TileDataContainer;
+import org.mapsforge.storage.tile.TileIdLayout;
+import org.mapsforge.storage.tile.TilePersistenceManager;
+
+/**
+ * Keeps recently requested tiles in a {@link TileCache} in front of another
+ * {@link TilePersistenceManager}. All writes are passed through and invalidate the affected tiles.
+ * This class is thread safe if the underlying instance is.
+ */
+public class CachingTilePersistenceManager extends ForwardingTilePersistenceManager {
+	private final TileCache cache;
+	// The layout of a file never changes, so it is not looked up for every request
+	private final TileIdLayout tileIdLayout;
+	private final byte[] baseZoomLevels;
+	private final byte[] tileTypes;
+
+	/**
+	 * @param delegate
+	 *            The instance whose tiles should be cached.
+	 * @param maxBytes
+	 *            The maximum number of bytes occupied by cached tiles.
+	 */
+	public CachingTilePersistenceManager(TilePersistenceManager delegate, long maxBytes) {
+		this(delegate, new TileCache(maxBytes));
+	}
+
+	/**
+	 * @param delegate
+	 *            The instance whose tiles should be cached.
+	 * @param cache
+	 *            The cache to be used.
+	 */
+	public CachingTilePersistenceManager(TilePersistenceManager delegate, TileCache cache) {
+		super(delegate);
+		this.cache = cache;
+		final MapFileMetaData metaData = delegate.getMetaData();
+		this.tileIdLayout = metaData.getTileIdLayout();
+		this.baseZoomLevels = metaData.getBaseZoomLevels();
+		this.tileTypes = metaData.getTileTypes();
+	}
+
+	/**
+	 * @return The cache containing the tiles and its hit, miss and eviction counters.
+	 */
+	public TileCache getCache() {
+		return this.cache;
+	}
+
+	private long coordinatesToId(int xPos, int yPos, byte baseZoomInterval) {
+		return this.tileIdLayout.coordinatesToId(xPos, yPos, this.baseZoomLevels[baseZoomInterval]);
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, int xPos, int yPos, byte baseZoomInterval) {
+		insertOrUpdateTile(rawData, coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, long id, byte baseZoomInterval) {
+		this.delegate.insertOrUpdateTile(rawData, id, baseZoomInterval);
+		this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+	}
+
+	@Override
+	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
+		this.delegate.insertOrUpdateTiles(rawData);
+		for (TileDataContainer tile : rawData) {
+			byte baseZoomInterval = (byte) tile.getBaseZoomLevel();
+			this.cache.invalidate(TileCache.key(baseZoomInterval,
+					coordinatesToId(tile.getxPos(), tile.getyPos(), baseZoomInterval)));
+		}
+	}
+
+	@Override
+	public void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
+		deleteTile(coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public void deleteTile(long id, byte baseZoomInterval) {
+		this.delegate.deleteTile(id, baseZoomInterval);
+		this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+	}
+
+	@Override
+	public void deleteTiles(long[] ids, byte baseZoomInterval) {
+		this.delegate.deleteTiles(ids, baseZoomInterval);
+		for (long id : ids) {
+			this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+		}
+	}
+
+	@Override
+	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
+		return getTileData(coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(long id, byte baseZoomInterval) {
+		long key = TileCache.key(baseZoomInterval, id);
+		byte[] data = this.cache.get(key);
+		if (data == null) {
+			long generation = this.cache.getGeneration(key);
+			data = this.delegate.getTileData(id, baseZoomInterval);
+			if (data != null) {
+				this.cache.put(key, data, generation);
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Cache hits are copied straight from the cached array.
+	 */
+	@Override
+	public int getTileData(long id, byte baseZoomInterval, ByteBuffer dst) {
+		byte[] data = getTileData(id, baseZoomInterval);
+		if (data == null) {
+			return -1;
+		}
+
+		dst.put(data);
+		return data.length;
+	}
+
+	@Override
+	public boolean getTileData(long id, byte baseZoomInterval, OutputStream out) throws IOException {
+		byte[] data = getTileData(id, baseZoomInterval);
+		if (data == null) {
+			return false;
+		}
+
+		out.write(data);
+		return true;
+	}
+
+	@Override
+	public InputStream getTileDataStream(long id, byte baseZoomInterval) {
+		byte[] data = getTileData(id, baseZoomInterval);
+		return data == null ? null : new ByteArrayInputStream(data);
+	}
+
+	@Override
+	public Collection<TileDataContainer> getTileData(long[] ids, byte baseZoomInterval) {
+		final byte baseZoomLevel = this.baseZoomLevels[baseZoomInterval];
+		final byte tileType = this.tileTypes[baseZoomInterval];
+		final TileIdLayout layout = this.tileIdLayout;
+
+		ArrayList<TileDataContainer> ret = new ArrayList<TileDataContainer>(ids.length);
+		long[] missing = new long[ids.length];
+		int numMissing = 0;
+
+		for (long id : ids) {
+			byte[] data = this.cache.get(TileCache.key(baseZoomInterval, id));
+			if (data != null) {
+				ret.add(new TileDataContainer(data, tileType, id, layout.idToX(id, baseZoomLevel),
+						layout.idToY(id, baseZoomLevel), baseZoomInterval));
+			} else {
+				missing[numMissing++] = id;
+			}
+		}
+
+		if (numMissing > 0) {
+			// Sorted, so that the generation of a loaded tile can be found by binary search
+			missing = Arrays.copyOf(missing, numMissing);
+			Arrays.sort(missing);
+			long[] generations = new long[numMissing];
+			for (int i = 0; i < numMissing; i++) {
+				generations[i] = this.cache.getGeneration(TileCache.key(baseZoomInterval, missing[i]));
+			}
+
+			for (TileDataContainer tile : this.delegate.getTileData(missing, baseZoomInterval)) {
+				int i = Arrays.binarySearch(missing, tile.getId());
+				if (i >= 0) {
+					this.cache.put(TileCache.key(baseZoomInterval, tile.getId()), tile.getData(), generations[i]);
+				}
+				ret.add(tile);
+			}
+		}
+
+		return ret;
+	}
+
+	@Override
+	public void setMetaData(MapFileMetaData mapFileMetaData) {
+		this.delegate.setMetaData(mapFileMetaData);
+		// The zoom interval configuration may have changed
+		this.cache.invalidateAll();
+	}
+
+	@Override
+	public void close() {
+		this.delegate.close();
+		this.cache.invalidateAll();
+	}
+}
@@ -0,0 +1,316 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.cache;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+
+/**
+ * A tile cache backed by a memory-mapped file. The tile data lives outside the Java heap and
+ * survives restarts of the JVM.
+ * 
+ * The file consists of a header followed by fixed-size slots. Each key is mapped to a pair of
+ * slots, a newer tile overwrites one of the entries stored there before. Every slot stores
+ * the tile's key, its hash as found in the map database, the data length and a CRC32 of the data.
+ * Readers pass the hash currently stored in the database, so entries of tiles that have changed
+ * since they were cached are detected and dropped. Tiles larger than a slot are not cached.
+ */
+public class MappedTileCache {
+	private static final int MAGIC = 0x4d544332; // "MTC2"
+	private static final int HEADER_SIZE = 64;
+	private static final int SLOT_HEADER_SIZE = 24;
+	private static final int MAX_REGION_SIZE = 1 << 30;
+	private static final int LOCK_STRIPES = 64;
+
+	private final RandomAccessFile file;
+	private final MappedByteBuffer header;
+	private final MappedByteBuffer[] regions;
+	private final int slotSize;
+	private final int slotsPerRegion;
+	private final long slotCount;
+	private final Object[] locks;
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong staleEntries = new AtomicLong();
+
+	/**
+	 * Opens or creates a cache file. If an existing file has been created with a different
+	 * configuration, all of its entries are discarded.
+	 * 
+	 * @param cacheFile
+	 *            The file holding the cached tiles.
+	 * @param size
+	 *            The size of the file in bytes.
+	 * @param slotSize
+	 *            The size of a slot in bytes. Tiles larger than <code>slotSize - 24</code> bytes
+	 *            will not be cached.
+	 * @throws IOException
+	 *             if the file could not be opened or mapped.
+	 */
+	public MappedTileCache(File cacheFile, long size, int slotSize) throws IOException {
+		if (slotSize <= SLOT_HEADER_SIZE || slotSize > MAX_REGION_SIZE) {
+			throw new IllegalArgumentException("invalid slot size: " + slotSize);
+		}
+
+		this.slotSize = slotSize;
+		this.slotsPerRegion = MAX_REGION_SIZE / slotSize & ~1;
+		// Slots are used in pairs
+		this.slotCount = Math.max(2, (size - HEADER_SIZE) / slotSize & ~1L);
+
+		this.file = new RandomAccessFile(cacheFile, "rw");
+		FileChannel channel = this.file.getChannel();
+
+		boolean compatible = this.file.length() == HEADER_SIZE + this.slotCount * slotSize;
+		this.header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+		compatible &= this.header.getInt(0) == MAGIC && this.header.getInt(4) == slotSize
+				&& this.header.getLong(8) == this.slotCount;
+		if (!compatible) {
+			// Discard all entries
+			this.header.putInt(0, 0);
+			this.file.setLength(HEADER_SIZE);
+			this.file.setLength(HEADER_SIZE + this.slotCount * slotSize);
+		}
+
+		int numRegions = (int) ((this.slotCount + this.slotsPerRegion - 1) / this.slotsPerRegion);
+		this.regions = new MappedByteBuffer[numRegions];
+		for (int i = 0; i < numRegions; i++) {
+			long firstSlot = (long) i * this.slotsPerRegion;
+			long slots = Math.min(this.slotsPerRegion, this.slotCount - firstSlot);
+			this.regions[i] = channel.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + firstSlot * slotSize,
+					slots * slotSize);
+		}
+
+		if (!compatible) {
+			this.header.putInt(4, slotSize);
+			this.header.putLong(8, this.slotCount);
+			this.header.putInt(0, MAGIC);
+			this.header.force();
+		}
+
+		this.locks = new Object[LOCK_STRIPES];
+		for (int i = 0; i < LOCK_STRIPES; i++) {
+			this.locks[i] = new Object();
+		}
+	}
+
+	/**
+	 * @return The first of the two slots a key can be stored in.
+	 */
+	private long slotFor(long key) {
+		// Murmur3 finalizer
+		long h = key;
+		h ^= h >>> 33;
+		h *= 0xff51afd7ed558ccdL;
+		h ^= h >>> 33;
+		h *= 0xc4ceb9fe1a85ec53L;
+		h ^= h >>> 33;
+		return (h & Long.MAX_VALUE) % (this.slotCount >> 1) << 1;
+	}
+
+	private Object lockFor(long slot) {
+		return this.locks[(int) ((slot >> 1) % LOCK_STRIPES)];
+	}
+
+	private ByteBuffer regionFor(long slot) {
+		return this.regions[(int) (slot / this.slotsPerRegion)];
+	}
+
+	private int offsetOf(long slot) {
+		return (int) (slot % this.slotsPerRegion) * this.slotSize;
+	}
+
+	private static int crc(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Looks up a tile. An entry whose hash differs from the given one is removed.
+	 * 
+	 * @param key
+	 *            The tile's key (see {@link TileCache#key(byte, long)}).
+	 * @param hash
+	 *            The tile's current hash in the map database.
+	 * @return The cached data or null if the tile is not cached or out of date.
+	 */
+	public byte[] get(long key, long hash) {
+		final long slot = slotFor(key);
+
+		synchronized (lockFor(slot)) {
+			ByteBuffer region = regionFor(slot);
+			int offset = findEntry(region, slot, key);
+			if (offset < 0) {
+				this.misses.incrementAndGet();
+				return null;
+			}
+
+			if (region.getLong(offset + 8) != hash) {
+				region.putInt(offset + 16, 0);
+				this.staleEntries.incrementAndGet();
+				this.misses.incrementAndGet();
+				return null;
+			}
+
+			// A length that does not fit into the slot can only come from a damaged file
+			final int length = region.getInt(offset + 16);
+			if (length <= 0 || length > this.slotSize - SLOT_HEADER_SIZE) {
+				region.putInt(offset + 16, 0);
+				this.misses.incrementAndGet();
+				return null;
+			}
+
+			byte[] data = new byte[length];
+			ByteBuffer view = region.duplicate();
+			view.position(offset + SLOT_HEADER_SIZE);
+			view.get(data);
+
+			// Entries may have been torn by a crash while they were written
+			if (crc(data) != region.getInt(offset + 20)) {
+				region.putInt(offset + 16, 0);
+				this.misses.incrementAndGet();
+				return null;
+			}
+
+			this.hits.incrementAndGet();
+			return data;
+		}
+	}
+
+	/**
+	 * @return The offset of the valid entry for the given key or -1.
+	 */
+	private int findEntry(ByteBuffer region, long slot, long key) {
+		for (int i = 0; i < 2; i++) {
+			int offset = offsetOf(slot + i);
+			if (region.getInt(offset + 16) > 0 && region.getLong(offset) == key) {
+				return offset;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Stores a tile, replacing an entry that previously occupied one of its slots.
+	 * 
+	 * @param key
+	 *            The tile's key (see {@link TileCache#key(byte, long)}).
+	 * @param hash
+	 *            The tile's hash in the map database.
+	 * @param data
+	 *            The tile's data.
+	 */
+	public void put(long key, long hash, byte[] data) {
+		if (data.length == 0 || data.length > this.slotSize - SLOT_HEADER_SIZE) {
+			return;
+		}
+
+		final long slot = slotFor(key);
+		final int crc = crc(data);
+
+		synchronized (lockFor(slot)) {
+			ByteBuffer region = regionFor(slot);
+
+			// Prefer the key's old entry, then an empty slot, then alternate
+			int offset = findEntry(region, slot, key);
+			if (offset < 0) {
+				if (region.getInt(offsetOf(slot) + 16) <= 0) {
+					offset = offsetOf(slot);
+				} else if (region.getInt(offsetOf(slot + 1) + 16) <= 0) {
+					offset = offsetOf(slot + 1);
+				} else {
+					offset = offsetOf(slot + (crc & 1));
+				}
+			}
+
+			// Invalidate first, the length is written last
+			region.putInt(offset + 16, 0);
+			ByteBuffer view = region.duplicate();
+			view.position(offset + SLOT_HEADER_SIZE);
+			view.put(data);
+			region.putLong(offset, key);
+			region.putLong(offset + 8, hash);
+			region.putInt(offset + 20, crc);
+			region.putInt(offset + 16, data.length);
+		}
+	}
+
+	/**
+	 * Removes a tile from the cache.
+	 * 
+	 * @param key
+	 *            The tile's key (see {@link TileCache#key(byte, long)}).
+	 */
+	public void invalidate(long key) {
+		final long slot = slotFor(key);
+
+		synchronized (lockFor(slot)) {
+			ByteBuffer region = regionFor(slot);
+			int offset = findEntry(region, slot, key);
+			if (offset >= 0) {
+				region.putInt(offset + 16, 0);
+			}
+		}
+	}
+
+	/**
+	 * @return The number of requests that have been answered from the cache.
+	 */
+	public long getHitCount() {
+		return this.hits.get();
+	}
+
+	/**
+	 * @return The number of requests for tiles that were not cached or out of date.
+	 */
+	public long getMissCount() {
+		return this.misses.get();
+	}
+
+	/**
+	 * @return The number of entries that have been dropped because the tile has changed.
+	 */
+	public long getStaleCount() {
+		return this.staleEntries.get();
+	}
+
+	/**
+	 * Writes all changes to the file.
+	 */
+	public void flush() {
+		for (MappedByteBuffer region : this.regions) {
+			region.force();
+		}
+	}
+
+	/**
+	 * Writes all changes to the file and closes it.
+	 */
+	public void close() {
+		flush();
+		try {
+			this.file.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
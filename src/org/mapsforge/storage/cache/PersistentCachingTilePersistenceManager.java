@@ -0,0 +1,176 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.tile.ForwardingTilePersistenceManager;
+import org.mapsforge.storage.tile.TileDataContainer;
+import org.mapsforge.storage.tile.TileIdLayout;
+import org.mapsforge.storage.tile.TilePersistenceManager;
+
+/**
+ * Keeps tiles in a {@link MappedTileCache} in front of another {@link TilePersistenceManager}.
+ * Unlike {@link CachingTilePersistenceManager} the cached tiles are stored outside the Java heap
+ * and are still available after a restart. Every hit is validated against the tile's hash in the
+ * underlying database, so entries for tiles that changed in the meantime are never returned. Only
+ * single tile requests are served from the cache.
+ * 
+ * Both caches can be combined, e.g. <code>new CachingTilePersistenceManager(new
+ * PersistentCachingTilePersistenceManager(tpm, cache), maxBytes)</code>.
+ */
+public class PersistentCachingTilePersistenceManager extends ForwardingTilePersistenceManager {
+	private final MappedTileCache cache;
+	// The layout of a file never changes, so it is not looked up for every request
+	private final TileIdLayout tileIdLayout;
+	private final byte[] baseZoomLevels;
+
+	/**
+	 * @param delegate
+	 *            The instance whose tiles should be cached.
+	 * @param cache
+	 *            The cache to be used. It will be closed together with this instance.
+	 */
+	public PersistentCachingTilePersistenceManager(TilePersistenceManager delegate, MappedTileCache cache) {
+		super(delegate);
+		this.cache = cache;
+		final MapFileMetaData metaData = delegate.getMetaData();
+		this.tileIdLayout = metaData.getTileIdLayout();
+		this.baseZoomLevels = metaData.getBaseZoomLevels();
+	}
+
+	/**
+	 * @return The cache containing the tiles and its counters.
+	 */
+	public MappedTileCache getCache() {
+		return this.cache;
+	}
+
+	private long coordinatesToId(int xPos, int yPos, byte baseZoomInterval) {
+		return this.tileIdLayout.coordinatesToId(xPos, yPos, this.baseZoomLevels[baseZoomInterval]);
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, int xPos, int yPos, byte baseZoomInterval) {
+		insertOrUpdateTile(rawData, coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, long id, byte baseZoomInterval) {
+		this.delegate.insertOrUpdateTile(rawData, id, baseZoomInterval);
+		this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+	}
+
+	@Override
+	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
+		this.delegate.insertOrUpdateTiles(rawData);
+		for (TileDataContainer tile : rawData) {
+			byte baseZoomInterval = (byte) tile.getBaseZoomLevel();
+			this.cache.invalidate(TileCache.key(baseZoomInterval,
+					coordinatesToId(tile.getxPos(), tile.getyPos(), baseZoomInterval)));
+		}
+	}
+
+	@Override
+	public void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
+		deleteTile(coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public void deleteTile(long id, byte baseZoomInterval) {
+		this.delegate.deleteTile(id, baseZoomInterval);
+		this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+	}
+
+	@Override
+	public void deleteTiles(long[] ids, byte baseZoomInterval) {
+		this.delegate.deleteTiles(ids, baseZoomInterval);
+		for (long id : ids) {
+			this.cache.invalidate(TileCache.key(baseZoomInterval, id));
+		}
+	}
+
+	@Override
+	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
+		return getTileData(coordinatesToId(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(long id, byte baseZoomInterval) {
+		final long key = TileCache.key(baseZoomInterval, id);
+
+		// A tile that has been written after this query will be stored with
+		// the old hash, which only causes a miss on the next request
+		final long hash = this.delegate.getTileHash(id, baseZoomInterval);
+		byte[] data = this.cache.get(key, hash);
+		if (data == null) {
+			data = this.delegate.getTileData(id, baseZoomInterval);
+			if (data != null) {
+				this.cache.put(key, hash, data);
+			}
+		}
+
+		return data;
+	}
+
+	/**
+	 * Served through {@link #getTileData(long, byte)} so that the tile ends up in the cache.
+	 */
+	@Override
+	public int getTileData(long id, byte baseZoomInterval, ByteBuffer dst) {
+		byte[] data = getTileData(id, baseZoomInterval);
+		if (data == null) {
+			return -1;
+		}
+
+		dst.put(data);
+		return data.length;
+	}
+
+	@Override
+	public boolean getTileData(long id, byte baseZoomInterval, OutputStream out) throws IOException {
+		byte[] data = getTileData(id, baseZoomInterval);
+		if (data == null) {
+			return false;
+		}
+
+		out.write(data);
+		return true;
+	}
+
+	@Override
+	public InputStream getTileDataStream(long id, byte baseZoomInterval) {
+		byte[] data = getTileData(id, baseZoomInterval);
+		return data == null ? null : new ByteArrayInputStream(data);
+	}
+
+	@Override
+	public void flush() {
+		this.delegate.flush();
+		this.cache.flush();
+	}
+
+	@Override
+	public void close() {
+		this.delegate.close();
+		this.cache.close();
+	}
+}
@@ -0,0 +1,398 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.cache;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread-safe in-memory cache for tile data which is bounded by the total size of the cached
+ * tiles. The cache is split into independently locked segments, each of which evicts with a
+ * segmented LRU policy: new tiles enter a probation area and are only moved to the protected area
+ * once they are requested again. A scan over many tiles that are requested only once therefore
+ * cannot displace the frequently used ones.
+ * 
+ * Loads that race with writes are handled by generations: A caller obtains a generation with
+ * {@link #getGeneration(long)} before reading from the database and passes it to
+ * {@link #put(long, byte[], long)}, which discards the data if the key's segment has been
+ * invalidated in between.
+ * 
+ * Tiles with identical data, e.g. sea or empty land tiles, share one array within a segment and
+ * their data is accounted for only once.
+ */
+public class TileCache {
+	/** Approximate heap overhead of an entry besides the tile data itself */
+	private static final int ENTRY_OVERHEAD = 96;
+	/** Share of a segment's capacity reserved for tiles that have been requested at least twice */
+	private static final double PROTECTED_SHARE = 0.8;
+	private static final int DEFAULT_CONCURRENCY_LEVEL = 16;
+
+	private final Segment[] segments;
+	private final int segmentShift;
+
+	/**
+	 * Creates a cache with a default number of segments.
+	 * 
+	 * @param maxBytes
+	 *            The maximum number of bytes occupied by cached tiles.
+	 */
+	public TileCache(long maxBytes) {
+		this(maxBytes, DEFAULT_CONCURRENCY_LEVEL);
+	}
+
+	/**
+	 * @param maxBytes
+	 *            The maximum number of bytes occupied by cached tiles.
+	 * @param concurrencyLevel
+	 *            The expected number of concurrently accessing threads. It will be rounded up to the
+	 *            next power of two and determines the number of segments.
+	 */
+	public TileCache(long maxBytes, int concurrencyLevel) {
+		int numSegments = 1;
+		while (numSegments < concurrencyLevel) {
+			numSegments <<= 1;
+		}
+		this.segmentShift = 32 - Integer.numberOfTrailingZeros(numSegments);
+		this.segments = new Segment[numSegments];
+		for (int i = 0; i < numSegments; i++) {
+			this.segments[i] = new Segment(maxBytes / numSegments);
+		}
+	}
+
+	/**
+	 * Combines a tile's zoom interval and id into a cache key.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tile's base zoom interval.
+	 * @param id
+	 *            The tile's id. Ids use at most 56 bits, i.e. base zoom levels up to 28.
+	 * @return The key.
+	 */
+	public static long key(byte baseZoomInterval, long id) {
+		return ((long) baseZoomInterval << 56) | id;
+	}
+
+	private Segment segmentFor(long key) {
+		int h = (int) (key ^ (key >>> 32)) * 0x9e3779b9;
+		return this.segments[this.segmentShift == 32 ? 0 : h >>> this.segmentShift];
+	}
+
+	/**
+	 * @param key
+	 *            The tile's key (see {@link #key(byte, long)}).
+	 * @return The cached data or null if the tile is not cached.
+	 */
+	public byte[] get(long key) {
+		return segmentFor(key).get(key);
+	}
+
+	/**
+	 * @param key
+	 *            The tile's key (see {@link #key(byte, long)}).
+	 * @return The current generation of the key's segment, which has to be passed to
+	 *         {@link #put(long, byte[], long)}.
+	 */
+	public long getGeneration(long key) {
+		return segmentFor(key).getGeneration();
+	}
+
+	/**
+	 * Adds a tile to the cache unless the key's segment has been invalidated since the given
+	 * generation has been obtained. Tiles larger than a segment are not cached.
+	 * 
+	 * @param key
+	 *            The tile's key (see {@link #key(byte, long)}).
+	 * @param data
+	 *            The tile's data. The array must not be modified afterwards.
+	 * @param generation
+	 *            The generation obtained by {@link #getGeneration(long)} before the data has been
+	 *            read.
+	 */
+	public void put(long key, byte[] data, long generation) {
+		segmentFor(key).put(key, data, generation);
+	}
+
+	/**
+	 * Removes a tile from the cache.
+	 * 
+	 * @param key
+	 *            The tile's key (see {@link #key(byte, long)}).
+	 */
+	public void invalidate(long key) {
+		segmentFor(key).invalidate(key);
+	}
+
+	/**
+	 * Removes all tiles from the cache.
+	 */
+	public void invalidateAll() {
+		for (Segment segment : this.segments) {
+			segment.invalidateAll();
+		}
+	}
+
+	/**
+	 * @return The number of requests that have been answered from the cache.
+	 */
+	public long getHitCount() {
+		long sum = 0;
+		for (Segment segment : this.segments) {
+			sum += segment.getHits();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The number of requests for tiles that were not cached.
+	 */
+	public long getMissCount() {
+		long sum = 0;
+		for (Segment segment : this.segments) {
+			sum += segment.getMisses();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The number of tiles that have been removed to make room for others.
+	 */
+	public long getEvictionCount() {
+		long sum = 0;
+		for (Segment segment : this.segments) {
+			sum += segment.getEvictions();
+		}
+		return sum;
+	}
+
+	/**
+	 * @return The number of bytes currently accounted for cached tiles.
+	 */
+	public long getSize() {
+		long sum = 0;
+		for (Segment segment : this.segments) {
+			sum += segment.getSize();
+		}
+		return sum;
+	}
+
+	private static int weight(byte[] data) {
+		return data.length + ENTRY_OVERHEAD;
+	}
+
+	private static int weight(Content content) {
+		return weight(content.data);
+	}
+
+	/**
+	 * Tile data shared by all entries of a segment with equal content.
+	 */
+	private static final class Content {
+		final byte[] data;
+		final int hash;
+		int refs;
+
+		Content(byte[] data) {
+			this.data = data;
+			this.hash = Arrays.hashCode(data);
+		}
+
+		@Override
+		public int hashCode() {
+			return this.hash;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Content)) {
+				return false;
+			}
+			Content other = (Content) obj;
+			return this.hash == other.hash && Arrays.equals(this.data, other.data);
+		}
+	}
+
+	/**
+	 * A segmented LRU guarded by its own monitor. Both maps are kept in access order, so their
+	 * eldest entry is the least recently used one. The areas are sized by the nominal weight of
+	 * their entries, while eviction only considers the data that is actually held.
+	 */
+	private static final class Segment {
+		private final long maxBytes;
+		private final long maxProtectedBytes;
+		private final LinkedHashMap<Long, Content> probation = new LinkedHashMap<Long, Content>(16, 0.75f, true);
+		private final LinkedHashMap<Long, Content> protectedEntries = new LinkedHashMap<Long, Content>(16, 0.75f,
+				true);
+		private final HashMap<Content, Content> contents = new HashMap<Content, Content>();
+		private long probationBytes;
+		private long protectedBytes;
+		/** Bytes of tile data that are accounted for in more than one entry */
+		private long sharedBytes;
+		private long generation;
+		private long hits;
+		private long misses;
+		private long evictions;
+
+		Segment(long maxBytes) {
+			this.maxBytes = maxBytes;
+			this.maxProtectedBytes = (long) (maxBytes * PROTECTED_SHARE);
+		}
+
+		synchronized byte[] get(long key) {
+			Long k = Long.valueOf(key);
+			Content data = this.protectedEntries.get(k);
+			if (data != null) {
+				++this.hits;
+				return data.data;
+			}
+
+			data = this.probation.remove(k);
+			if (data == null) {
+				++this.misses;
+				return null;
+			}
+
+			// Second request: promote to the protected area
+			++this.hits;
+			this.probationBytes -= weight(data);
+			this.protectedEntries.put(k, data);
+			this.protectedBytes += weight(data);
+
+			// Demote the least recently used protected tiles to probation
+			Iterator<Map.Entry<Long, Content>> it = this.protectedEntries.entrySet().iterator();
+			while (this.protectedBytes > this.maxProtectedBytes && it.hasNext()) {
+				Map.Entry<Long, Content> eldest = it.next();
+				it.remove();
+				this.protectedBytes -= weight(eldest.getValue());
+				this.probation.put(eldest.getKey(), eldest.getValue());
+				this.probationBytes += weight(eldest.getValue());
+			}
+
+			return data.data;
+		}
+
+		synchronized long getGeneration() {
+			return this.generation;
+		}
+
+		synchronized void put(long key, byte[] data, long loadGeneration) {
+			if (loadGeneration != this.generation || weight(data) > this.maxBytes) {
+				return;
+			}
+
+			// Acquire before releasing the old content, which may be the same
+			Content content = acquire(data);
+			Long k = Long.valueOf(key);
+			Content old = this.protectedEntries.get(k);
+			if (old != null) {
+				this.protectedEntries.put(k, content);
+				this.protectedBytes += weight(content) - weight(old);
+			} else {
+				old = this.probation.put(k, content);
+				this.probationBytes += weight(content) - (old == null ? 0 : weight(old));
+			}
+			if (old != null) {
+				release(old);
+			}
+
+			evict();
+		}
+
+		private Content acquire(byte[] data) {
+			Content content = new Content(data);
+			Content existing = this.contents.get(content);
+			if (existing == null) {
+				this.contents.put(content, content);
+				existing = content;
+			} else {
+				this.sharedBytes += data.length;
+			}
+			++existing.refs;
+			return existing;
+		}
+
+		private void release(Content content) {
+			if (--content.refs == 0) {
+				this.contents.remove(content);
+			} else {
+				this.sharedBytes -= content.data.length;
+			}
+		}
+
+		private void evict() {
+			Iterator<Map.Entry<Long, Content>> it = this.probation.entrySet().iterator();
+			while (this.probationBytes + this.protectedBytes - this.sharedBytes > this.maxBytes && it.hasNext()) {
+				Content content = it.next().getValue();
+				this.probationBytes -= weight(content);
+				release(content);
+				it.remove();
+				++this.evictions;
+			}
+
+			it = this.protectedEntries.entrySet().iterator();
+			while (this.protectedBytes > this.maxBytes && it.hasNext()) {
+				Content content = it.next().getValue();
+				this.protectedBytes -= weight(content);
+				release(content);
+				it.remove();
+				++this.evictions;
+			}
+		}
+
+		synchronized void invalidate(long key) {
+			++this.generation;
+
+			Long k = Long.valueOf(key);
+			Content old = this.probation.remove(k);
+			if (old != null) {
+				this.probationBytes -= weight(old);
+				release(old);
+			}
+			old = this.protectedEntries.remove(k);
+			if (old != null) {
+				this.protectedBytes -= weight(old);
+				release(old);
+			}
+		}
+
+		synchronized void invalidateAll() {
+			++this.generation;
+			this.probation.clear();
+			this.protectedEntries.clear();
+			this.contents.clear();
+			this.probationBytes = 0;
+			this.protectedBytes = 0;
+			this.sharedBytes = 0;
+		}
+
+		synchronized long getHits() {
+			return this.hits;
+		}
+
+		synchronized long getMisses() {
+			return this.misses;
+		}
+
+		synchronized long getEvictions() {
+			return this.evictions;
+		}
+
+		synchronized long getSize() {
+			return this.probationBytes + this.protectedBytes - this.sharedBytes;
+		}
+	}
+}
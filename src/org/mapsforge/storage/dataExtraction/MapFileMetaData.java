@@ -16,6 +16,8 @@ package org.mapsforge.storage.dataExtraction;
 
 import org.mapsforge.map.writer.model.GeoCoordinate;
 import org.mapsforge.storage.tile.TileDataContainer;
+import org.mapsforge.storage.tile.TileCodec;
+import org.mapsforge.storage.tile.TileIdLayout;
 
 /**
  * This class serves as a container for a map file's meta data.
@@ -47,13 +49,15 @@ public class MapFileMetaData {
 
 	private String comment;
 
-	// POI tag mapping
+	// POI tag mapping, either array may be null until it is needed
 	private int amountOfPOIMappings;
 	private String[] poiMappings;
+	private TagDictionary poiTagDictionary;
 
-	// Ways tag mapping
+	// Ways tag mapping, either array may be null until it is needed
 	private int amountOfWayTagMappings;
 	private String[] wayTagMappings;
+	private TagDictionary wayTagDictionary;
 
 	// Zoom interval configuration
 	private byte amountOfZoomIntervals;
@@ -62,6 +66,11 @@ public class MapFileMetaData {
 	private byte[] maximalZoomLevel;
 	private byte[] tileType;
 
+	private TileIdLayout tileIdLayout = TileIdLayout.ROW_MAJOR;
+	private TileCodec tileCodec = TileCodec.NONE;
+	private boolean tileDeduplication = false;
+	private int hashTreeFactor = 0;
+
 	/**
 	 * Creates a meta data object initialized with default values.
 	 * 
@@ -94,6 +103,53 @@ public class MapFileMetaData {
 	public MapFileMetaData() {
 	}
 
+	/**
+	 * Creates a deep copy of this object.
+	 * 
+	 * @return A meta data object that can be modified without affecting this one.
+	 */
+	public MapFileMetaData copy() {
+		MapFileMetaData ret = new MapFileMetaData();
+		ret.setFileVersion(this.fileVersion);
+		ret.setDateOfCreation(this.dateOfCreation);
+		ret.setBoundingBox(this.minLat, this.minLon, this.maxLat, this.maxLon);
+		ret.setTileSize(this.tileSize);
+		ret.setProjection(this.projection);
+		ret.setLanguagePreference(this.languagePreference);
+		ret.setFlags(this.flags);
+		ret.setMapStartPosition(this.mapStartLat, this.mapStartLon);
+		ret.setStartZoomLevel(this.startZoomLevel);
+		ret.setComment(this.comment);
+
+		// Dictionaries are immutable and can be shared
+		if (this.poiTagDictionary != null) {
+			ret.setPOITagDictionary(this.poiTagDictionary);
+		} else {
+			ret.setAmountOfPOIMappings(this.amountOfPOIMappings);
+			ret.setPOIMappings(this.poiMappings == null ? null : this.poiMappings.clone());
+		}
+		if (this.wayTagDictionary != null) {
+			ret.setWayTagDictionary(this.wayTagDictionary);
+		} else {
+			ret.setAmountOfWayTagMappings(this.amountOfWayTagMappings);
+			ret.setWayTagMappings(this.wayTagMappings == null ? null : this.wayTagMappings.clone());
+		}
+
+		ret.setAmountOfZoomIntervals(this.amountOfZoomIntervals);
+		ret.prepareZoomIntervalConfiguration();
+		for (int i = 0; i < this.amountOfZoomIntervals; i++) {
+			ret.setZoomIntervalConfiguration(i, this.baseZoomLevel[i], this.minimalZoomLevel[i],
+					this.maximalZoomLevel[i], this.tileType[i]);
+		}
+
+		ret.setTileIdLayout(this.tileIdLayout);
+		ret.setTileCodec(this.tileCodec);
+		ret.setTileDeduplication(this.tileDeduplication);
+		ret.setHashTreeFactor(this.hashTreeFactor);
+
+		return ret;
+	}
+
 	/**
 	 * @return true if the map is in debug mode.
 	 */
@@ -117,6 +173,7 @@ public class MapFileMetaData {
 	 */
 	public void preparePOIMappings() {
 		this.poiMappings = new String[this.amountOfPOIMappings];
+		this.poiTagDictionary = null;
 	}
 
 	/**
@@ -124,6 +181,7 @@ public class MapFileMetaData {
 	 */
 	public void prepareWayTagMappings() {
 		this.wayTagMappings = new String[this.amountOfWayTagMappings];
+		this.wayTagDictionary = null;
 	}
 
 	/**
@@ -260,10 +318,18 @@ public class MapFileMetaData {
 	}
 
 	/**
+	 * Returns the POI tag mappings for modification. Use {@link #getPOITagDictionary()} for
+	 * lookups.
+	 * 
 	 * @return the pOIMappings
 	 */
 	public String[] getPOIMappings() {
-		return poiMappings;
+		if (this.poiMappings == null && this.poiTagDictionary != null) {
+			this.poiMappings = this.poiTagDictionary.toArray();
+		}
+		// The caller may change the array
+		this.poiTagDictionary = null;
+		return this.poiMappings;
 	}
 
 	/**
@@ -272,6 +338,33 @@ public class MapFileMetaData {
 	 */
 	public void setPOIMappings(String[] poiMappings) {
 		this.poiMappings = poiMappings;
+		this.poiTagDictionary = null;
+	}
+
+	/**
+	 * Returns the POI tag mappings for lookups in both directions. The dictionary reflects the
+	 * mappings at the time of the call, later changes to the array returned by
+	 * {@link #getPOIMappings()} are not visible in it.
+	 * 
+	 * @return The POI tag dictionary.
+	 */
+	public TagDictionary getPOITagDictionary() {
+		if (this.poiTagDictionary == null) {
+			this.poiTagDictionary = TagDictionary.of(this.poiMappings);
+		}
+		return this.poiTagDictionary;
+	}
+
+	/**
+	 * Replaces the POI tag mappings.
+	 * 
+	 * @param poiTagDictionary
+	 *            The new mappings.
+	 */
+	public void setPOITagDictionary(TagDictionary poiTagDictionary) {
+		this.poiTagDictionary = poiTagDictionary;
+		this.poiMappings = null;
+		this.amountOfPOIMappings = poiTagDictionary.size();
 	}
 
 	/**
@@ -290,10 +383,18 @@ public class MapFileMetaData {
 	}
 
 	/**
+	 * Returns the way tag mappings for modification. Use {@link #getWayTagDictionary()} for
+	 * lookups.
+	 * 
 	 * @return the wayTagMappings
 	 */
 	public String[] getWayTagMappings() {
-		return wayTagMappings;
+		if (this.wayTagMappings == null && this.wayTagDictionary != null) {
+			this.wayTagMappings = this.wayTagDictionary.toArray();
+		}
+		// The caller may change the array
+		this.wayTagDictionary = null;
+		return this.wayTagMappings;
 	}
 
 	/**
@@ -302,6 +403,33 @@ public class MapFileMetaData {
 	 */
 	public void setWayTagMappings(String[] wayTagMappings) {
 		this.wayTagMappings = wayTagMappings;
+		this.wayTagDictionary = null;
+	}
+
+	/**
+	 * Returns the way tag mappings for lookups in both directions. The dictionary reflects the
+	 * mappings at the time of the call, later changes to the array returned by
+	 * {@link #getWayTagMappings()} are not visible in it.
+	 * 
+	 * @return The way tag dictionary.
+	 */
+	public TagDictionary getWayTagDictionary() {
+		if (this.wayTagDictionary == null) {
+			this.wayTagDictionary = TagDictionary.of(this.wayTagMappings);
+		}
+		return this.wayTagDictionary;
+	}
+
+	/**
+	 * Replaces the way tag mappings.
+	 * 
+	 * @param wayTagDictionary
+	 *            The new mappings.
+	 */
+	public void setWayTagDictionary(TagDictionary wayTagDictionary) {
+		this.wayTagDictionary = wayTagDictionary;
+		this.wayTagMappings = null;
+		this.amountOfWayTagMappings = wayTagDictionary.size();
 	}
 
 	public byte getAmountOfZoomIntervals() {
@@ -332,4 +460,92 @@ public class MapFileMetaData {
 		return maximalZoomLevel;
 	}
 
+	/**
+	 * @return The type of the tiles stored in each zoom interval (see {@link TileDataContainer}).
+	 */
+	public byte[] getTileTypes() {
+		return tileType;
+	}
+
+	/**
+	 * @return The mapping between tile coordinates and tile ids.
+	 */
+	public TileIdLayout getTileIdLayout() {
+		return this.tileIdLayout;
+	}
+
+	/**
+	 * Sets the mapping between tile coordinates and tile ids. This only has an effect when a new
+	 * map file is created. An open map file ignores a different layout in
+	 * {@link org.mapsforge.storage.tile.PCTilePersistenceManager#setMetaData(MapFileMetaData)} and
+	 * restores its own layout before writing the metadata.
+	 * 
+	 * @param tileIdLayout
+	 *            The layout.
+	 */
+	public void setTileIdLayout(TileIdLayout tileIdLayout) {
+		this.tileIdLayout = tileIdLayout;
+	}
+
+	/**
+	 * @return The codec used for compressing tiles that are written.
+	 */
+	public TileCodec getTileCodec() {
+		return this.tileCodec;
+	}
+
+	/**
+	 * Sets the codec used for compressing tiles. The codec is stored along with each tile, so it
+	 * can be changed at any time. Tiles that have already been written keep their codec.
+	 * 
+	 * @param tileCodec
+	 *            The codec.
+	 */
+	public void setTileCodec(TileCodec tileCodec) {
+		this.tileCodec = tileCodec;
+	}
+
+	/**
+	 * @return true if identical tiles share a single copy of their data.
+	 */
+	public boolean isTileDeduplication() {
+		return this.tileDeduplication;
+	}
+
+	/**
+	 * Sets whether identical tiles should share a single copy of their data. This only has an
+	 * effect when a new map file is created, as it determines the schema of the tile tables. An
+	 * open map file ignores a different value in
+	 * {@link org.mapsforge.storage.tile.PCTilePersistenceManager#setMetaData(MapFileMetaData)} and
+	 * restores its own value before writing the metadata.
+	 * 
+	 * @param tileDeduplication
+	 *            true for storing each distinct tile data only once.
+	 */
+	public void setTileDeduplication(boolean tileDeduplication) {
+		this.tileDeduplication = tileDeduplication;
+	}
+
+	/**
+	 * @return The number of children of a hash tree node along each axis or 0 if the map file has
+	 *         no hash trees.
+	 */
+	public int getHashTreeFactor() {
+		return this.hashTreeFactor;
+	}
+
+	/**
+	 * Sets the fan-out of the hash trees that are stored in the map file and updated with every
+	 * write. This only has an effect when a new map file is created, use
+	 * {@link org.mapsforge.storage.tile.PCTilePersistenceManager#buildHashTree(int)} for existing
+	 * files.
+	 * 
+	 * @param hashTreeFactor
+	 *            0 for no hash trees or a power of two between 2 and 16. Larger factors mean fewer
+	 *            levels to update per write but more children to read per node.
+	 */
+	public void setHashTreeFactor(int hashTreeFactor) {
+		this.hashTreeFactor = hashTreeFactor;
+	}
+
 }
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.dataExtraction;
+
+import java.lang.ref.WeakReference;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * An immutable mapping between tag ids and tags (e.g. <code>amenity=pub</code>) that can be
+ * looked up in both directions in constant time. Tags are looked up by id in an array, ids by tag
+ * in an open addressing hash table of ids.
+ * 
+ * Dictionaries are obtained using {@link #of(String[])}, which returns the same instance for
+ * equal mappings as long as it is in use. Map files sharing a tag set therefore share a single
+ * dictionary. Instances are thread safe.
+ */
+public final class TagDictionary {
+	/** A dictionary without any tags. */
+	public static final TagDictionary EMPTY = new TagDictionary(new String[0]);
+
+	/** Value returned by {@link #getId(String)} for unknown tags. */
+	public static final int UNKNOWN_TAG = -1;
+
+	// Canonical instances, the values refer to their keys
+	private static final Map<TagDictionary, WeakReference<TagDictionary>> INSTANCES = new WeakHashMap<TagDictionary, WeakReference<TagDictionary>>();
+
+	private final String[] tags;
+	// Table of id + 1 per tag, 0 marks a free slot
+	private final int[] slots;
+	private final int hashCode;
+
+	private TagDictionary(String[] tags) {
+		this.tags = tags;
+		this.hashCode = Arrays.hashCode(tags);
+
+		// At most half of the slots are used, which keeps probe sequences short
+		int capacity = 2;
+		while (capacity < tags.length * 2) {
+			capacity <<= 1;
+		}
+		this.slots = new int[capacity];
+
+		final int mask = capacity - 1;
+		for (int id = 0; id < tags.length; id++) {
+			if (tags[id] == null || getId(tags[id]) != UNKNOWN_TAG) {
+				continue;
+			}
+
+			int slot = spread(tags[id].hashCode()) & mask;
+			while (this.slots[slot] != 0) {
+				slot = (slot + 1) & mask;
+			}
+			this.slots[slot] = id + 1;
+		}
+	}
+
+	private static int spread(int hash) {
+		return hash ^ (hash >>> 16);
+	}
+
+	/**
+	 * Returns the dictionary for the given mapping. The array is not referenced by the dictionary.
+	 * 
+	 * @param tags
+	 *            The tags indexed by their id. Unused ids may be null.
+	 * @return A dictionary that is shared with all other users of the same mapping.
+	 */
+	public static TagDictionary of(String[] tags) {
+		if (tags == null || tags.length == 0) {
+			return EMPTY;
+		}
+
+		final String[] internedTags = new String[tags.length];
+		for (int i = 0; i < tags.length; i++) {
+			internedTags[i] = tags[i] == null ? null : tags[i].intern();
+		}
+		final TagDictionary dictionary = new TagDictionary(internedTags);
+
+		synchronized (INSTANCES) {
+			WeakReference<TagDictionary> reference = INSTANCES.get(dictionary);
+			TagDictionary shared = reference == null ? null : reference.get();
+			if (shared == null) {
+				INSTANCES.put(dictionary, new WeakReference<TagDictionary>(dictionary));
+				shared = dictionary;
+			}
+			return shared;
+		}
+	}
+
+	/**
+	 * @return The number of ids, including unused ones.
+	 */
+	public int size() {
+		return this.tags.length;
+	}
+
+	/**
+	 * @param id
+	 *            The tag's id.
+	 * @return The tag or null if the id is not used.
+	 */
+	public String getTag(int id) {
+		if (id < 0 || id >= this.tags.length) {
+			return null;
+		}
+		return this.tags[id];
+	}
+
+	/**
+	 * @param tag
+	 *            The tag.
+	 * @return The tag's id or {@link #UNKNOWN_TAG}. If a tag occurs more than once, its smallest
+	 *         id is returned.
+	 */
+	public int getId(String tag) {
+		final int mask = this.slots.length - 1;
+		int slot = spread(tag.hashCode()) & mask;
+		int entry;
+		while ((entry = this.slots[slot]) != 0) {
+			final String candidate = this.tags[entry - 1];
+			if (candidate == tag || candidate.equals(tag)) {
+				return entry - 1;
+			}
+			slot = (slot + 1) & mask;
+		}
+		return UNKNOWN_TAG;
+	}
+
+	/**
+	 * @return A copy of the tags indexed by their id.
+	 */
+	public String[] toArray() {
+		return this.tags.clone();
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TagDictionary)) {
+			return false;
+		}
+		TagDictionary other = (TagDictionary) obj;
+		return this.hashCode == other.hashCode && Arrays.equals(this.tags, other.tags);
+	}
+
+	@Override
+	public int hashCode() {
+		return this.hashCode;
+	}
+}
@@ -0,0 +1,315 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.lang.reflect.Method;
+import java.util.Collection;
+import java.util.Queue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs read requests of a {@link TilePersistenceManager} asynchronously. At most
+ * <code>maxInFlight</code> requests are executed at the same time, any further requests are queued
+ * without occupying a thread. This allows a large number of outstanding requests while the
+ * underlying database only sees as many concurrent queries as it has connections.
+ * 
+ * By default requests run on virtual threads if the JVM supports them and on a fixed pool of
+ * daemon threads otherwise.
+ */
+public class AsyncTilePersistenceManager {
+	private final TilePersistenceManager tpm;
+	private final Executor executor;
+	private final ExecutorService ownedExecutor;
+	private final AtomicInteger permits;
+	private final Queue<Runnable> pending = new ConcurrentLinkedQueue<Runnable>();
+	private final AtomicInteger outstanding = new AtomicInteger();
+	private volatile boolean shutdown;
+
+	/**
+	 * Creates a facade that runs as many requests in parallel as the given instance has pooled
+	 * read connections (or one if it has none).
+	 * 
+	 * @param tpm
+	 *            The map database.
+	 */
+	public AsyncTilePersistenceManager(PCTilePersistenceManager tpm) {
+		this(tpm, Math.max(1, tpm.getReaderPoolSize()));
+	}
+
+	/**
+	 * Creates a facade using the default executor.
+	 * 
+	 * @param tpm
+	 *            The map database. It has to be thread safe if <code>maxInFlight</code> is greater
+	 *            than one.
+	 * @param maxInFlight
+	 *            The maximum number of requests executed at the same time.
+	 */
+	public AsyncTilePersistenceManager(TilePersistenceManager tpm, int maxInFlight) {
+		this(tpm, null, maxInFlight);
+	}
+
+	/**
+	 * @param tpm
+	 *            The map database. It has to be thread safe if <code>maxInFlight</code> is greater
+	 *            than one.
+	 * @param executor
+	 *            The executor running the requests or null for the default executor.
+	 * @param maxInFlight
+	 *            The maximum number of requests executed at the same time.
+	 */
+	public AsyncTilePersistenceManager(TilePersistenceManager tpm, Executor executor, int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("maxInFlight must be positive: " + maxInFlight);
+		}
+
+		this.tpm = tpm;
+		this.permits = new AtomicInteger(maxInFlight);
+		if (executor == null) {
+			this.ownedExecutor = createDefaultExecutor(maxInFlight);
+			this.executor = this.ownedExecutor;
+		} else {
+			this.ownedExecutor = null;
+			this.executor = executor;
+		}
+	}
+
+	/**
+	 * Uses <code>Executors.newVirtualThreadPerTaskExecutor()</code> where available. It is looked
+	 * up reflectively so that this class still runs on JVMs without virtual threads.
+	 */
+	private static ExecutorService createDefaultExecutor(int maxInFlight) {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (Exception e) {
+			// No virtual threads, at most maxInFlight tasks run at the same time anyway
+			return Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+				private final AtomicInteger count = new AtomicInteger();
+
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "AsyncTilePersistenceManager-" + this.count.incrementAndGet());
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+	}
+
+	/**
+	 * @return The underlying map database.
+	 */
+	public TilePersistenceManager getTilePersistenceManager() {
+		return this.tpm;
+	}
+
+	private <T> CompletableFuture<T> submit(final Callable<T> request) {
+		final CompletableFuture<T> future = new CompletableFuture<T>();
+		if (this.shutdown) {
+			future.completeExceptionally(new IllegalStateException("shut down"));
+			return future;
+		}
+
+		this.outstanding.incrementAndGet();
+		this.pending.add(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					future.complete(request.call());
+				} catch (Throwable t) {
+					future.completeExceptionally(t);
+				} finally {
+					if (AsyncTilePersistenceManager.this.outstanding.decrementAndGet() == 0
+							&& AsyncTilePersistenceManager.this.shutdown) {
+						shutdownOwnedExecutor();
+					}
+				}
+			}
+		});
+		dispatch();
+
+		return future;
+	}
+
+	/**
+	 * Hands queued requests to the executor as long as permits are available. Called whenever a
+	 * request is queued.
+	 */
+	private void dispatch() {
+		while (!this.pending.isEmpty() && acquirePermit()) {
+			final Runnable request = this.pending.poll();
+			if (request == null) {
+				// Another thread took the last request
+				this.permits.incrementAndGet();
+				continue;
+			}
+
+			try {
+				this.executor.execute(new Runnable() {
+					@Override
+					public void run() {
+						drain(request);
+					}
+				});
+			} catch (RuntimeException e) {
+				drain(request);
+			}
+		}
+	}
+
+	/**
+	 * Runs the given request and then the queued ones until the queue is empty, all on the calling
+	 * thread. Draining in a loop instead of dispatching the next request from a finished one keeps
+	 * the stack flat with executors that run tasks on the submitting thread.
+	 * 
+	 * @param request
+	 *            A request that holds a permit.
+	 */
+	private void drain(Runnable request) {
+		for (;;) {
+			while (request != null) {
+				request.run();
+				request = this.pending.poll();
+			}
+			this.permits.incrementAndGet();
+
+			// A request queued after the last poll may not have found a free permit
+			if (this.pending.isEmpty() || !acquirePermit()) {
+				return;
+			}
+			request = this.pending.poll();
+		}
+	}
+
+	/**
+	 * @return true if a permit has been taken, false if all are in use.
+	 */
+	private boolean acquirePermit() {
+		for (;;) {
+			int available = this.permits.get();
+			if (available == 0) {
+				return false;
+			}
+			if (this.permits.compareAndSet(available, available - 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileData(int, int, byte)
+	 */
+	public CompletableFuture<byte[]> getTileDataAsync(final int xPos, final int yPos, final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return tpm.getTileData(xPos, yPos, baseZoomInterval);
+			}
+		});
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileData(long, byte)
+	 */
+	public CompletableFuture<byte[]> getTileDataAsync(final long id, final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<byte[]>() {
+			@Override
+			public byte[] call() {
+				return tpm.getTileData(id, baseZoomInterval);
+			}
+		});
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileData(long[], byte)
+	 */
+	public CompletableFuture<Collection<TileDataContainer>> getTileDataAsync(final long[] ids,
+			final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<Collection<TileDataContainer>>() {
+			@Override
+			public Collection<TileDataContainer> call() {
+				return tpm.getTileData(ids, baseZoomInterval);
+			}
+		});
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileHash(int, int, byte)
+	 */
+	public CompletableFuture<Long> getTileHashAsync(final int xPos, final int yPos, final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return Long.valueOf(tpm.getTileHash(xPos, yPos, baseZoomInterval));
+			}
+		});
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileHash(long, byte)
+	 */
+	public CompletableFuture<Long> getTileHashAsync(final long id, final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<Long>() {
+			@Override
+			public Long call() {
+				return Long.valueOf(tpm.getTileHash(id, baseZoomInterval));
+			}
+		});
+	}
+
+	/**
+	 * @see TilePersistenceManager#getTileHashes(long[], byte)
+	 */
+	public CompletableFuture<long[]> getTileHashesAsync(final long[] ids, final byte baseZoomInterval) {
+		final TilePersistenceManager tpm = this.tpm;
+		return submit(new Callable<long[]>() {
+			@Override
+			public long[] call() {
+				return tpm.getTileHashes(ids, baseZoomInterval);
+			}
+		});
+	}
+
+	/**
+	 * Rejects all further requests and stops the default executor once the queued requests have
+	 * been executed. An executor passed to the constructor and the underlying map database are left
+	 * open.
+	 */
+	public void shutdown() {
+		this.shutdown = true;
+		if (this.outstanding.get() == 0) {
+			shutdownOwnedExecutor();
+		}
+	}
+
+	private void shutdownOwnedExecutor() {
+		if (this.ownedExecutor != null) {
+			this.ownedExecutor.shutdown();
+		}
+	}
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Map;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Creates a new map database from scratch. Use this class instead of
+ * {@link PCTilePersistenceManager#insertOrUpdateTiles(Collection)} for building whole map files.
+ * 
+ * While loading, the database is opened exclusively without a rollback journal and without syncing
+ * to disk, all tiles are written in a single transaction and the hash indexes and metadata are not
+ * maintained. A crash during the load leaves an unusable file. {@link #finish()} creates the
+ * indexes, writes the metadata and syncs the file, {@link #abort()} deletes the partial file. Tiles are buffered and written in ascending id
+ * order per batch, adding them in ascending id order overall (e.g. row by row for
+ * {@link TileIdLayout#ROW_MAJOR}) makes all inserts appends.
+ * 
+ * Tiles are compressed using the codec of the metadata. There are no compression dictionaries yet,
+ * so {@link TileCodec#DEFLATE_DICTIONARY} compresses using {@link TileCodec#DEFLATE}.
+ * 
+ * This class is not thread safe.
+ */
+public class BulkLoader {
+	private static final int DEFAULT_BATCH_SIZE = 10000;
+	private static final Comparator<TileDataContainer> ID_ORDER = new Comparator<TileDataContainer>() {
+		@Override
+		public int compare(TileDataContainer a, TileDataContainer b) {
+			return a.getId() < b.getId() ? -1 : (a.getId() == b.getId() ? 0 : 1);
+		}
+	};
+
+	private final String path;
+	private final MapFileMetaData mapFileMetaData;
+	private final int batchSize;
+	private final Connection conn;
+	private final Statement stmt;
+	private final TileWriter tileWriter;
+	private final ArrayList<ArrayList<TileDataContainer>> batches;
+
+	// Bounding box of the loaded tiles per zoom interval
+	private final TileBounds[] tileBounds;
+
+	private long tileCount = 0;
+	private boolean finished = false;
+	private boolean closed = false;
+
+	/**
+	 * Creates a new map database using a batch size of 10000 tiles.
+	 * 
+	 * @param path
+	 *            Path of the new map database. The file must not exist or be empty.
+	 * @param mfm
+	 *            The map file's meta data. The bounding box will be set to the area of the loaded
+	 *            tiles.
+	 * @throws SQLException
+	 *             if the database could not be created.
+	 */
+	public BulkLoader(String path, MapFileMetaData mfm) throws SQLException {
+		this(path, mfm, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Creates a new map database.
+	 * 
+	 * @param path
+	 *            Path of the new map database. The file must not exist or be empty.
+	 * @param mfm
+	 *            The map file's meta data. The bounding box will be set to the area of the loaded
+	 *            tiles.
+	 * @param batchSize
+	 *            The number of tiles per zoom interval that are buffered, sorted and written
+	 *            together.
+	 * @throws SQLException
+	 *             if the database could not be created.
+	 */
+	public BulkLoader(String path, MapFileMetaData mfm, int batchSize) throws SQLException {
+		if (new File(path).length() > 0) {
+			throw new IllegalArgumentException("Not an empty database: " + path);
+		}
+
+		this.path = path;
+		this.mapFileMetaData = mfm == null ? MapFileMetaData.createInstanceWithDefaultValues() : mfm;
+		this.batchSize = batchSize;
+
+		try {
+			Class.forName("org.sqlite.JDBC");
+		} catch (ClassNotFoundException e) {
+			throw new SQLException(e.getMessage());
+		}
+
+		this.conn = DriverManager.getConnection("jdbc:sqlite:/" + path);
+		this.stmt = this.conn.createStatement();
+		// Nothing needs to survive a crash during the load
+		this.stmt.execute("PRAGMA journal_mode=OFF;");
+		this.stmt.execute("PRAGMA synchronous=OFF;");
+		this.stmt.execute("PRAGMA locking_mode=EXCLUSIVE;");
+		this.stmt.execute("PRAGMA temp_store=MEMORY;");
+		this.stmt.execute("PRAGMA cache_size=-65536;");
+		this.conn.setAutoCommit(false);
+
+		PCTilePersistenceManager.createTables(this.stmt, this.mapFileMetaData);
+
+		final int amountOfZoomIntervals = this.mapFileMetaData.getAmountOfZoomIntervals();
+		this.tileWriter = new TileWriter(this.conn, amountOfZoomIntervals, this.mapFileMetaData.isTileDeduplication());
+		this.batches = new ArrayList<ArrayList<TileDataContainer>>(amountOfZoomIntervals);
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			this.batches.add(new ArrayList<TileDataContainer>(batchSize));
+		}
+
+		this.tileBounds = new TileBounds[amountOfZoomIntervals];
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			this.tileBounds[i] = new TileBounds();
+		}
+	}
+
+	/**
+	 * Adds a tile to the database. Adding a tile twice keeps the data added last.
+	 * 
+	 * @param rawData
+	 *            The tile's data in binary representation.
+	 * @param xPos
+	 *            The tile's x coordinate in the grid for the given base zoom level.
+	 * @param yPos
+	 *            The tile's y coordinate in the grid for the given base zoom level.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @throws SQLException
+	 *             if writing a batch fails.
+	 */
+	public void addTile(byte[] rawData, int xPos, int yPos, byte baseZoomInterval) throws SQLException {
+		if (this.finished) {
+			throw new IllegalStateException("The bulk load has already been finished");
+		}
+
+		final long id = this.mapFileMetaData.getTileIdLayout().coordinatesToId(xPos, yPos,
+				this.mapFileMetaData.getBaseZoomLevels()[baseZoomInterval]);
+		ArrayList<TileDataContainer> batch = this.batches.get(baseZoomInterval);
+		batch.add(new TileDataContainer(rawData, this.mapFileMetaData.getTileTypes()[baseZoomInterval], id, xPos,
+				yPos, baseZoomInterval));
+
+		this.tileBounds[baseZoomInterval].add(xPos, yPos);
+
+		if (batch.size() >= this.batchSize) {
+			writeBatch(baseZoomInterval);
+		}
+	}
+
+	/**
+	 * Adds a set of tiles to the database. The tiles may belong to different zoom intervals.
+	 * 
+	 * @param tiles
+	 *            The tiles' data and coordinates.
+	 * @throws SQLException
+	 *             if writing a batch fails.
+	 */
+	public void addTiles(Collection<TileDataContainer> tiles) throws SQLException {
+		for (TileDataContainer tile : tiles) {
+			addTile(tile.getData(), tile.getxPos(), tile.getyPos(), (byte) tile.getBaseZoomLevel());
+		}
+	}
+
+	/**
+	 * Writes the buffered tiles of a zoom interval in ascending id order. The transaction is not
+	 * committed.
+	 */
+	private void writeBatch(byte baseZoomInterval) throws SQLException {
+		ArrayList<TileDataContainer> batch = this.batches.get(baseZoomInterval);
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		// A stable sort keeps the tile added last at the end of equal ids
+		Collections.sort(batch, ID_ORDER);
+
+		final boolean deduplicated = this.mapFileMetaData.isTileDeduplication();
+		for (TileDataContainer tile : batch) {
+			final EncodedTile encoded = TileCodec.encodeTile(tile.getData(), this.mapFileMetaData.getTileCodec(), null);
+			this.tileWriter.write(new PreparedTile(baseZoomInterval, tile.getId(), tile.getxPos(), tile.getyPos(),
+					encoded.getData(), encoded.getCodec(), PCTilePersistenceManager.hashTileData(tile.getData()),
+					deduplicated ? TileWriter.digest(tile.getData()) : null));
+		}
+		this.tileWriter.executeBatches();
+
+		this.tileCount += batch.size();
+		batch.clear();
+	}
+
+	/**
+	 * @return The number of tiles written so far, including tiles that have been added more than
+	 *         once.
+	 */
+	public long getTileCount() {
+		return this.tileCount;
+	}
+
+	/**
+	 * @return The map file's meta data. Its bounding box is updated by {@link #finish()}.
+	 */
+	public MapFileMetaData getMetaData() {
+		return this.mapFileMetaData;
+	}
+
+	/**
+	 * Writes all buffered tiles, creates the indexes and hash trees, writes the metadata and syncs
+	 * the database file to disk. The loader cannot be used afterwards. The file can then be opened
+	 * using {@link PCTilePersistenceManager}. If this method fails, {@link #abort()} deletes the
+	 * partial file.
+	 * 
+	 * @throws SQLException
+	 *             if the database could not be completed.
+	 * @throws IOException
+	 *             if the file could not be synced.
+	 */
+	public void finish() throws SQLException, IOException {
+		if (this.finished) {
+			return;
+		}
+		this.finished = true;
+
+		for (byte i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			writeBatch(i);
+		}
+		this.tileWriter.close();
+
+		TileBounds.setBoundingBox(this.mapFileMetaData, this.tileBounds);
+		PCTilePersistenceManager.createHashIndexes(this.stmt, this.mapFileMetaData.getAmountOfZoomIntervals());
+
+		// The hash trees are built at once from the hash indexes
+		HashTree hashTree = new HashTree(this.conn, this.mapFileMetaData);
+		for (byte i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			hashTree.addAll(i);
+		}
+		hashTree.update();
+		hashTree.close();
+
+		Map<String, String> metaData = PCTilePersistenceManager.toMetaDataEntries(this.mapFileMetaData);
+		for (int i = 0; i < this.tileBounds.length; i++) {
+			metaData.put(PCTilePersistenceManager.tileBoundsKey(i), this.tileBounds[i].toString());
+		}
+		PCTilePersistenceManager.writeMetaData(this.conn, metaData);
+		this.conn.commit();
+
+		this.stmt.close();
+		this.conn.close();
+		this.closed = true;
+
+		// SQLite did not sync anything during the load
+		RandomAccessFile file = new RandomAccessFile(this.path, "rw");
+		try {
+			file.getChannel().force(true);
+		} finally {
+			file.close();
+		}
+	}
+
+	/**
+	 * Discards the load if it fails or is cancelled. The database is closed and the partial file is
+	 * deleted, as it cannot be recovered without a rollback journal. This may also be called if
+	 * {@link #finish()} has thrown an exception, but does nothing once the database has been
+	 * completed. The loader cannot be used afterwards.
+	 * 
+	 * @throws IOException
+	 *             if the partial file could not be deleted.
+	 */
+	public void abort() throws IOException {
+		if (this.closed) {
+			return;
+		}
+		this.finished = true;
+		this.closed = true;
+
+		this.tileWriter.close();
+		try {
+			this.stmt.close();
+			this.conn.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+
+		File file = new File(this.path);
+		if (file.exists() && !file.delete()) {
+			throw new IOException("Could not delete " + this.path);
+		}
+	}
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.Adler32;
+
+/**
+ * An immutable snapshot of the compression dictionaries of a map file. Every zoom interval may
+ * have several dictionaries, because tiles keep the dictionary they have been compressed with when
+ * a new one is trained. The dictionary stored last is used for compressing new tiles.
+ */
+class CompressionDictionaries {
+	private final Map<Integer, byte[]>[] dictionaries;
+	private final byte[][] current;
+
+	private CompressionDictionaries(Map<Integer, byte[]>[] dictionaries, byte[][] current) {
+		this.dictionaries = dictionaries;
+		this.current = current;
+	}
+
+	/**
+	 * Creates the table holding the dictionaries.
+	 * 
+	 * @param stmt
+	 *            A statement on the map database.
+	 * @throws SQLException
+	 *             if the table could not be created.
+	 */
+	static void createTable(Statement stmt) throws SQLException {
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS compression_dictionaries "
+				+ "(interval INTEGER, checksum INTEGER, dictionary BLOB, PRIMARY KEY (interval, checksum));");
+	}
+
+	/**
+	 * Reads all dictionaries of a map file.
+	 * 
+	 * @param conn
+	 *            A connection to the map database.
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals of the map file.
+	 * @return The dictionaries.
+	 * @throws SQLException
+	 *             if the dictionaries could not be read.
+	 */
+	static CompressionDictionaries read(Connection conn, int amountOfZoomIntervals) throws SQLException {
+		@SuppressWarnings({ "unchecked", "rawtypes" })
+		final Map<Integer, byte[]>[] dictionaries = new Map[amountOfZoomIntervals];
+		final byte[][] current = new byte[amountOfZoomIntervals][];
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			dictionaries[i] = new HashMap<Integer, byte[]>();
+		}
+
+		Statement stmt = conn.createStatement();
+		try {
+			// Replacing a dictionary gives it a new rowid, so the current one comes last
+			ResultSet rs = stmt.executeQuery("SELECT interval, checksum, dictionary FROM compression_dictionaries "
+					+ "ORDER BY rowid;");
+			try {
+				while (rs.next()) {
+					final int interval = rs.getInt(1);
+					if (interval >= 0 && interval < amountOfZoomIntervals) {
+						current[interval] = rs.getBytes(3);
+						dictionaries[interval].put(Integer.valueOf(rs.getInt(2)), current[interval]);
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+
+		return new CompressionDictionaries(dictionaries, current);
+	}
+
+	/**
+	 * Stores a dictionary as the current one of a zoom interval. The transaction is not committed.
+	 * 
+	 * @param conn
+	 *            A connection to the map database.
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param dictionary
+	 *            The dictionary.
+	 * @return A snapshot that includes the dictionary.
+	 * @throws SQLException
+	 *             if the dictionary could not be written.
+	 */
+	CompressionDictionaries write(Connection conn, byte baseZoomInterval, byte[] dictionary) throws SQLException {
+		final Integer checksum = Integer.valueOf(checksum(dictionary));
+
+		PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO compression_dictionaries "
+				+ "(interval, checksum, dictionary) VALUES (?, ?, ?);");
+		try {
+			ps.setInt(1, baseZoomInterval);
+			ps.setInt(2, checksum.intValue());
+			ps.setBytes(3, dictionary);
+			ps.execute();
+		} finally {
+			ps.close();
+		}
+
+		final Map<Integer, byte[]>[] dictionaries = this.dictionaries.clone();
+		final byte[][] current = this.current.clone();
+		dictionaries[baseZoomInterval] = new HashMap<Integer, byte[]>(dictionaries[baseZoomInterval]);
+		dictionaries[baseZoomInterval].put(checksum, dictionary);
+		current[baseZoomInterval] = dictionary;
+
+		return new CompressionDictionaries(dictionaries, current);
+	}
+
+	/**
+	 * @param dictionary
+	 *            A dictionary.
+	 * @return The checksum by which zlib streams refer to the dictionary.
+	 */
+	static int checksum(byte[] dictionary) {
+		Adler32 adler = new Adler32();
+		adler.update(dictionary);
+		return (int) adler.getValue();
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The dictionary used for compressing new tiles or null if the zoom interval has none.
+	 */
+	byte[] getCurrent(byte baseZoomInterval) {
+		return this.current[baseZoomInterval];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return All dictionaries of the zoom interval by their checksum. The map must not be modified.
+	 */
+	Map<Integer, byte[]> getAll(byte baseZoomInterval) {
+		return this.dictionaries[baseZoomInterval];
+	}
+}
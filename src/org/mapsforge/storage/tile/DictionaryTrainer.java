@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a preset dictionary for Deflate from sample tiles. The samples are cut into segments,
+ * which are scored by how many of the samples contain their 8 byte sequences. The best segments
+ * are chosen greedily, sequences covered by a chosen segment no longer count for the others.
+ */
+class DictionaryTrainer {
+	private static final int GRAM_LENGTH = 8;
+	private static final int SEGMENT_LENGTH = 64;
+	// Sequences are counted in a hash table, collisions only blur the scores
+	private static final int TABLE_BITS = 20;
+	/** The largest dictionary Deflate is able to use. */
+	static final int MAX_DICTIONARY_SIZE = 32 * 1024;
+
+	private DictionaryTrainer() {
+	}
+
+	/**
+	 * A segment of a sample and its score at the time it has been computed.
+	 */
+	private static class Segment implements Comparable<Segment> {
+		final byte[] sample;
+		final int offset;
+		final int length;
+		long score;
+
+		Segment(byte[] sample, int offset, int length) {
+			this.sample = sample;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public int compareTo(Segment other) {
+			return this.score > other.score ? -1 : (this.score == other.score ? 0 : 1);
+		}
+	}
+
+	private static int slot(byte[] data, int offset) {
+		long gram = 0;
+		for (int i = 0; i < GRAM_LENGTH; i++) {
+			gram = (gram << 8) | (data[offset + i] & 0xFF);
+		}
+		return (int) ((gram * 0x9E3779B97F4A7C15L) >>> (64 - TABLE_BITS));
+	}
+
+	/**
+	 * Sums the counts of the sequences of a segment. Only sequences occurring in at least two
+	 * samples are worth being put into the dictionary.
+	 */
+	private static long score(Segment segment, int[] counts) {
+		long score = 0;
+		for (int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; i++) {
+			final int count = counts[slot(segment.sample, i)];
+			if (count > 1) {
+				score += count;
+			}
+		}
+		return score;
+	}
+
+	/**
+	 * @param samples
+	 *            The uncompressed sample tiles.
+	 * @param maxSize
+	 *            The maximum size of the dictionary in bytes.
+	 * @return The dictionary or null if the samples have nothing in common.
+	 */
+	static byte[] train(List<byte[]> samples, int maxSize) {
+		maxSize = Math.min(maxSize, MAX_DICTIONARY_SIZE);
+
+		// Count the number of samples containing each sequence
+		final int[] counts = new int[1 << TABLE_BITS];
+		final int[] lastSample = new int[1 << TABLE_BITS];
+		for (int s = 0; s < samples.size(); s++) {
+			final byte[] sample = samples.get(s);
+			for (int i = 0; i + GRAM_LENGTH <= sample.length; i++) {
+				final int slot = slot(sample, i);
+				if (lastSample[slot] != s + 1) {
+					lastSample[slot] = s + 1;
+					++counts[slot];
+				}
+			}
+		}
+
+		final PriorityQueue<Segment> queue = new PriorityQueue<Segment>();
+		for (byte[] sample : samples) {
+			for (int offset = 0; offset + GRAM_LENGTH <= sample.length; offset += SEGMENT_LENGTH) {
+				Segment segment = new Segment(sample, offset, Math.min(SEGMENT_LENGTH, sample.length - offset));
+				segment.score = score(segment, counts);
+				if (segment.score > 0) {
+					queue.add(segment);
+				}
+			}
+		}
+
+		// Scores only decrease, so a segment whose updated score is still the best can be taken
+		// without rescoring the others
+		final ArrayList<Segment> chosen = new ArrayList<Segment>();
+		int size = 0;
+		Segment segment;
+		while (size < maxSize && (segment = queue.poll()) != null) {
+			final long score = score(segment, counts);
+			if (score == 0) {
+				continue;
+			}
+			if (score < segment.score && !queue.isEmpty() && score < queue.peek().score) {
+				segment.score = score;
+				queue.add(segment);
+				continue;
+			}
+
+			final int length = Math.min(segment.length, maxSize - size);
+			chosen.add(new Segment(segment.sample, segment.offset, length));
+			size += length;
+			for (int i = segment.offset; i + GRAM_LENGTH <= segment.offset + segment.length; i++) {
+				counts[slot(segment.sample, i)] = 0;
+			}
+		}
+
+		if (size == 0) {
+			return null;
+		}
+
+		// Deflate reaches recent bytes with shorter distances, so the best segments go last
+		final byte[] dictionary = new byte[size];
+		int position = size;
+		for (Segment s : chosen) {
+			position -= s.length;
+			System.arraycopy(s.sample, s.offset, dictionary, position, s.length);
+		}
+		return dictionary;
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * A tile's data as it is stored in the database, together with the codec it has been compressed
+ * with.
+ */
+public class EncodedTile {
+	private final TileCodec codec;
+	private final byte[] data;
+
+	/**
+	 * @param codec
+	 *            The codec the data has been encoded with.
+	 * @param data
+	 *            The encoded data.
+	 */
+	public EncodedTile(TileCodec codec, byte[] data) {
+		this.codec = codec;
+		this.data = data;
+	}
+
+	/**
+	 * @return The codec the data has been encoded with.
+	 */
+	public TileCodec getCodec() {
+		return this.codec;
+	}
+
+	/**
+	 * @return The encoded data.
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+}
@@ -0,0 +1,158 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * A {@link TilePersistenceManager} that forwards all calls to another instance. Decorators extend
+ * this class and only override the methods they are interested in.
+ */
+public abstract class ForwardingTilePersistenceManager implements TilePersistenceManager {
+	/** The instance all calls are forwarded to. */
+	protected final TilePersistenceManager delegate;
+
+	/**
+	 * @param delegate
+	 *            The instance all calls are forwarded to.
+	 */
+	protected ForwardingTilePersistenceManager(TilePersistenceManager delegate) {
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, int xPos, int yPos, byte baseZoomInterval) {
+		this.delegate.insertOrUpdateTile(rawData, xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, long id, byte baseZoomInterval) {
+		this.delegate.insertOrUpdateTile(rawData, id, baseZoomInterval);
+	}
+
+	@Override
+	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
+		this.delegate.insertOrUpdateTiles(rawData);
+	}
+
+	@Override
+	public void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
+		this.delegate.deleteTile(xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public void deleteTile(long id, byte baseZoomInterval) {
+		this.delegate.deleteTile(id, baseZoomInterval);
+	}
+
+	@Override
+	public void deleteTiles(long[] ids, byte baseZoomInterval) {
+		this.delegate.deleteTiles(ids, baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
+		return this.delegate.getTileData(xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(long id, byte baseZoomInterval) {
+		return this.delegate.getTileData(id, baseZoomInterval);
+	}
+
+	@Override
+	public Collection<TileDataContainer> getTileData(long[] ids, byte baseZoomInterval) {
+		return this.delegate.getTileData(ids, baseZoomInterval);
+	}
+
+	@Override
+	public void getTilesInRect(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			TileDataHandler handler) {
+		this.delegate.getTilesInRect(minX, minY, maxX, maxY, baseZoomInterval, handler);
+	}
+
+	@Override
+	public void getTilesInBoundingBox(double minLat, double minLon, double maxLat, double maxLon,
+			byte baseZoomInterval, TileDataHandler handler) {
+		this.delegate.getTilesInBoundingBox(minLat, minLon, maxLat, maxLon, baseZoomInterval, handler);
+	}
+
+	@Override
+	public int getTileData(long id, byte baseZoomInterval, ByteBuffer dst) {
+		return this.delegate.getTileData(id, baseZoomInterval, dst);
+	}
+
+	@Override
+	public boolean getTileData(long id, byte baseZoomInterval, OutputStream out) throws IOException {
+		return this.delegate.getTileData(id, baseZoomInterval, out);
+	}
+
+	@Override
+	public InputStream getTileDataStream(long id, byte baseZoomInterval) {
+		return this.delegate.getTileDataStream(id, baseZoomInterval);
+	}
+
+	@Override
+	public long getTileHash(int xPos, int yPos, byte baseZoomInterval) {
+		return this.delegate.getTileHash(xPos, yPos, baseZoomInterval);
+	}
+
+	@Override
+	public long getTileHash(long id, byte baseZoomInterval) {
+		return this.delegate.getTileHash(id, baseZoomInterval);
+	}
+
+	@Override
+	public long[] getTileHashes(long[] ids, byte baseZoomInterval) {
+		return this.delegate.getTileHashes(ids, baseZoomInterval);
+	}
+
+	@Override
+	public void getTileHashes(byte baseZoomInterval, TileHashHandler handler) {
+		this.delegate.getTileHashes(baseZoomInterval, handler);
+	}
+
+	@Override
+	public void getTileHashesInRect(int minX, int minY, int maxX, int maxY, byte baseZoomInterval,
+			TileHashHandler handler) {
+		this.delegate.getTileHashesInRect(minX, minY, maxX, maxY, baseZoomInterval, handler);
+	}
+
+	@Override
+	public MapFileMetaData getMetaData() {
+		return this.delegate.getMetaData();
+	}
+
+	@Override
+	public void setMetaData(MapFileMetaData mapFileMetaData) {
+		this.delegate.setMetaData(mapFileMetaData);
+	}
+
+	@Override
+	public void flush() {
+		this.delegate.flush();
+	}
+
+	@Override
+	public void close() {
+		this.delegate.close();
+	}
+}
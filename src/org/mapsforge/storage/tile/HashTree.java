@@ -0,0 +1,467 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Maintains the hash trees stored in a map database. The tree of a zoom interval spans the whole
+ * tile grid of its base zoom level. Each node at height <code>h</code> covers
+ * <code>factor^h x factor^h</code> tiles, the tiles themselves are at height 0 and the root is the
+ * only node at the top height. A node's hash is computed from the hashes of its children by
+ * {@link #combine(long[])}, so it changes whenever a tile below it changes.
+ * 
+ * Each height is stored in its own table <code>hash_tree_&lt;interval&gt;_&lt;height&gt;</code>,
+ * keyed by the Morton code of the node's coordinates (see {@link TileIdLayout#MORTON}). Since the
+ * fan-out is a power of two, the children of a node form a contiguous range of keys. Nodes without
+ * any tile below them have a hash of 0 and are not stored.
+ * 
+ * Writers record the tiles they change with {@link #add(byte, int, int)} and call
+ * {@link #update()} before committing, which recomputes only the ancestors of those tiles. A tree
+ * must only be used by one thread at a time.
+ */
+class HashTree {
+	/** The largest supported fan-out, a node has at most this number squared children */
+	static final int MAX_FACTOR = 16;
+	/** The height of the tree for base zoom level 28, the largest supported one, and a fan-out of 2 */
+	static final int MAX_HEIGHT = 28;
+
+	private final Connection conn;
+	private final int factor;
+	private final int factorBits;
+	private final byte[] baseZoomLevels;
+	private final TileIdLayout tileIdLayout;
+
+	// Ids of the changed nodes at height 1 of each zoom interval
+	private final long[][] changedNodes;
+	private final int[] changedNodeCount;
+	private final long[] children;
+
+	private final PreparedStatement[] tileHashesStmt;
+	private final PreparedStatement[][] nodesStmt;
+	private final PreparedStatement[][] insertNodeStmt;
+	private final PreparedStatement[][] deleteNodeStmt;
+
+	/**
+	 * Creates a writer for the hash trees of a map file. All statements are prepared on first use.
+	 * 
+	 * @param conn
+	 *            An open connection to the map database.
+	 * @param mapFileMetaData
+	 *            The map file's metadata. If its hash tree factor is 0 the map file has no hash
+	 *            trees and all methods do nothing.
+	 */
+	HashTree(Connection conn, MapFileMetaData mapFileMetaData) {
+		this.conn = conn;
+		this.factor = mapFileMetaData.getHashTreeFactor();
+		this.factorBits = Integer.numberOfTrailingZeros(this.factor);
+		this.baseZoomLevels = mapFileMetaData.getBaseZoomLevels();
+		this.tileIdLayout = mapFileMetaData.getTileIdLayout();
+
+		final int intervals = mapFileMetaData.getAmountOfZoomIntervals();
+		this.changedNodes = new long[intervals][];
+		this.changedNodeCount = new int[intervals];
+		this.children = new long[this.factor * this.factor];
+		this.tileHashesStmt = new PreparedStatement[intervals];
+		this.nodesStmt = new PreparedStatement[intervals][MAX_HEIGHT + 1];
+		this.insertNodeStmt = new PreparedStatement[intervals][MAX_HEIGHT + 1];
+		this.deleteNodeStmt = new PreparedStatement[intervals][MAX_HEIGHT + 1];
+	}
+
+	/**
+	 * @param factor
+	 *            A hash tree factor.
+	 * @return true if the factor is 0 (no hash tree) or a power of two between 2 and
+	 *         {@link #MAX_FACTOR}.
+	 */
+	static boolean isValidFactor(int factor) {
+		return factor == 0 || (factor >= 2 && factor <= MAX_FACTOR && Integer.bitCount(factor) == 1);
+	}
+
+	/**
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The height of the root, at least 1.
+	 */
+	static int height(int factor, byte baseZoomLevel) {
+		final int bits = Integer.numberOfTrailingZeros(factor);
+		return Math.max(1, (baseZoomLevel + bits - 1) / bits);
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param height
+	 *            The height of the nodes, at least 1.
+	 * @return The name of the table holding the nodes.
+	 */
+	static String tableName(int baseZoomInterval, int height) {
+		return "hash_tree_" + baseZoomInterval + "_" + height;
+	}
+
+	/**
+	 * @param x
+	 *            The node's x coordinate.
+	 * @param y
+	 *            The node's y coordinate.
+	 * @return The key of the node in its table.
+	 */
+	static long nodeId(int x, int y) {
+		return TileIdLayout.MORTON.coordinatesToId(x, y, (byte) 0);
+	}
+
+	/**
+	 * Computes the hash of a node. A node whose children all have a hash of 0 has a hash of 0
+	 * itself. Otherwise every child contributes at its position, so that moving or swapping tiles
+	 * changes the hash.
+	 * 
+	 * @param children
+	 *            The hashes of the children, ordered by x and then by y.
+	 * @return The node's hash.
+	 */
+	static long combine(long[] children) {
+		boolean empty = true;
+		long state = XXHash64.start(0);
+		for (long child : children) {
+			empty &= child == 0;
+			state = XXHash64.combine(state, child);
+		}
+		return empty ? 0 : XXHash64.finish(state, children.length);
+	}
+
+	/**
+	 * Creates the node tables of a map file's hash trees.
+	 * 
+	 * @param stmt
+	 *            A statement on the map database.
+	 * @param mapFileMetaData
+	 *            The map file's metadata.
+	 * @throws SQLException
+	 *             if a table could not be created.
+	 */
+	static void createTables(Statement stmt, MapFileMetaData mapFileMetaData) throws SQLException {
+		final int factor = mapFileMetaData.getHashTreeFactor();
+		if (!isValidFactor(factor)) {
+			throw new IllegalArgumentException("invalid hash tree factor: " + factor);
+		}
+		if (factor == 0) {
+			return;
+		}
+
+		for (int i = 0; i < mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			final int height = height(factor, mapFileMetaData.getBaseZoomLevels()[i]);
+			for (int h = 1; h <= height; h++) {
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS " + tableName(i, h)
+						+ " (id INTEGER PRIMARY KEY, hash INTEGER NOT NULL);");
+			}
+		}
+	}
+
+	/**
+	 * Drops the node tables of all hash trees.
+	 * 
+	 * @param stmt
+	 *            A statement on the map database.
+	 * @throws SQLException
+	 *             if a table could not be dropped.
+	 */
+	static void dropTables(Statement stmt) throws SQLException {
+		final ArrayList<String> tables = new ArrayList<String>();
+		ResultSet rs = stmt.executeQuery("SELECT name FROM sqlite_master WHERE type = 'table' "
+				+ "AND name LIKE 'hash\\_tree\\_%' ESCAPE '\\';");
+		try {
+			while (rs.next()) {
+				tables.add(rs.getString(1));
+			}
+		} finally {
+			rs.close();
+		}
+
+		for (String table : tables) {
+			stmt.executeUpdate("DROP TABLE " + table + ";");
+		}
+	}
+
+	/**
+	 * Reads the hashes of a node's children.
+	 * 
+	 * @param rangeStmt
+	 *            For height 1 a statement selecting <code>id, hash</code> of the tiles in an id
+	 *            range, otherwise the same for the nodes one level below.
+	 * @param tileIdLayout
+	 *            The map file's tile id layout.
+	 * @param baseZoomLevel
+	 *            The base zoom level of the tree.
+	 * @param factor
+	 *            The tree's factor.
+	 * @param height
+	 *            The node's height, at least 1.
+	 * @param x
+	 *            The node's x coordinate.
+	 * @param y
+	 *            The node's y coordinate.
+	 * @param children
+	 *            Receives the hashes of the <code>factor * factor</code> children ordered by x and
+	 *            then by y, 0 for children that do not exist.
+	 * @throws SQLException
+	 *             if the children could not be read.
+	 */
+	static void readChildren(PreparedStatement rangeStmt, TileIdLayout tileIdLayout, byte baseZoomLevel,
+			int factor, int height, int x, int y, long[] children) throws SQLException {
+		Arrays.fill(children, 0, factor * factor, 0);
+
+		final int minX = x * factor;
+		final int minY = y * factor;
+		final long[] ranges;
+		final TileIdLayout layout;
+		if (height == 1) {
+			final int maxCoordinate = (int) ((1L << baseZoomLevel) - 1);
+			if (minX > maxCoordinate || minY > maxCoordinate) {
+				return;
+			}
+			ranges = tileIdLayout.idRangesInRect(minX, minY, Math.min(minX + factor - 1, maxCoordinate),
+					Math.min(minY + factor - 1, maxCoordinate), baseZoomLevel);
+			layout = tileIdLayout;
+		} else {
+			final long first = nodeId(x, y) * factor * factor;
+			ranges = new long[] { first, first + factor * factor - 1 };
+			layout = TileIdLayout.MORTON;
+		}
+
+		for (int i = 0; i < ranges.length; i += 2) {
+			rangeStmt.setLong(1, ranges[i]);
+			rangeStmt.setLong(2, ranges[i + 1]);
+			ResultSet rs = rangeStmt.executeQuery();
+			try {
+				while (rs.next()) {
+					final long id = rs.getLong(1);
+					final int childX = layout.idToX(id, baseZoomLevel) - minX;
+					final int childY = layout.idToY(id, baseZoomLevel) - minY;
+					children[childX * factor + childY] = rs.getLong(2);
+				}
+			} finally {
+				rs.close();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the map file has hash trees.
+	 */
+	boolean isEnabled() {
+		return this.factor != 0;
+	}
+
+	/**
+	 * Records a changed tile. Its ancestors are recomputed by the next call to {@link #update()}.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @param xPos
+	 *            The tile's x coordinate.
+	 * @param yPos
+	 *            The tile's y coordinate.
+	 */
+	void add(byte baseZoomInterval, int xPos, int yPos) {
+		if (this.factor == 0) {
+			return;
+		}
+
+		long[] nodes = this.changedNodes[baseZoomInterval];
+		final int n = this.changedNodeCount[baseZoomInterval];
+		if (nodes == null || n == nodes.length) {
+			nodes = nodes == null ? new long[64] : Arrays.copyOf(nodes, 2 * n);
+			this.changedNodes[baseZoomInterval] = nodes;
+		}
+		nodes[n] = nodeId(xPos >>> this.factorBits, yPos >>> this.factorBits);
+		this.changedNodeCount[baseZoomInterval] = n + 1;
+	}
+
+	/**
+	 * Forgets the changes recorded since the last call to {@link #update()}, after the
+	 * transaction they belong to has been rolled back.
+	 */
+	void clear() {
+		Arrays.fill(this.changedNodeCount, 0);
+	}
+
+	/**
+	 * Records all tiles of a zoom interval as changed, which rebuilds its whole tree on the next
+	 * call to {@link #update()}.
+	 * 
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @throws SQLException
+	 *             if the tiles could not be read.
+	 */
+	void addAll(byte baseZoomInterval) throws SQLException {
+		if (this.factor == 0) {
+			return;
+		}
+
+		final byte baseZoomLevel = this.baseZoomLevels[baseZoomInterval];
+		Statement stmt = this.conn.createStatement();
+		try {
+			ResultSet rs = stmt.executeQuery("SELECT id FROM tiles_" + baseZoomInterval + " INDEXED BY "
+					+ TileReader.hashIndexName(baseZoomInterval) + ";");
+			try {
+				while (rs.next()) {
+					final long id = rs.getLong(1);
+					add(baseZoomInterval, this.tileIdLayout.idToX(id, baseZoomLevel),
+							this.tileIdLayout.idToY(id, baseZoomLevel));
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			stmt.close();
+		}
+	}
+
+	/**
+	 * Recomputes the ancestors of all tiles recorded since the last call, one height after the
+	 * other. Each node is computed once, however many of its tiles have changed. Nothing is
+	 * committed.
+	 * 
+	 * @throws SQLException
+	 *             if the tree could not be updated.
+	 */
+	void update() throws SQLException {
+		for (byte i = 0; i < this.changedNodeCount.length; i++) {
+			if (this.changedNodeCount[i] == 0) {
+				continue;
+			}
+
+			long[] nodes = this.changedNodes[i];
+			int n = this.changedNodeCount[i];
+			Arrays.sort(nodes, 0, n);
+
+			final byte baseZoomLevel = this.baseZoomLevels[i];
+			final int height = height(this.factor, baseZoomLevel);
+			for (int h = 1; h <= height; h++) {
+				final PreparedStatement rangeStmt = h == 1 ? getTileHashesStatement(i) : getNodesStatement(i,
+						h - 1);
+				final PreparedStatement insert = getInsertNodeStatement(i, h);
+				final PreparedStatement delete = getDeleteNodeStatement(i, h);
+				insert.clearBatch();
+				delete.clearBatch();
+
+				long previous = -1;
+				for (int k = 0; k < n; k++) {
+					final long id = nodes[k];
+					if (id == previous) {
+						continue;
+					}
+					previous = id;
+
+					readChildren(rangeStmt, this.tileIdLayout, baseZoomLevel, this.factor, h,
+							TileIdLayout.MORTON.idToX(id, baseZoomLevel),
+							TileIdLayout.MORTON.idToY(id, baseZoomLevel), this.children);
+					final long hash = combine(this.children);
+					if (hash == 0) {
+						delete.setLong(1, id);
+						delete.addBatch();
+					} else {
+						insert.setLong(1, id);
+						insert.setLong(2, hash);
+						insert.addBatch();
+					}
+				}
+				// The next height reads these nodes
+				insert.executeBatch();
+				delete.executeBatch();
+
+				// Shifting keeps Morton codes sorted, so duplicates stay adjacent
+				int parents = 0;
+				for (int k = 0; k < n; k++) {
+					final long parent = nodes[k] >>> (2 * this.factorBits);
+					if (parents == 0 || nodes[parents - 1] != parent) {
+						nodes[parents++] = parent;
+					}
+				}
+				n = parents;
+			}
+
+			this.changedNodeCount[i] = 0;
+		}
+	}
+
+	private PreparedStatement getTileHashesStatement(byte baseZoomInterval) throws SQLException {
+		if (this.tileHashesStmt[baseZoomInterval] == null) {
+			this.tileHashesStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT id, hash FROM tiles_"
+					+ baseZoomInterval + " INDEXED BY " + TileReader.hashIndexName(baseZoomInterval)
+					+ " WHERE id BETWEEN ? AND ?;");
+		}
+		return this.tileHashesStmt[baseZoomInterval];
+	}
+
+	private PreparedStatement getNodesStatement(byte baseZoomInterval, int height) throws SQLException {
+		if (this.nodesStmt[baseZoomInterval][height] == null) {
+			this.nodesStmt[baseZoomInterval][height] = this.conn.prepareStatement("SELECT id, hash FROM "
+					+ tableName(baseZoomInterval, height) + " WHERE id BETWEEN ? AND ?;");
+		}
+		return this.nodesStmt[baseZoomInterval][height];
+	}
+
+	private PreparedStatement getInsertNodeStatement(byte baseZoomInterval, int height) throws SQLException {
+		if (this.insertNodeStmt[baseZoomInterval][height] == null) {
+			this.insertNodeStmt[baseZoomInterval][height] = this.conn.prepareStatement("INSERT OR REPLACE INTO "
+					+ tableName(baseZoomInterval, height) + " (id, hash) VALUES (?, ?);");
+		}
+		return this.insertNodeStmt[baseZoomInterval][height];
+	}
+
+	private PreparedStatement getDeleteNodeStatement(byte baseZoomInterval, int height) throws SQLException {
+		if (this.deleteNodeStmt[baseZoomInterval][height] == null) {
+			this.deleteNodeStmt[baseZoomInterval][height] = this.conn.prepareStatement("DELETE FROM "
+					+ tableName(baseZoomInterval, height) + " WHERE id == ?;");
+		}
+		return this.deleteNodeStmt[baseZoomInterval][height];
+	}
+
+	/**
+	 * Closes all statements. The connection stays open.
+	 */
+	void close() {
+		try {
+			closeAll(this.tileHashesStmt);
+			for (int i = 0; i < this.nodesStmt.length; i++) {
+				closeAll(this.nodesStmt[i]);
+				closeAll(this.insertNodeStmt[i]);
+				closeAll(this.deleteNodeStmt[i]);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void closeAll(PreparedStatement[] statements) throws SQLException {
+		for (PreparedStatement ps : statements) {
+			if (ps != null) {
+				ps.close();
+			}
+		}
+	}
+}
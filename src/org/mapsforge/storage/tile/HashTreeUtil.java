@@ -1,8 +1,13 @@
 package org.mapsforge.storage.tile;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RecursiveTask;
 
 import org.mapsforge.core.util.MercatorProjection;
 import org.mapsforge.map.writer.model.GeoCoordinate;
@@ -10,6 +15,11 @@ import org.mapsforge.storage.util.HashedTPM;
 import org.mapsforge.storage.util.Tuple;
 
 public class HashTreeUtil {
+	/** The number of tiles below which a parallel diff walks a subtree without forking */
+	private static final int SEQUENTIAL_TILES = 1 << 16;
+	/** The number of bands per thread a tree is built in, so that uneven bands balance out */
+	private static final int BANDS_PER_THREAD = 4;
+	
 	private static int maxDepth(double sizeX, double sizeY, int factor) {
 		int depth = 1;
 		
@@ -19,20 +29,48 @@ public class HashTreeUtil {
 		return depth;
 	}
 	
-	private static int save_array(int[][] array, int x, int y) {
+	private static long save_array(long[][] array, int x, int y) {
 		return x >= array.length || y >= array[x].length ? 0 : array[x][y];
 	}
 		
+	/**
+	 * Computes the hash of a node from the hashes of its children like
+	 * {@link HashTree#combine(long[])}, so that nodes can be compared with those of a tree stored in
+	 * a map file.
+	 * 
+	 * @param children
+	 *            The hashes of the level below the node.
+	 * @param x
+	 *            The node's x coordinate.
+	 * @param y
+	 *            The node's y coordinate.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @return The node's hash.
+	 */
+	public static long combineChildren(long[][] children, int x, int y, int factor) {
+		boolean empty = true;
+		long state = XXHash64.start(0);
+		for (int n = 0; n < factor; ++n) {
+			int childX = x * factor + n;
+			long[] column = childX < children.length ? children[childX] : null;
+			for (int m = 0; m < factor; ++m) {
+				int childY = y * factor + m;
+				long child = column != null && childY < column.length ? column[childY] : 0;
+				empty &= child == 0;
+				state = XXHash64.combine(state, child);
+			}
+		}
+		return empty ? 0 : XXHash64.finish(state, factor * factor);
+	}
+	
 	public static HashedTPM generateHashTree(String file, int factor) {
-		TilePersistenceManager tpm = new PCTilePersistenceManager(file);
+		ForkJoinPool pool = new ForkJoinPool();
+		TilePersistenceManager tpm = new PCTilePersistenceManager(file, null, pool.getParallelism());
 		
 		final byte bzi  = (byte) (tpm.getMetaData().getBaseZoomLevels().length - 1);
 		final byte bzl = tpm.getMetaData().getBaseZoomLevels()[bzi];
 		
-		// We have to add one as only the tiles added are counted to avoid off-by one
-		final int sizeX = 1 + (int) MercatorProjection.longitudeToTileX(tpm.getMetaData().getMaxLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl);
-		final int sizeY = 1 + (int) MercatorProjection.latitudeToTileY(tpm.getMetaData().getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl);
-		
 		System.out.println("Map Dimensions: ("+
 				MercatorProjection.longitudeToTileX(tpm.getMetaData().getMinLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl)
 				+ " - " +
@@ -42,51 +80,499 @@ public class HashTreeUtil {
 				+" - "+
 				MercatorProjection.latitudeToTileY(tpm.getMetaData().getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl)
 				+")");
-				
-		int[][][] hashes = new int[maxDepth(sizeX, sizeY, factor)][][];
-		hashes[hashes.length - 1] = new int[sizeX][sizeY];
 		
-		for (int x = 0; x < sizeX; ++x)
-			for (int y = 0; y < sizeY; ++y)
-				hashes[hashes.length - 1][x][y] = tpm.getTileHash(x, y, bzi);
+		try {
+			return new HashedTPM(tpm, buildHashTree(tpm, bzi, factor, pool));
+		} finally {
+			pool.shutdown();
+		}
+	}
+	
+	/**
+	 * Builds the hash trees of all zoom intervals of a map file, see
+	 * {@link #buildHashTree(TilePersistenceManager, byte, int, ForkJoinPool)}. The map file is
+	 * opened with one read connection per thread of the pool and stays open.
+	 * 
+	 * @param file
+	 *            The map file.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @param pool
+	 *            The pool to build the trees on.
+	 * @return The tree of each zoom interval, indexed by the interval. All refer to the same
+	 *         persistence manager.
+	 */
+	public static HashedTPM[] generateHashTrees(String file, int factor, ForkJoinPool pool) {
+		TilePersistenceManager tpm = new PCTilePersistenceManager(file, null, pool.getParallelism());
+		
+		HashedTPM[] trees = new HashedTPM[tpm.getMetaData().getAmountOfZoomIntervals()];
+		for (byte bzi = 0; bzi < trees.length; ++bzi)
+			trees[bzi] = new HashedTPM(tpm, buildHashTree(tpm, bzi, factor, pool));
+		return trees;
+	}
+	
+	/**
+	 * Builds the hash tree of a zoom interval over the map's extent. The leaf level is read in
+	 * bands of rows, one scan per band, and every level above is computed in bands of columns,
+	 * all on the given pool.
+	 * 
+	 * @param tpm
+	 *            The map file. It must allow concurrent reads, like a
+	 *            {@link PCTilePersistenceManager} with a reader pool, unless the pool has a single
+	 *            thread.
+	 * @param bzi
+	 *            The zoom interval.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @param pool
+	 *            The pool to build the tree on.
+	 * @return The levels of the tree, the root level first and the tiles last.
+	 */
+	public static long[][][] buildHashTree(TilePersistenceManager tpm, byte bzi, int factor, ForkJoinPool pool) {
+		final byte bzl = tpm.getMetaData().getBaseZoomLevels()[bzi];
+		
+		// We have to add one as only the tiles added are counted to avoid off-by one
+		final int sizeX = 1 + (int) MercatorProjection.longitudeToTileX(tpm.getMetaData().getMaxLon() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl);
+		final int sizeY = 1 + (int) MercatorProjection.latitudeToTileY(tpm.getMetaData().getMinLat() / GeoCoordinate.FACTOR_DOUBLE_TO_INT, bzl);
+		
+		final long[][][] hashes = new long[maxDepth(sizeX, sizeY, factor)][][];
+		hashes[hashes.length - 1] = new long[sizeX][sizeY];
+		
+		// Cells without a tile keep a hash of 0
+		int bandRows = Math.max(1, sizeY / (BANDS_PER_THREAD * pool.getParallelism()));
+		pool.invoke(new LeafBandTask(tpm, bzi, hashes[hashes.length - 1], 0, sizeY, bandRows));
 		
 		for (int i = hashes.length - 2; i >= 0; --i) {
 			int maxX = (int) Math.ceil((double) hashes[i+1].length/factor);
 			int maxY = (int) Math.ceil((double) hashes[i+1][0].length/factor);
-			System.out.println("Creating Level "+i+" with dimensions "+maxX + "x" + maxY);
-			hashes[i] = new int[maxX][maxY];
+			hashes[i] = new long[maxX][maxY];
 			
-			for (int x = 0; x < maxX; ++x) {
-				for (int y = 0; y < maxY; ++y) {
-					int hash = 0;
-					for (int n = 0; n < factor; ++n)
-						for (int m = 0; m < factor; ++m)
-							hash += save_array(hashes[i+1], x * factor + n, y * factor + m);
-					hashes[i][x][y] = hash;
+			int bandColumns = Math.max(1, maxX / (BANDS_PER_THREAD * pool.getParallelism()));
+			pool.invoke(new LevelBandTask(hashes[i + 1], hashes[i], factor, 0, maxX, bandColumns));
+		}
+
+		return hashes;
+	}
+	
+	/**
+	 * Reads the tile hashes of a band of rows into the leaf level, splitting it while it has more
+	 * than the given number of rows.
+	 */
+	private static class LeafBandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final TilePersistenceManager tpm;
+		private final byte bzi;
+		private final long[][] leaves;
+		private final int minY;
+		private final int maxY;
+		private final int bandRows;
+		
+		LeafBandTask(TilePersistenceManager tpm, byte bzi, long[][] leaves, int minY, int maxY, int bandRows) {
+			this.tpm = tpm;
+			this.bzi = bzi;
+			this.leaves = leaves;
+			this.minY = minY;
+			this.maxY = maxY;
+			this.bandRows = bandRows;
+		}
+		
+		@Override
+		protected void compute() {
+			if (this.maxY - this.minY > this.bandRows) {
+				int splitY = (this.minY + this.maxY) >>> 1;
+				invokeAll(new LeafBandTask(this.tpm, this.bzi, this.leaves, this.minY, splitY, this.bandRows),
+						new LeafBandTask(this.tpm, this.bzi, this.leaves, splitY, this.maxY, this.bandRows));
+				return;
+			}
+			
+			// Bands write disjoint cells, so no synchronization is needed
+			this.tpm.getTileHashesInRect(0, this.minY, this.leaves.length - 1, this.maxY - 1, this.bzi, new TileHashHandler() {
+				@Override
+				public void handleTileHash(long id, int xPos, int yPos, long hash) {
+					LeafBandTask.this.leaves[xPos][yPos] = hash;
 				}
+			});
+		}
+	}
+	
+	/**
+	 * Computes a band of columns of a level from the level below, splitting it while it has more
+	 * than the given number of columns.
+	 */
+	private static class LevelBandTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		
+		private final long[][] children;
+		private final long[][] level;
+		private final int factor;
+		private final int minX;
+		private final int maxX;
+		private final int bandColumns;
+		
+		LevelBandTask(long[][] children, long[][] level, int factor, int minX, int maxX, int bandColumns) {
+			this.children = children;
+			this.level = level;
+			this.factor = factor;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.bandColumns = bandColumns;
+		}
+		
+		@Override
+		protected void compute() {
+			if (this.maxX - this.minX > this.bandColumns) {
+				int splitX = (this.minX + this.maxX) >>> 1;
+				invokeAll(new LevelBandTask(this.children, this.level, this.factor, this.minX, splitX, this.bandColumns),
+						new LevelBandTask(this.children, this.level, this.factor, splitX, this.maxX, this.bandColumns));
+				return;
 			}
+			
+			for (int x = this.minX; x < this.maxX; ++x)
+				for (int y = 0; y < this.level[x].length; ++y)
+					this.level[x][y] = combineChildren(this.children, x, y, this.factor);
+		}
+	}
+	
+	/**
+	 * Like {@link #generateHashTree(String, int)}, but builds a {@link SparseHashTree} over the
+	 * whole grid that only allocates memory where the map has tiles, and closes the map file.
+	 * 
+	 * @param file
+	 *            The map file.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @return The tree of the map file's last zoom interval.
+	 */
+	public static SparseHashTree generateSparseHashTree(String file, int factor) {
+		TilePersistenceManager tpm = new PCTilePersistenceManager(file);
+		try {
+			final byte bzi = (byte) (tpm.getMetaData().getBaseZoomLevels().length - 1);
+			return SparseHashTree.build(tpm, bzi, factor);
+		} finally {
+			tpm.close();
 		}
-
-		return new HashedTPM(tpm, hashes);
 	}
 	
-	public static List<Tuple<Integer, Integer>> findModifiedTiles(int[][][] a, int[][][] b, int startX, int startY, int z, int factor) {
+	/**
+	 * Lists the tiles whose hashes differ below the given nodes. Both trees must have the same
+	 * height, nodes missing from one of them are treated as empty.
+	 * 
+	 * This boxes every coordinate, use
+	 * {@link #findModifiedTiles(long[][][], long[][][], int, ModifiedTileHandler)} or
+	 * {@link #findModifiedTiles(long[][][], long[][][], int)} for large trees.
+	 * 
+	 * @param a
+	 *            The first tree, as created by {@link #generateHashTree(String, int)}.
+	 * @param b
+	 *            The second tree.
+	 * @param startX
+	 *            The x coordinate of the first node to compare.
+	 * @param startY
+	 *            The y coordinate of the first node to compare.
+	 * @param z
+	 *            The level of the nodes to compare, 0 is the top of the tree.
+	 * @param factor
+	 *            The number of children of a node along each axis. The nodes compared are the
+	 *            <code>factor x factor</code> nodes starting at <code>(startX, startY)</code>.
+	 * @return The coordinates of the modified tiles, or null if the trees have different heights.
+	 */
+	public static List<Tuple<Integer, Integer>> findModifiedTiles(long[][][] a, long[][][] b, int startX, int startY, int z, int factor) {
 		if (a.length != b.length)
 			return null;
 		
-		List<Tuple<Integer, Integer>> modified = new LinkedList<Tuple<Integer, Integer>>();
-		
-		if(z >= a.length)
+		final List<Tuple<Integer, Integer>> modified = new ArrayList<Tuple<Integer, Integer>>();
+		if (z >= a.length) {
+			// The nodes are below the tiles, report the tile they belong to like before
 			modified.add(new Tuple<Integer, Integer>(startX / factor, startY / factor));
-		else
-			for (int x = startX; x < startX + factor && x < a[z].length; ++x)
-				for (int y = startY; y < startY + factor && y < a[z][x].length; ++y)
-					if (a[z][x][y] != b[z][x][y])
-						modified.addAll(findModifiedTiles(a, b, x * factor, y * factor, z+1, factor));
+			return modified;
+		}
+		
+		ModifiedTileHandler handler = new ModifiedTileHandler() {
+			@Override
+			public void handleModifiedTile(int xPos, int yPos, long oldHash, long newHash) {
+				modified.add(new Tuple<Integer, Integer>(xPos, yPos));
+			}
+		};
+		int[] xs = new int[a.length];
+		int[] ys = new int[a.length];
+		for (int x = startX; x < startX + factor; ++x)
+			for (int y = startY; y < startY + factor; ++y)
+				walk(a, b, factor, z, x, y, xs, ys, handler);
 		
 		return modified;
 	}
+	
+	/**
+	 * Reports every tile whose hash differs between two trees. The trees are walked depth-first
+	 * without recursion and without allocating per node, tiles are reported in the order of the
+	 * old recursive search: by x, then y within each node.
+	 * 
+	 * @param a
+	 *            The first tree, as created by {@link #generateHashTree(String, int)}.
+	 * @param b
+	 *            The second tree, with the same height and factor.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @param handler
+	 *            Receives the modified tiles.
+	 * @throws IllegalArgumentException
+	 *             if the trees have different heights.
+	 */
+	public static void findModifiedTiles(long[][][] a, long[][][] b, int factor, ModifiedTileHandler handler) {
+		checkHeights(a, b);
+		if (a.length == 0)
+			return;
+		
+		int[] xs = new int[a.length];
+		int[] ys = new int[a.length];
+		int width = Math.max(a[0].length, b[0].length);
+		int height = Math.max(height(a[0]), height(b[0]));
+		for (int x = 0; x < width; ++x)
+			for (int y = 0; y < height; ++y)
+				walk(a, b, factor, 0, x, y, xs, ys, handler);
+	}
+	
+	/**
+	 * Like {@link #findModifiedTiles(long[][][], long[][][], int, ModifiedTileHandler)}, but
+	 * returns the tiles packed into one array.
+	 * 
+	 * @param a
+	 *            The first tree.
+	 * @param b
+	 *            The second tree, with the same height and factor.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @return The coordinates of the modified tiles, packed by {@link #packCoordinates(int, int)}.
+	 * @throws IllegalArgumentException
+	 *             if the trees have different heights.
+	 */
+	public static long[] findModifiedTiles(long[][][] a, long[][][] b, int factor) {
+		CoordinateBuffer modified = new CoordinateBuffer();
+		findModifiedTiles(a, b, factor, modified);
+		return modified.toArray();
+	}
+	
+	/**
+	 * Like {@link #findModifiedTiles(long[][][], long[][][], int)}, but splits the walk across
+	 * subtrees on the given pool. The result is the same, including its order.
+	 * 
+	 * @param a
+	 *            The first tree.
+	 * @param b
+	 *            The second tree, with the same height and factor.
+	 * @param factor
+	 *            The number of children of a node along each axis.
+	 * @param pool
+	 *            The pool to run on.
+	 * @return The coordinates of the modified tiles, packed by {@link #packCoordinates(int, int)}.
+	 * @throws IllegalArgumentException
+	 *             if the trees have different heights.
+	 */
+	public static long[] findModifiedTiles(long[][][] a, long[][][] b, int factor, ForkJoinPool pool) {
+		checkHeights(a, b);
+		if (a.length == 0)
+			return new long[0];
+		
+		int width = Math.max(a[0].length, b[0].length);
+		int height = Math.max(height(a[0]), height(b[0]));
+		return pool.invoke(new DiffTask(a, b, factor, 0, 0, width, 0, height)).toArray();
+	}
+	
+	/**
+	 * @param x
+	 *            A tile's x coordinate.
+	 * @param y
+	 *            A tile's y coordinate.
+	 * @return Both coordinates in one value, see {@link #unpackX(long)} and {@link #unpackY(long)}.
+	 */
+	public static long packCoordinates(int x, int y) {
+		return (long) x << 32 | y & 0xFFFFFFFFL;
+	}
+	
+	/**
+	 * @param coordinates
+	 *            Coordinates packed by {@link #packCoordinates(int, int)}.
+	 * @return The x coordinate.
+	 */
+	public static int unpackX(long coordinates) {
+		return (int) (coordinates >>> 32);
+	}
+	
+	/**
+	 * @param coordinates
+	 *            Coordinates packed by {@link #packCoordinates(int, int)}.
+	 * @return The y coordinate.
+	 */
+	public static int unpackY(long coordinates) {
+		return (int) coordinates;
+	}
+	
+	private static void checkHeights(long[][][] a, long[][][] b) {
+		if (a.length != b.length)
+			throw new IllegalArgumentException("The trees have different heights: " + a.length + " and " + b.length);
+	}
+	
+	private static int height(long[][] level) {
+		return level.length == 0 ? 0 : level[0].length;
+	}
+	
+	/**
+	 * Walks the subtree of one node depth-first. The current path is kept in <code>xs</code> and
+	 * <code>ys</code>, a node's children are visited only if its hashes differ.
+	 */
+	private static void walk(long[][][] a, long[][][] b, int factor, int z, int x, int y, int[] xs, int[] ys,
+			ModifiedTileHandler handler) {
+		final int leaf = a.length - 1;
+		final int top = z;
+		xs[z] = x;
+		ys[z] = y;
+		boolean differs = save_array(a[z], x, y) != save_array(b[z], x, y);
 		
+		while (true) {
+			if (differs) {
+				if (z == leaf) {
+					handler.handleModifiedTile(xs[z], ys[z], save_array(a[z], xs[z], ys[z]), save_array(b[z], xs[z], ys[z]));
+				} else {
+					++z;
+					xs[z] = xs[z - 1] * factor;
+					ys[z] = ys[z - 1] * factor;
+					differs = save_array(a[z], xs[z], ys[z]) != save_array(b[z], xs[z], ys[z]);
+					continue;
+				}
+			}
+			
+			// Go to the next sibling, or to the parent's next sibling once all have been visited
+			while (true) {
+				if (z == top)
+					return;
+				if (++ys[z] == (ys[z - 1] + 1) * factor) {
+					ys[z] = ys[z - 1] * factor;
+					if (++xs[z] == (xs[z - 1] + 1) * factor) {
+						--z;
+						continue;
+					}
+				}
+				break;
+			}
+			differs = save_array(a[z], xs[z], ys[z]) != save_array(b[z], xs[z], ys[z]);
+		}
+	}
+	
+	/**
+	 * A growable array of packed tile coordinates. Buffers filled by different tasks are chained
+	 * and only copied once, by {@link #toArray()}.
+	 */
+	private static class CoordinateBuffer implements ModifiedTileHandler {
+		private long[] coordinates = new long[64];
+		private int size = 0;
+		private CoordinateBuffer next = null;
+		private CoordinateBuffer last = this;
+		
+		@Override
+		public void handleModifiedTile(int xPos, int yPos, long oldHash, long newHash) {
+			if (this.size == this.coordinates.length)
+				this.coordinates = Arrays.copyOf(this.coordinates, 2 * this.size);
+			this.coordinates[this.size++] = packCoordinates(xPos, yPos);
+		}
+		
+		void append(CoordinateBuffer other) {
+			this.last.next = other;
+			this.last = other.last;
+		}
+		
+		long[] toArray() {
+			int total = 0;
+			for (CoordinateBuffer buffer = this; buffer != null; buffer = buffer.next)
+				total += buffer.size;
+			
+			long[] result = new long[total];
+			int offset = 0;
+			for (CoordinateBuffer buffer = this; buffer != null; buffer = buffer.next) {
+				System.arraycopy(buffer.coordinates, 0, result, offset, buffer.size);
+				offset += buffer.size;
+			}
+			return result;
+		}
+	}
+	
+	/**
+	 * Compares a rectangle of nodes on one level. Rectangles are halved until they hold a single
+	 * node, whose children are compared by a new task if the node differs. Subtrees covering at
+	 * most {@link #SEQUENTIAL_TILES} tiles are walked without forking. Results are chained in the
+	 * order of the sequential walk.
+	 */
+	private static class DiffTask extends RecursiveTask<CoordinateBuffer> {
+		private static final long serialVersionUID = 1L;
+		
+		private final long[][][] a;
+		private final long[][][] b;
+		private final int factor;
+		private final int z;
+		private final int minX;
+		private final int maxX;
+		private final int minY;
+		private final int maxY;
+		
+		DiffTask(long[][][] a, long[][][] b, int factor, int z, int minX, int maxX, int minY, int maxY) {
+			this.a = a;
+			this.b = b;
+			this.factor = factor;
+			this.z = z;
+			this.minX = minX;
+			this.maxX = maxX;
+			this.minY = minY;
+			this.maxY = maxY;
+		}
+		
+		@Override
+		protected CoordinateBuffer compute() {
+			// Clip to the nodes that exist in at least one of the trees
+			final int width = Math.min(this.maxX, Math.max(this.a[this.z].length, this.b[this.z].length)) - this.minX;
+			final int height = Math.min(this.maxY, Math.max(height(this.a[this.z]), height(this.b[this.z]))) - this.minY;
+			if (width <= 0 || height <= 0)
+				return new CoordinateBuffer();
+			
+			long tiles = (long) width * height;
+			for (int level = this.z; level < this.a.length - 1 && tiles <= SEQUENTIAL_TILES; ++level)
+				tiles *= this.factor * this.factor;
+			
+			if (tiles <= SEQUENTIAL_TILES) {
+				CoordinateBuffer modified = new CoordinateBuffer();
+				int[] xs = new int[this.a.length];
+				int[] ys = new int[this.a.length];
+				for (int x = this.minX; x < this.minX + width; ++x)
+					for (int y = this.minY; y < this.minY + height; ++y)
+						walk(this.a, this.b, this.factor, this.z, x, y, xs, ys, modified);
+				return modified;
+			}
+			
+			if (width == 1 && height == 1) {
+				if (save_array(this.a[this.z], this.minX, this.minY) == save_array(this.b[this.z], this.minX, this.minY))
+					return new CoordinateBuffer();
+				return new DiffTask(this.a, this.b, this.factor, this.z + 1, this.minX * this.factor, (this.minX + 1)
+						* this.factor, this.minY * this.factor, (this.minY + 1) * this.factor).compute();
+			}
+			
+			// Splitting x first keeps the order of the sequential walk
+			DiffTask first;
+			DiffTask second;
+			if (width > 1) {
+				int splitX = this.minX + width / 2;
+				first = new DiffTask(this.a, this.b, this.factor, this.z, this.minX, splitX, this.minY, this.minY + height);
+				second = new DiffTask(this.a, this.b, this.factor, this.z, splitX, this.minX + width, this.minY, this.minY + height);
+			} else {
+				int splitY = this.minY + height / 2;
+				first = new DiffTask(this.a, this.b, this.factor, this.z, this.minX, this.minX + 1, this.minY, splitY);
+				second = new DiffTask(this.a, this.b, this.factor, this.z, this.minX, this.minX + 1, splitY, this.minY + height);
+			}
+			second.fork();
+			CoordinateBuffer modified = first.compute();
+			modified.append(second.join());
+			return modified;
+		}
+	}
+	
 	public static void generateTestFile(String file, int sizeX, int sizeY, boolean changeTile) {
 		TilePersistenceManager tpm = new PCTilePersistenceManager(file);
 		LinkedList<TileDataContainer> tdcll = new LinkedList<TileDataContainer>();
@@ -0,0 +1,260 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Compression in the LZ4 block format. A compressed block is preceded by the length of the
+ * uncompressed data as a 4 byte big endian integer. The compressor is a simple greedy one, which
+ * finds matches using a hash table of 4 byte sequences.
+ */
+class Lz4Block {
+	private static final int MIN_MATCH = 4;
+	// The last 5 bytes are always literals, the last match starts at least 12 bytes before the end
+	private static final int LAST_LITERALS = 5;
+	private static final int MF_LIMIT = 12;
+	private static final int MAX_OFFSET = 65535;
+	private static final int HASH_LOG = 12;
+	private static final int HEADER_SIZE = 4;
+
+	/**
+	 * The hash table of each thread. Entries are stored relative to a base that grows with every
+	 * call, so that entries of earlier calls are recognized as stale without clearing the table.
+	 */
+	private static final ThreadLocal<HashTable> HASH_TABLE = new ThreadLocal<HashTable>() {
+		@Override
+		protected HashTable initialValue() {
+			return new HashTable();
+		}
+	};
+
+	private static class HashTable {
+		final int[] positions = new int[1 << HASH_LOG];
+		int base = 0;
+
+		/**
+		 * @return The base for a call compressing <code>n</code> bytes.
+		 */
+		int nextBase(int n) {
+			if (this.base > Integer.MAX_VALUE - n - 1) {
+				Arrays.fill(this.positions, 0);
+				this.base = 0;
+			}
+			final int result = this.base + 1;
+			this.base = result + n;
+			return result;
+		}
+	}
+
+	private Lz4Block() {
+	}
+
+	private static int readInt(byte[] b, int i) {
+		return (b[i] & 0xFF) | (b[i + 1] & 0xFF) << 8 | (b[i + 2] & 0xFF) << 16 | (b[i + 3] & 0xFF) << 24;
+	}
+
+	private static int hash(int sequence) {
+		return (sequence * -1640531535) >>> (32 - HASH_LOG);
+	}
+
+	/**
+	 * @param src
+	 *            The data.
+	 * @param maxLength
+	 *            The maximum length of the compressed data including the header.
+	 * @return The compressed data or null if it would be longer than <code>maxLength</code>.
+	 */
+	static byte[] compress(byte[] src, int maxLength) {
+		final int n = src.length;
+		if (maxLength < HEADER_SIZE + 1) {
+			return null;
+		}
+		final byte[] dst = new byte[Math.min(maxLength, HEADER_SIZE + n + n / 255 + 16)];
+		dst[0] = (byte) (n >>> 24);
+		dst[1] = (byte) (n >>> 16);
+		dst[2] = (byte) (n >>> 8);
+		dst[3] = (byte) n;
+
+		int d = HEADER_SIZE;
+		int anchor = 0;
+		if (n > MF_LIMIT) {
+			final HashTable hashTable = HASH_TABLE.get();
+			final int[] table = hashTable.positions;
+			final int base = hashTable.nextBase(n);
+			final int matchLimit = n - LAST_LITERALS;
+			final int searchLimit = n - MF_LIMIT;
+
+			int ip = 0;
+			while (ip < searchLimit) {
+				final int sequence = readInt(src, ip);
+				final int h = hash(sequence);
+				int ref = table[h] - base;
+				table[h] = ip + base;
+				if (ref < 0 || ip - ref > MAX_OFFSET || readInt(src, ref) != sequence) {
+					++ip;
+					continue;
+				}
+
+				// Extend the match in both directions
+				while (ip > anchor && ref > 0 && src[ip - 1] == src[ref - 1]) {
+					--ip;
+					--ref;
+				}
+				int matchLength = MIN_MATCH;
+				while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+					++matchLength;
+				}
+
+				d = writeSequence(src, anchor, ip - anchor, ip - ref, matchLength, dst, d);
+				if (d < 0) {
+					return null;
+				}
+				ip += matchLength;
+				anchor = ip;
+			}
+		}
+
+		d = writeSequence(src, anchor, n - anchor, 0, 0, dst, d);
+		if (d < 0) {
+			return null;
+		}
+
+		final byte[] result = new byte[d];
+		System.arraycopy(dst, 0, result, 0, d);
+		return result;
+	}
+
+	/**
+	 * Writes a sequence of literals followed by a match. A match length of 0 writes the final
+	 * sequence, which consists of literals only.
+	 * 
+	 * @return The new position in <code>dst</code> or -1 if <code>dst</code> is too small.
+	 */
+	private static int writeSequence(byte[] src, int literalStart, int literalLength, int offset,
+			int matchLength, byte[] dst, int d) {
+		final int matchCode = matchLength == 0 ? 0 : matchLength - MIN_MATCH;
+		if (d + 1 + literalLength / 255 + 1 + literalLength + 2 + matchCode / 255 + 1 > dst.length
+				&& (matchLength != 0 || d + 1 + literalLength / 255 + 1 + literalLength > dst.length)) {
+			return -1;
+		}
+
+		final int tokenPosition = d++;
+		int token = Math.min(literalLength, 15) << 4;
+		d = writeLength(literalLength, dst, d);
+		System.arraycopy(src, literalStart, dst, d, literalLength);
+		d += literalLength;
+
+		if (matchLength != 0) {
+			dst[d++] = (byte) offset;
+			dst[d++] = (byte) (offset >>> 8);
+			token |= Math.min(matchCode, 15);
+			d = writeLength(matchCode, dst, d);
+		}
+
+		dst[tokenPosition] = (byte) token;
+		return d;
+	}
+
+	/**
+	 * Writes the continuation bytes of a length whose token nibble is 15.
+	 */
+	private static int writeLength(int length, byte[] dst, int d) {
+		if (length >= 15) {
+			length -= 15;
+			while (length >= 255) {
+				dst[d++] = (byte) 255;
+				length -= 255;
+			}
+			dst[d++] = (byte) length;
+		}
+		return d;
+	}
+
+	/**
+	 * @param src
+	 *            Data written by {@link #compress(byte[], int)}.
+	 * @return The uncompressed data.
+	 * @throws IOException
+	 *             if the data is corrupt.
+	 */
+	static byte[] decompress(byte[] src) throws IOException {
+		try {
+			final int n = (src[0] & 0xFF) << 24 | (src[1] & 0xFF) << 16 | (src[2] & 0xFF) << 8 | (src[3] & 0xFF);
+			// A byte of a block expands to at most 255 bytes, so larger lengths are corrupt
+			if (n < 0 || n > 255L * src.length) {
+				throw new IOException("Corrupt LZ4 block: invalid length " + n);
+			}
+			final byte[] dst = new byte[n];
+
+			int s = HEADER_SIZE;
+			int d = 0;
+			while (true) {
+				final int token = src[s++] & 0xFF;
+
+				int literalLength = token >>> 4;
+				if (literalLength == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						literalLength += b;
+					} while (b == 255);
+				}
+				System.arraycopy(src, s, dst, d, literalLength);
+				s += literalLength;
+				d += literalLength;
+
+				// The last sequence has no match
+				if (s == src.length) {
+					break;
+				}
+
+				final int offset = (src[s] & 0xFF) | (src[s + 1] & 0xFF) << 8;
+				s += 2;
+				int matchLength = token & 0x0F;
+				if (matchLength == 15) {
+					int b;
+					do {
+						b = src[s++] & 0xFF;
+						matchLength += b;
+					} while (b == 255);
+				}
+				matchLength += MIN_MATCH;
+
+				int ref = d - offset;
+				if (offset == 0 || ref < 0) {
+					throw new IOException("Corrupt LZ4 block: invalid offset");
+				}
+				if (offset >= matchLength) {
+					System.arraycopy(dst, ref, dst, d, matchLength);
+					d += matchLength;
+				} else {
+					// Overlapping matches repeat the last bytes
+					for (int i = 0; i < matchLength; i++) {
+						dst[d++] = dst[ref++];
+					}
+				}
+			}
+
+			if (d != n) {
+				throw new IOException("Corrupt LZ4 block: length mismatch");
+			}
+			return dst;
+		} catch (IndexOutOfBoundsException e) {
+			throw new IOException("Corrupt LZ4 block: truncated");
+		}
+	}
+}
@@ -0,0 +1,423 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Creates and applies patches that turn one version of a map file into another. A patch holds the
+ * data of every tile that has been added or changed, the coordinates of every tile that has been
+ * removed, and the descriptive metadata if it has changed, so its size depends on the changes only.
+ * 
+ * The changed tiles are found by comparing the hash trees of both map files. The trees stored in
+ * the map files are used if both have them with the same factor, otherwise trees are built from
+ * the tile hashes in memory (see {@link SparseHashTree}). Tiles are written with their raw data and
+ * encoded with the target's codec when the patch is applied, so both map files may use different
+ * codecs and tile id layouts. Everything after the magic number is deflated.
+ * 
+ * The format is: the magic number, the base zoom level of each zoom interval, the metadata if it
+ * has changed, a record for each changed tile, an end marker and the number of records.
+ */
+public final class MapPatch {
+	private static final int MAGIC = 0x4d505431; // "MPT1"
+	private static final byte RECORD_END = 0;
+	private static final byte RECORD_UPSERT = 1;
+	private static final byte RECORD_DELETE = 2;
+	/** The factor of the trees built when the map files do not store compatible ones */
+	private static final int TREE_FACTOR = 4;
+	/** The number of tiles read from the new map file at once */
+	private static final int READ_BATCH_SIZE = 1024;
+	/** The metadata entries a patch carries, see {@link #writeMetaData(DataOutputStream, MapFileMetaData)} */
+	private static final List<String> DESCRIPTIVE_KEYS = Arrays.asList("version", "dateOfCreation", "tileSize",
+			"projection", "languagePreference", "debugInformationFlag", "mapPositionExistsFlag",
+			"startZoomLevelExistsFlag", "mapStartLat", "mapStartLon", "startZoomLevel", "comment");
+
+	private MapPatch() {
+	}
+
+	/**
+	 * Writes a patch that turns one map file into another. Both must have the same zoom interval
+	 * configuration.
+	 * 
+	 * @param oldMap
+	 *            The map file the patch will be applied to.
+	 * @param newMap
+	 *            The map file the patch will produce.
+	 * @param out
+	 *            The stream to write the patch to. It is not closed.
+	 * @return The number of tiles added, changed or removed.
+	 * @throws IOException
+	 *             if writing fails.
+	 * @throws IllegalArgumentException
+	 *             if the zoom interval configurations differ.
+	 */
+	public static int create(PCTilePersistenceManager oldMap, PCTilePersistenceManager newMap, OutputStream out)
+			throws IOException {
+		final byte[] baseZoomLevels = newMap.getMetaData().getBaseZoomLevels();
+		if (!Arrays.equals(oldMap.getMetaData().getBaseZoomLevels(), baseZoomLevels)) {
+			throw new IllegalArgumentException("The map files have different zoom intervals");
+		}
+
+		out.write(new byte[] { (byte) (MAGIC >>> 24), (byte) (MAGIC >>> 16), (byte) (MAGIC >>> 8), (byte) MAGIC });
+		final DeflaterOutputStream deflater = new DeflaterOutputStream(out);
+		final DataOutputStream data = new DataOutputStream(new BufferedOutputStream(deflater));
+
+		data.writeByte(baseZoomLevels.length);
+		data.write(baseZoomLevels);
+		final MapFileMetaData metaData = newMap.getMetaData();
+		final boolean metaDataChanged = !descriptiveEntries(oldMap.getMetaData()).equals(
+				descriptiveEntries(metaData));
+		data.writeBoolean(metaDataChanged);
+		if (metaDataChanged) {
+			writeMetaData(data, metaData);
+		}
+
+		int records = 0;
+		for (byte i = 0; i < baseZoomLevels.length; i++) {
+			final TileCollector collector = new TileCollector(newMap, i, data);
+			if (oldMap.getMetaData().getHashTreeFactor() != 0
+					&& oldMap.getMetaData().getHashTreeFactor() == newMap.getMetaData().getHashTreeFactor()) {
+				compareStoredTrees(oldMap, newMap, i, collector);
+			} else {
+				SparseHashTree.build(oldMap, i, TREE_FACTOR).findModifiedTiles(
+						SparseHashTree.build(newMap, i, TREE_FACTOR), collector);
+			}
+			collector.flush();
+			records += collector.records;
+		}
+
+		data.writeByte(RECORD_END);
+		data.writeInt(records);
+		data.flush();
+		deflater.finish();
+		out.flush();
+		return records;
+	}
+
+	/**
+	 * Applies a patch created by {@link #create(PCTilePersistenceManager, PCTilePersistenceManager,
+	 * OutputStream)} in a single transaction. Nothing is changed if the patch is incomplete or
+	 * cannot be applied.
+	 * 
+	 * @param target
+	 *            The map file to change, with the same zoom interval configuration as the map files
+	 *            the patch has been created from.
+	 * @param in
+	 *            The stream to read the patch from. It is not closed.
+	 * @return The number of tiles added, changed or removed.
+	 * @throws IOException
+	 *             if the patch cannot be read or does not match the target.
+	 */
+	public static int apply(PCTilePersistenceManager target, InputStream in) throws IOException {
+		final DataInputStream header = new DataInputStream(in);
+		if (header.readInt() != MAGIC) {
+			throw new IOException("not a map patch");
+		}
+		final DataInputStream data = new DataInputStream(new BufferedInputStream(new InflaterInputStream(in)));
+
+		final byte[] baseZoomLevels = new byte[data.readUnsignedByte()];
+		data.readFully(baseZoomLevels);
+		if (!Arrays.equals(target.getMetaData().getBaseZoomLevels(), baseZoomLevels)) {
+			throw new IOException("The patch is for a map file with different zoom intervals");
+		}
+
+		final Reader reader = new Reader(data, baseZoomLevels);
+		try {
+			target.applyPatch(reader);
+		} catch (SQLException e) {
+			throw new IOException("The patch could not be applied", e);
+		}
+		return reader.records;
+	}
+
+	/**
+	 * Walks the hash trees stored in both map files from the root, reading only the children of
+	 * nodes that differ.
+	 */
+	private static void compareStoredTrees(PCTilePersistenceManager oldMap, PCTilePersistenceManager newMap,
+			byte baseZoomInterval, ModifiedTileHandler handler) {
+		final int factor = oldMap.getMetaData().getHashTreeFactor();
+		final int height = oldMap.getHashTreeHeight(baseZoomInterval);
+		if (oldMap.getHashTreeRoot(baseZoomInterval) == newMap.getHashTreeRoot(baseZoomInterval)) {
+			return;
+		}
+
+		// Nodes still to be compared, packed as height, x and y
+		int[] stack = new int[3 * 64];
+		int size = 0;
+		stack[size++] = height;
+		stack[size++] = 0;
+		stack[size++] = 0;
+		while (size > 0) {
+			final int y = stack[--size];
+			final int x = stack[--size];
+			final int h = stack[--size];
+			final long[] oldChildren = oldMap.getHashTreeChildren(baseZoomInterval, h, x, y);
+			final long[] newChildren = newMap.getHashTreeChildren(baseZoomInterval, h, x, y);
+			for (int c = 0; c < oldChildren.length; c++) {
+				if (oldChildren[c] == newChildren[c]) {
+					continue;
+				}
+				final int childX = x * factor + c / factor;
+				final int childY = y * factor + c % factor;
+				if (h == 1) {
+					handler.handleModifiedTile(childX, childY, oldChildren[c], newChildren[c]);
+				} else {
+					if (size + 3 > stack.length) {
+						stack = Arrays.copyOf(stack, 2 * stack.length);
+					}
+					stack[size++] = h - 1;
+					stack[size++] = childX;
+					stack[size++] = childY;
+				}
+			}
+		}
+	}
+
+	/**
+	 * @return The metadata entries describing the map, without those derived from the tiles (like
+	 *         the bounding box) and those describing the storage (like the codec).
+	 */
+	private static Map<String, String> descriptiveEntries(MapFileMetaData metaData) {
+		final Map<String, String> entries = PCTilePersistenceManager.toMetaDataEntries(metaData);
+		entries.keySet().retainAll(DESCRIPTIVE_KEYS);
+		return entries;
+	}
+
+	private static void writeMetaData(DataOutputStream data, MapFileMetaData metaData) throws IOException {
+		writeString(data, metaData.getFileVersion());
+		data.writeLong(metaData.getDateOfCreation());
+		data.writeInt(metaData.getTileSize());
+		writeString(data, metaData.getProjection());
+		writeString(data, metaData.getLanguagePreference());
+		data.writeByte(metaData.getFlags());
+		data.writeInt(metaData.getMapStartLat());
+		data.writeInt(metaData.getMapStartLon());
+		data.writeByte(metaData.getStartZoomLevel());
+		writeString(data, metaData.getComment());
+	}
+
+	private static void readMetaData(DataInputStream data, MapFileMetaData metaData) throws IOException {
+		metaData.setFileVersion(readString(data));
+		metaData.setDateOfCreation(data.readLong());
+		metaData.setTileSize(data.readInt());
+		metaData.setProjection(readString(data));
+		metaData.setLanguagePreference(readString(data));
+		metaData.setFlags(data.readByte());
+		final int mapStartLat = data.readInt();
+		metaData.setMapStartPosition(mapStartLat, data.readInt());
+		metaData.setStartZoomLevel(data.readByte());
+		metaData.setComment(readString(data));
+	}
+
+	private static void writeString(DataOutputStream data, String value) throws IOException {
+		data.writeBoolean(value != null);
+		if (value != null) {
+			data.writeUTF(value);
+		}
+	}
+
+	private static String readString(DataInputStream data) throws IOException {
+		return data.readBoolean() ? data.readUTF() : null;
+	}
+
+	/**
+	 * Writes a record for each modified tile of a zoom interval. The data of added and changed
+	 * tiles is read from the new map file in batches. Tiles that have disappeared from the new map
+	 * file in the meantime are written as removed.
+	 */
+	private static class TileCollector implements ModifiedTileHandler {
+		private final PCTilePersistenceManager newMap;
+		private final byte baseZoomInterval;
+		private final DataOutputStream data;
+		private final long[] ids = new long[READ_BATCH_SIZE];
+		private int size = 0;
+		private int records = 0;
+		private IOException exception = null;
+
+		TileCollector(PCTilePersistenceManager newMap, byte baseZoomInterval, DataOutputStream data) {
+			this.newMap = newMap;
+			this.baseZoomInterval = baseZoomInterval;
+			this.data = data;
+		}
+
+		@Override
+		public void handleModifiedTile(int xPos, int yPos, long oldHash, long newHash) {
+			if (this.exception != null) {
+				return;
+			}
+			try {
+				if (newHash == 0) {
+					writeDelete(xPos, yPos);
+					return;
+				}
+				this.ids[this.size++] = this.newMap.getMetaData().getTileIdLayout().coordinatesToId(xPos, yPos,
+						this.newMap.getMetaData().getBaseZoomLevels()[this.baseZoomInterval]);
+				if (this.size == this.ids.length) {
+					writeUpserts();
+				}
+			} catch (IOException e) {
+				this.exception = e;
+			}
+		}
+
+		void flush() throws IOException {
+			if (this.exception == null && this.size > 0) {
+				writeUpserts();
+			}
+			if (this.exception != null) {
+				throw this.exception;
+			}
+		}
+
+		private void writeUpserts() throws IOException {
+			final long[] batch = Arrays.copyOf(this.ids, this.size);
+			this.size = 0;
+
+			final Set<Long> found = new HashSet<Long>();
+			final TileIdLayout layout = this.newMap.getMetaData().getTileIdLayout();
+			final byte baseZoomLevel = this.newMap.getMetaData().getBaseZoomLevels()[this.baseZoomInterval];
+			for (TileDataContainer tile : this.newMap.getTileData(batch, this.baseZoomInterval)) {
+				this.data.writeByte(RECORD_UPSERT);
+				this.data.writeByte(this.baseZoomInterval);
+				this.data.writeInt(tile.getxPos());
+				this.data.writeInt(tile.getyPos());
+				this.data.writeInt(tile.getData().length);
+				this.data.write(tile.getData());
+				++this.records;
+				found.add(layout.coordinatesToId(tile.getxPos(), tile.getyPos(), baseZoomLevel));
+			}
+			for (long id : batch) {
+				if (!found.contains(id)) {
+					writeDelete(layout.idToX(id, baseZoomLevel), layout.idToY(id, baseZoomLevel));
+				}
+			}
+		}
+
+		private void writeDelete(int xPos, int yPos) throws IOException {
+			this.data.writeByte(RECORD_DELETE);
+			this.data.writeByte(this.baseZoomInterval);
+			this.data.writeInt(xPos);
+			this.data.writeInt(yPos);
+			++this.records;
+		}
+	}
+
+	/**
+	 * Reads the metadata and the tile records of a patch one at a time, for
+	 * {@link PCTilePersistenceManager#applyPatch(Reader)}.
+	 */
+	static class Reader {
+		private final DataInputStream data;
+		private final byte[] baseZoomLevels;
+		private final boolean metaDataChanged;
+		int records = 0;
+
+		/** The zoom interval of the current tile */
+		byte baseZoomInterval;
+		/** The x coordinate of the current tile */
+		int xPos;
+		/** The y coordinate of the current tile */
+		int yPos;
+		/** The data of the current tile, null if it has been removed */
+		byte[] tileData;
+
+		Reader(DataInputStream data, byte[] baseZoomLevels) throws IOException {
+			this.data = data;
+			this.baseZoomLevels = baseZoomLevels;
+			this.metaDataChanged = data.readBoolean();
+		}
+
+		/**
+		 * Applies the patched metadata, must be called before the first tile is read.
+		 * 
+		 * @param metaData
+		 *            The target's metadata, changed in place.
+		 * @return true if the patch changes the metadata.
+		 * @throws IOException
+		 *             if the patch cannot be read.
+		 */
+		boolean readMetaData(MapFileMetaData metaData) throws IOException {
+			if (this.metaDataChanged) {
+				MapPatch.readMetaData(this.data, metaData);
+			}
+			return this.metaDataChanged;
+		}
+
+		/**
+		 * Reads the next tile record.
+		 * 
+		 * @return false after the last record.
+		 * @throws IOException
+		 *             if the patch cannot be read, is truncated or contains an invalid record.
+		 */
+		boolean next() throws IOException {
+			try {
+				final byte type = this.data.readByte();
+				if (type == RECORD_END) {
+					if (this.data.readInt() != this.records) {
+						throw new IOException("The patch is incomplete");
+					}
+					return false;
+				}
+				if (type != RECORD_UPSERT && type != RECORD_DELETE) {
+					throw new IOException("invalid record type " + type);
+				}
+
+				this.baseZoomInterval = this.data.readByte();
+				if (this.baseZoomInterval < 0 || this.baseZoomInterval >= this.baseZoomLevels.length) {
+					throw new IOException("invalid zoom interval " + this.baseZoomInterval);
+				}
+				this.xPos = this.data.readInt();
+				this.yPos = this.data.readInt();
+				final long gridSize = 1L << this.baseZoomLevels[this.baseZoomInterval];
+				if (this.xPos < 0 || this.yPos < 0 || this.xPos >= gridSize || this.yPos >= gridSize) {
+					throw new IOException("invalid tile " + this.xPos + ", " + this.yPos);
+				}
+				if (type == RECORD_UPSERT) {
+					final int length = this.data.readInt();
+					if (length < 0) {
+						throw new IOException("invalid tile length " + length);
+					}
+					this.tileData = new byte[length];
+					this.data.readFully(this.tileData);
+				} else {
+					this.tileData = null;
+				}
+				++this.records;
+				return true;
+			} catch (EOFException e) {
+				throw new IOException("The patch is truncated", e);
+			}
+		}
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * Receives the tiles that differ between two hash trees, see
+ * {@link HashTreeUtil#findModifiedTiles(long[][][], long[][][], int, ModifiedTileHandler)}.
+ */
+public interface ModifiedTileHandler {
+	/**
+	 * Called once for every tile whose hash differs.
+	 * 
+	 * @param xPos
+	 *            The tile's x coordinate in the grid for its base zoom level.
+	 * @param yPos
+	 *            The tile's y coordinate in the grid for its base zoom level.
+	 * @param oldHash
+	 *            The tile's hash in the first tree, 0 if the tile only exists in the second.
+	 * @param newHash
+	 *            The tile's hash in the second tree, 0 if the tile only exists in the first.
+	 */
+	public void handleModifiedTile(int xPos, int yPos, long oldHash, long newHash);
+}
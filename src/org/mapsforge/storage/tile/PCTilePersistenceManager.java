@@ -14,45 +14,109 @@
  */
 package org.mapsforge.storage.tile;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Timer;
+import java.util.TimerTask;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import org.mapsforge.core.model.GeoPoint;
 import org.mapsforge.core.util.MercatorProjection;
-import org.mapsforge.map.writer.model.GeoCoordinate;
-import org.mapsforge.map.writer.model.Rect;
 import org.mapsforge.map.writer.model.TileInfo;
 import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+import org.mapsforge.storage.dataExtraction.TagDictionary;
 
 /**
  * An implementation that provides methods for accessing a map database on a PC
- * using SQLite3. This class is not thread safe and should therefore not be used
- * more than once at a time.
+ * using SQLite3. By default this class is not thread safe and should therefore
+ * not be used more than once at a time. If it is opened with a reader pool (see
+ * {@link #PCTilePersistenceManager(String, MapFileMetaData, int)}) all read
+ * methods may be called concurrently, while writes are serialized on a single
+ * writer connection.
+ * 
+ * Single tile writes are committed immediately unless write-behind has been
+ * enabled using {@link #enableWriteBehind(int, long, long)}.
  * 
  * @author Karsten Groll
  */
 public class PCTilePersistenceManager implements TilePersistenceManager {
+	/**
+	 * The hash function stored in the metadata of files whose tile hashes
+	 * are computed by {@link #hashTileData(byte[])}.
+	 */
+	static final String TILE_HASH = "XXH64";
+	/** The number of tiles rehashed by a single task */
+	private static final int REHASH_CHUNK_SIZE = 1024;
+	/** The number of tiles of a patch written per batch */
+	private static final int PATCH_BATCH_SIZE = 10000;
+	/** The number of index seeks after which shrinking tile bounds falls back to a scan */
+	private static final int MAX_TILE_BOUNDS_SEEKS = 4096;
+
 	private String path;
 
 	// Database
 	private Connection conn = null;
 	private Statement stmt = null;
-	private PreparedStatement insertOrUpdateTileByIDStmt[] = null;
+	private TileWriter tileWriter = null;
+	private HashTree hashTree = null;
 	private PreparedStatement deleteTileByIDStmt[] = null;
-	private PreparedStatement getTileByIDStmt[] = null;
-	private PreparedStatement getMetaDataStatement = null;
-	private ResultSet resultSet = null;
+
+	// Readers
+	private final int readerPoolSize;
+	private TileReader writerConnectionReader = null;
+	private TileReaderPool readerPool = null;
+
+	// Write-behind
+	private volatile WriteBehindBuffer writeBehindBuffer = null;
+	private long writeBehindMaxDelay = 0;
+	private Timer writeBehindTimer = null;
+	private TimerTask scheduledFlush = null;
 
 	private MapFileMetaData mapFileMetaData = null;
 
+	// Bounding box of the tiles of each zoom interval in tile coordinates
+	private TileBounds[] tileBounds = null;
+	private boolean[] tileBoundsStale = null;
+	private boolean tileBoundsChanged = false;
+
+	// The entries of the metadata table as they have last been read or written
+	private Map<String, String> storedMetaData = null;
+	// The properties of the metadata that are fixed by the schema of the file
+	private MapFileMetaData fileStructure = null;
+
+	// Compression dictionaries, read on first use
+	private volatile CompressionDictionaries compressionDictionaries = null;
+	// Files written before compression was added lack the codec column until their first write
+	private volatile boolean codecColumns = true;
+	// Files written before the hash indexes were added lack them until their first write
+	private volatile boolean hashIndexes = true;
+	// Files written with 32 bit hashes keep them until their first write,
+	// hashes are computed from the tile data until then
+	private volatile boolean storedHashes = true;
+
 	/**
 	 * Open the specified map database. If the database does not exist it will
 	 * be created. You have to call {@link #init()} in order to perform
@@ -67,8 +131,32 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 	 *            container will be used for creating the database.
 	 */
 	public PCTilePersistenceManager(String path, MapFileMetaData mfm) {
+		this(path, mfm, 0);
+	}
+
+	/**
+	 * Open the specified map database in thread-safe read mode. The database
+	 * will be switched to WAL journaling and <code>readerPoolSize</code>
+	 * read-only connections will be opened, so that up to that many threads
+	 * can read tiles at the same time. All write operations are serialized and
+	 * executed on a single writer connection. If the database does not exist
+	 * it will be created.
+	 * 
+	 * @param path
+	 *            Path to a map database file.
+	 * @param mfm
+	 *            The map file's meta data. This will only be used when a new
+	 *            map file should be created. Otherwise the meta data will be
+	 *            parsed from the map file. If set to null, an empty meta data
+	 *            container will be used for creating the database.
+	 * @param readerPoolSize
+	 *            The number of read-only connections. If set to 0, reads use
+	 *            the writer connection and this object is not thread safe.
+	 */
+	public PCTilePersistenceManager(String path, MapFileMetaData mfm, int readerPoolSize) {
 		// TODO Throw FileNotFoundException
 		this.path = path;
+		this.readerPoolSize = readerPoolSize;
 		if (mfm == null) {
 			// Create default metadata values
 			this.mapFileMetaData = MapFileMetaData
@@ -113,641 +201,2496 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		// Xerial Driver
 		Class.forName("org.sqlite.JDBC");
 
+		// Switching to WAL creates the file, so check for an existing database first
+		boolean databaseExists = new File(this.path).length() > 0;
+
 		this.conn = DriverManager.getConnection("jdbc:sqlite:/" + this.path);
-		this.conn.setAutoCommit(false);
 		this.stmt = this.conn.createStatement();
+		if (this.readerPoolSize > 0) {
+			// The journal mode cannot be changed within a transaction
+			this.stmt.execute("PRAGMA journal_mode=WAL;");
+		}
+		this.conn.setAutoCommit(false);
 
 		// Create database if it does not yet exist.
-		File dbFile = new File(this.path);
-		if (dbFile.length() == 0) {
+		if (!databaseExists) {
+			this.fileStructure = this.mapFileMetaData.copy();
+			initializeTileBounds();
 			createDatabase();
-			initializePrivateStatements();
 		} else {
-			initializePrivateStatements();
 			readMetaDataFromDB();
+			// The codec column, the hash indexes and the tile hashes are only
+			// migrated before the first write, see prepareSchemaForWrite()
+			this.codecColumns = hasCodecColumns();
+			this.hashIndexes = hasHashIndexes();
+			this.storedHashes = TILE_HASH.equals(this.storedMetaData.get("tileHash"));
 		}
+		// Readers on other connections can only see committed tables
+		this.conn.commit();
 
 		initializePrivateStatements();
-
+		this.writerConnectionReader.setCodecColumns(this.codecColumns);
+		this.writerConnectionReader.setHashIndexes(this.hashIndexes);
+
+		if (this.readerPoolSize > 0) {
+			this.readerPool = new TileReaderPool(this.path, this.readerPoolSize,
+					this.fileStructure.getAmountOfZoomIntervals(),
+					this.fileStructure.isTileDeduplication());
+			this.readerPool.setCodecColumns(this.codecColumns);
+			this.readerPool.setHashIndexes(this.hashIndexes);
+		}
 	}
 
-	private void initializePrivateStatements() throws SQLException {		
-		this.getMetaDataStatement = this.conn
-				.prepareStatement("SELECT value FROM metadata WHERE key == ?;");
-		this.conn
-				.prepareStatement("INSERT OR REPLACE INTO metadata VALUES(?, ?)");
+	/**
+	 * Sets up the statement arrays for the number of zoom intervals in the
+	 * metadata. The statements themselves are prepared on first use, see
+	 * {@link TileWriter} and {@link #getDeleteTileStatement(byte)}.
+	 */
+	private void initializePrivateStatements() {
+		System.out.println("ZoomIntervals: " + this.fileStructure
+				.getAmountOfZoomIntervals());
 
-		// Delete tile by ID statements
-		this.deleteTileByIDStmt = new PreparedStatement[this.mapFileMetaData
+		this.tileWriter = new TileWriter(this.conn, this.fileStructure.getAmountOfZoomIntervals(),
+				this.fileStructure.isTileDeduplication());
+		this.hashTree = new HashTree(this.conn, this.fileStructure);
+		this.deleteTileByIDStmt = new PreparedStatement[this.fileStructure
 				.getAmountOfZoomIntervals()];
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
-			try {
-				this.deleteTileByIDStmt[i] = this.conn
-						.prepareStatement("DELETE FROM tiles_" + i
-								+ " WHERE id == ?;");
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+
+		// Get tile by ID statements (only used if there is no reader pool)
+		this.writerConnectionReader = new TileReader(this.conn,
+				this.fileStructure.getAmountOfZoomIntervals(),
+				this.fileStructure.isTileDeduplication());
+	}
+
+	private PreparedStatement getDeleteTileStatement(byte baseZoomInterval) throws SQLException {
+		if (this.deleteTileByIDStmt[baseZoomInterval] == null) {
+			this.deleteTileByIDStmt[baseZoomInterval] = this.conn
+					.prepareStatement("DELETE FROM tiles_" + baseZoomInterval
+							+ " WHERE id == ?;");
 		}
+		return this.deleteTileByIDStmt[baseZoomInterval];
+	}
 
-		// Insert or update tile by ID statements
-		this.insertOrUpdateTileByIDStmt = new PreparedStatement[this.mapFileMetaData
-				.getAmountOfZoomIntervals()];
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
-			try {
-				this.insertOrUpdateTileByIDStmt[i] = this.conn
-						.prepareStatement("INSERT OR REPLACE INTO tiles_" + i
-								+ " VALUES (?,?,?);");
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}
+	/**
+	 * @return The number of pooled read-only connections or 0 if reads use
+	 *         the writer connection.
+	 */
+	public int getReaderPoolSize() {
+		return this.readerPool == null ? 0 : this.readerPool.size();
+	}
+
+	/**
+	 * Enables write-behind for single tile writes. Calls to
+	 * {@link #insertOrUpdateTile(byte[], long, byte)},
+	 * {@link #deleteTile(long, byte)} and {@link #deleteTiles(long[], byte)}
+	 * are collected in memory and written in a single transaction as soon as
+	 * one of the given limits is reached. Only the latest write to a tile is
+	 * kept. Reads of single tiles and of sets of tiles see pending writes,
+	 * range scans flush them first. Call {@link #flush()} or {@link #close()}
+	 * to make all pending writes durable.
+	 * 
+	 * @param maxOperations
+	 *            The number of writes after which they are flushed.
+	 * @param maxBytes
+	 *            The amount of pending tile data in bytes after which the
+	 *            writes are flushed.
+	 * @param maxDelayMillis
+	 *            The maximum time in milliseconds a write stays pending or 0
+	 *            for no time limit.
+	 */
+	public synchronized void enableWriteBehind(int maxOperations, long maxBytes, long maxDelayMillis) {
+		disableWriteBehind();
+
+		this.writeBehindMaxDelay = maxDelayMillis;
+		if (maxDelayMillis > 0) {
+			this.writeBehindTimer = new Timer("write-behind " + this.path, true);
+		}
+		this.writeBehindBuffer = new WriteBehindBuffer(
+				this.fileStructure.getAmountOfZoomIntervals(), maxOperations,
+				maxBytes);
+	}
+
+	/**
+	 * Flushes all pending writes and switches back to committing every single
+	 * tile write immediately.
+	 */
+	public synchronized void disableWriteBehind() {
+		flush();
+
+		this.writeBehindBuffer = null;
+		if (this.writeBehindTimer != null) {
+			this.writeBehindTimer.cancel();
+			this.writeBehindTimer = null;
 		}
+	}
 
-		System.out.println("ZoomIntervals: " + this.mapFileMetaData
-				.getAmountOfZoomIntervals());
-		
-		// Get tile by ID statements
-		this.getTileByIDStmt = new PreparedStatement[this.mapFileMetaData
-				.getAmountOfZoomIntervals()];
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
-			try {
-				this.getTileByIDStmt[i] = this.conn.prepareStatement("SELECT data, hash FROM tiles_" + i
-						+ " WHERE id == ?;");
-			} catch (SQLException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
+	/**
+	 * Writes all pending tile writes in a single transaction. If anything
+	 * fails the transaction is rolled back and the pending writes are
+	 * discarded.
+	 */
+	@Override
+	public synchronized void flush() {
+		if (this.scheduledFlush != null) {
+			this.scheduledFlush.cancel();
+			this.scheduledFlush = null;
+		}
+		if (this.writeBehindBuffer == null || this.writeBehindBuffer.isEmpty()) {
+			return;
+		}
+
+		try {
+			writePendingTiles();
+			this.hashTree.update();
+			writeChangedMetaData();
+			this.conn.commit();
+			// Readers on other connections see the tiles in the database from now on
+			this.writeBehindBuffer.clear();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			rollback();
+		}
+	}
+
+	/**
+	 * Rolls back the current transaction and restores the state of the last
+	 * commit. Pending writes are discarded, so they are not retried on top of
+	 * a partial write, and the tile bounds are read again along with the
+	 * metadata.
+	 */
+	private void rollback() {
+		if (this.writeBehindBuffer != null) {
+			this.writeBehindBuffer.clear();
+		}
+		try {
+			this.conn.rollback();
+			this.hashTree.clear();
+			this.tileBoundsChanged = false;
+			readMetaDataFromDB();
+			// Ends the read transaction of the metadata queries
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Executes all pending writes without committing them. Every batch write
+	 * starts here, so files written by older versions are migrated first.
+	 */
+	private void writePendingTiles() throws SQLException {
+		prepareSchemaForWrite();
+		if (this.writeBehindBuffer == null || this.writeBehindBuffer.isEmpty()) {
+			return;
+		}
+
+		for (byte i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+			Map<Long, byte[]> tiles = this.writeBehindBuffer.getPending(i);
+			if (tiles.isEmpty()) {
+				continue;
+			}
+
+			// Only the statements that are needed are prepared
+			PreparedStatement delete = null;
+			for (Map.Entry<Long, byte[]> tile : tiles.entrySet()) {
+				final long id = tile.getKey().longValue();
+				if (tile.getValue() == WriteBehindBuffer.DELETED) {
+					if (delete == null) {
+						delete = getDeleteTileStatement(i);
+						delete.clearBatch();
+					}
+					delete.setLong(1, id);
+					delete.addBatch();
+				} else {
+					this.tileWriter.write(prepareTile(tile.getValue(), id,
+							getXCoordinateFromId(id, i), getYCoordinateFromId(id, i), i));
+				}
+				this.hashTree.add(i, getXCoordinateFromId(id, i), getYCoordinateFromId(id, i));
 			}
+			this.tileWriter.executeBatches();
+			if (delete != null) {
+				delete.executeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Adds a single tile write to the write-behind buffer and flushes the
+	 * buffer if one of its limits has been reached.
+	 */
+	private void bufferWrite(byte baseZoomInterval, long id, byte[] data) {
+		if (this.writeBehindBuffer.put(baseZoomInterval, id, data)) {
+			flush();
+		} else if (this.writeBehindTimer != null && this.scheduledFlush == null) {
+			this.scheduledFlush = new TimerTask() {
+				@Override
+				public void run() {
+					flush();
+				}
+			};
+			this.writeBehindTimer.schedule(this.scheduledFlush, this.writeBehindMaxDelay);
+		}
+	}
+
+	/**
+	 * @return The tile's pending data, {@link WriteBehindBuffer#DELETED} or
+	 *         null if there is no pending write to this tile.
+	 */
+	private byte[] getPendingTileData(long id, byte baseZoomInterval) {
+		WriteBehindBuffer buffer = this.writeBehindBuffer;
+		return buffer == null ? null : buffer.get(baseZoomInterval, id);
+	}
+
+	/**
+	 * Makes pending writes visible to range scans.
+	 */
+	private void flushBeforeScan() {
+		if (this.writeBehindBuffer != null) {
+			flush();
+		}
+	}
+
+	/**
+	 * Returns a reader for exclusive use by the calling thread. Every reader
+	 * obtained by this method must be handed back using
+	 * {@link #releaseReader(TileReader)}.
+	 * 
+	 * @return A reader or null if the calling thread has been interrupted while
+	 *         waiting for a pooled connection.
+	 */
+	private TileReader acquireReader() {
+		if (this.readerPool == null) {
+			return this.writerConnectionReader;
+		}
+		return this.readerPool.acquire();
+	}
+
+	private void releaseReader(TileReader reader) {
+		if (this.readerPool != null && reader != null) {
+			this.readerPool.release(reader);
 		}
 	}
 
 	private void createDatabase() throws SQLException {
 		System.out.println("Creating database");
 
+		createTables(this.stmt, this.mapFileMetaData);
+		createHashIndexes(this.stmt, this.fileStructure.getAmountOfZoomIntervals());
+		this.storedMetaData = new HashMap<String, String>();
+		writeMetaDataToDB();
+	}
+
+	/**
+	 * Creates all tables of an empty map database and fills those that are
+	 * not changeable later: the zoom interval configuration and the tag
+	 * mappings.
+	 * 
+	 * @param stmt
+	 *            A statement on the new database.
+	 * @param mapFileMetaData
+	 *            The map file's meta data.
+	 * @throws SQLException
+	 *             if a statement fails.
+	 */
+	static void createTables(Statement stmt, MapFileMetaData mapFileMetaData) throws SQLException {
 		// CREATE TABLES
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
-			this.stmt.executeUpdate("CREATE TABLE IF NOT EXISTS tiles_" + i
-					+ " (id INTEGER, data BLOB, hash INTEGER, PRIMARY KEY (id));");
-		}
+		TileWriter.createTileTables(stmt, mapFileMetaData.getAmountOfZoomIntervals(),
+				mapFileMetaData.isTileDeduplication());
+		HashTree.createTables(stmt, mapFileMetaData);
+		CompressionDictionaries.createTable(stmt);
 
 		// Metadata (mostly information from former file header)
-		this.stmt
+		stmt
 				.executeUpdate("CREATE TABLE IF NOT EXISTS metadata (key STRING, value STRING, PRIMARY KEY (key));");
-		this.stmt
+		stmt
 				.executeUpdate("CREATE TABLE IF NOT EXISTS poi_tags (tag STRING, value INTEGER, PRIMARY KEY (value));");
-		this.stmt
+		stmt
 				.executeUpdate("CREATE TABLE IF NOT EXISTS way_tags (tag STRING, value INTEGER, PRIMARY KEY (value));");
-		this.stmt
+		stmt
 				.executeUpdate("CREATE TABLE IF NOT EXISTS zoom_interval_configuration "
 						+ "(interval TINYINT, baseZoomLevel TINYINT, minimalZoomLevel TINYINT, maximalZoomLevel TINYINT, dataType TINYINT);");
 
-		writeMetaDataToDB();
-
 		// These values should only be added once and are not yet changeable
 
 		// Create default zoom level configuration
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfZoomIntervals(); i++) {
-			this.stmt
+		for (int i = 0; i < mapFileMetaData.getAmountOfZoomIntervals(); i++) {
+			stmt
 					.executeUpdate("INSERT INTO zoom_interval_configuration VALUES ('"
 							+ i
 							+ "','"
-							+ this.mapFileMetaData.getBaseZoomLevels()[i]
+							+ mapFileMetaData.getBaseZoomLevels()[i]
 							+ "','"
-							+ this.mapFileMetaData.getMinimalZoomLevel()[i]
+							+ mapFileMetaData.getMinimalZoomLevel()[i]
 							+ "','"
-							+ this.mapFileMetaData.getMaximalZoomLevel()[i]
+							+ mapFileMetaData.getMaximalZoomLevel()[i]
 							+ "','"
-							+ TileDataContainer.TILE_TYPE_VECTOR
+							+ mapFileMetaData.getTileTypes()[i]
 							+ "');");
 		}
 
-		// Create POI tag mapping entries
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfPOIMappings(); i++) {
-			this.stmt.execute("INSERT INTO poi_tags (tag, value) VALUES ('"
-					+ this.mapFileMetaData.getPOIMappings()[i] + "', '" + i
-					+ "')");
-		}
+		// Create tag mapping entries
+		writeTagMappings(stmt.getConnection(), "poi_tags",
+				mapFileMetaData.getPOITagDictionary());
+		writeTagMappings(stmt.getConnection(), "way_tags",
+				mapFileMetaData.getWayTagDictionary());
+	}
 
-		// Create Way tag mapping entries
-		for (int i = 0; i < this.mapFileMetaData.getAmountOfPOIMappings(); i++) {
-			this.stmt.execute("INSERT INTO way_tags (tag, value) VALUES ('"
-					+ this.mapFileMetaData.getWayTagMappings()[i] + "', '" + i
-					+ "')");
+	private static void writeTagMappings(Connection conn, String table,
+			TagDictionary tags) throws SQLException {
+		if (tags.size() == 0) {
+			return;
 		}
 
-	}
-	
-	private void updateBoundingBoxMetaData(long tileX, long tileY, int zoomLevel) {		
-		final double newLon = MercatorProjection.tileXToLongitude(tileX, (byte) zoomLevel) * GeoCoordinate.FACTOR_DOUBLE_TO_INT;
-		final double newLat = MercatorProjection.tileYToLatitude(tileY, (byte) zoomLevel) * GeoCoordinate.FACTOR_DOUBLE_TO_INT;
-
-		final int minLon = (int) Math.floor(this.mapFileMetaData.getMinLon() > newLon ? newLon : this.mapFileMetaData.getMinLon());
-		final int maxLon = (int) Math.ceil(this.mapFileMetaData.getMaxLon() < newLon ? newLon : this.mapFileMetaData.getMaxLon());
-		final int minLat = (int) Math.floor(this.mapFileMetaData.getMinLat() > newLat ? newLat : this.mapFileMetaData.getMinLat());
-		final int maxLat = (int) Math.ceil(this.mapFileMetaData.getMaxLat() < newLat ? newLat : this.mapFileMetaData.getMaxLat());
-				
-		mapFileMetaData.setBoundingBox(minLat, minLon, maxLat, maxLon);
-	}
-
-	@Override
-	public void insertOrUpdateTile(byte[] rawData, int xPos, int yPos,
-			byte baseZoomInterval) {
-		insertOrUpdateTile(rawData,
-				coordinatesToID(xPos, yPos, baseZoomInterval), baseZoomInterval);
+		PreparedStatement ps = conn.prepareStatement("INSERT INTO " + table
+				+ " (tag, value) VALUES (?, ?);");
+		try {
+			for (int i = 0; i < tags.size(); i++) {
+				ps.setString(1, tags.getTag(i));
+				ps.setInt(2, i);
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		} finally {
+			ps.close();
+		}
 	}
 
-	@Override
-	public void insertOrUpdateTile(byte[] rawData, int id, byte baseZoomInterval) {
-		try {
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].setInt(1, id);
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].setBytes(2,
-					rawData);
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].setInt(3, Arrays.hashCode(rawData));
-			
-			updateBoundingBoxMetaData(getXCoordinateFromId(id, baseZoomInterval), getYCoordinateFromId(id, baseZoomInterval), this.mapFileMetaData.getBaseZoomLevels()[baseZoomInterval]);
-			
-			this.insertOrUpdateTileByIDStmt[baseZoomInterval].execute();
-			this.conn.commit();
-		} catch (SQLException e) {
-			e.printStackTrace();
+	/**
+	 * Creates a covering index on <code>(id, hash)</code> for every tile
+	 * table. The hash is stored behind the tile's BLOB, so without this index
+	 * reading a hash means reading the whole tile.
+	 * 
+	 * @param stmt
+	 *            A statement on the map database.
+	 * @param amountOfZoomIntervals
+	 *            The number of tile tables.
+	 * @throws SQLException
+	 *             if an index could not be created.
+	 */
+	static void createHashIndexes(Statement stmt, int amountOfZoomIntervals) throws SQLException {
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			stmt.executeUpdate("CREATE INDEX IF NOT EXISTS "
+					+ TileReader.hashIndexName(i) + " ON tiles_" + i
+					+ " (id, hash);");
 		}
+	}
 
+	/**
+	 * @param data
+	 *            A tile's data.
+	 * @return The hash stored along with the given tile data, the XXH64 of
+	 *         the data or 0 if there is no data.
+	 */
+	static long hashTileData(byte[] data) {
+		return data == null ? 0 : XXHash64.hash(data, 0);
 	}
 
-	@Override
-	public void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
-		int baseZoomLevel = rawData.iterator().next().getBaseZoomLevel();
+	/**
+	 * Replaces the hashes of a file written by a version using 32 bit hashes.
+	 * The tiles are read in chunks on this connection and hashed by one task
+	 * per chunk, using all processors. The new hashes are written once all
+	 * tiles of a zoom interval have been read. Like {@link #addCodecColumns()}
+	 * this happens before the first write and is committed on its own, so it
+	 * must not be called with uncommitted writes.
+	 */
+	private void rehashTiles() throws SQLException {
+		if (this.storedHashes) {
+			return;
+		}
 
+		System.out.println("Rehashing tiles");
+		final int threads = Runtime.getRuntime().availableProcessors();
+		final ExecutorService executor = Executors.newFixedThreadPool(threads);
 		try {
-			this.insertOrUpdateTileByIDStmt[baseZoomLevel].clearBatch();
-			for (TileDataContainer tile : rawData) {
-				this.insertOrUpdateTileByIDStmt[baseZoomLevel].setInt(
-						1,
-						coordinatesToID(tile.getxPos(), tile.getyPos(), baseZoomLevel));
-				this.insertOrUpdateTileByIDStmt[baseZoomLevel].setBytes(2,
-						tile.getData());
-				this.insertOrUpdateTileByIDStmt[baseZoomLevel].setInt(3, Arrays.hashCode(tile.getData()));
-				this.insertOrUpdateTileByIDStmt[baseZoomLevel].addBatch();
-				
-				updateBoundingBoxMetaData(tile.getxPos(), tile.getyPos(), this.mapFileMetaData.getBaseZoomLevels()[baseZoomLevel]);				
+			for (byte i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+				rehashTiles(i, executor, 2 * threads);
 			}
-
-			this.insertOrUpdateTileByIDStmt[baseZoomLevel].executeBatch();
-			this.conn.commit();
-		} catch (SQLException e) {
-			e.printStackTrace();
+		} finally {
+			executor.shutdown();
 		}
+		// Marks the file as migrated
+		this.storedHashes = true;
+		writeChangedMetaData();
+		this.conn.commit();
 	}
 
-	@Override
-	public void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
-		deleteTile(coordinatesToID(xPos, yPos, baseZoomInterval),
-				baseZoomInterval);
-		
-		// TODO: Update BoundingBox
-	}
+	private void rehashTiles(final byte baseZoomInterval, ExecutorService executor, int maxPendingChunks)
+			throws SQLException {
+		final ArrayList<Future<long[]>> pending = new ArrayList<Future<long[]>>();
+		long[] hashes = new long[REHASH_CHUNK_SIZE * 2];
+		int n = 0;
 
-	@Override
-	public void deleteTile(int id, byte baseZoomInterval) {
+		ResultSet rs = this.stmt.executeQuery("SELECT id, data, " + TileReader.codecColumn(this.codecColumns) + " FROM "
+				+ TileWriter.tileTable(baseZoomInterval, this.fileStructure.isTileDeduplication()) + ";");
 		try {
-			this.deleteTileByIDStmt[baseZoomInterval].clearBatch();
-			this.deleteTileByIDStmt[baseZoomInterval].setInt(1, id);
+			boolean more = true;
+			while (more || !pending.isEmpty()) {
+				if (more) {
+					final long[] ids = new long[REHASH_CHUNK_SIZE];
+					final byte[][] data = new byte[REHASH_CHUNK_SIZE][];
+					final int[] codecs = new int[REHASH_CHUNK_SIZE];
+					int size = 0;
+					while (size < REHASH_CHUNK_SIZE && (more = rs.next())) {
+						ids[size] = rs.getLong(1);
+						data[size] = rs.getBytes(2);
+						codecs[size] = rs.getInt(3);
+						size++;
+					}
+
+					final int chunkSize = size;
+					if (chunkSize > 0) {
+						pending.add(executor.submit(new Callable<long[]>() {
+							@Override
+							public long[] call() throws IOException {
+								// Pairs of id and hash
+								final long[] result = new long[2 * chunkSize];
+								for (int i = 0; i < chunkSize; i++) {
+									result[2 * i] = ids[i];
+									result[2 * i + 1] = hashTileData(decodeTileData(data[i], codecs[i],
+											baseZoomInterval));
+								}
+								return result;
+							}
+						}));
+					}
+				}
 
-			this.deleteTileByIDStmt[baseZoomInterval].addBatch();
-			this.deleteTileByIDStmt[baseZoomInterval].executeBatch();
-			this.conn.commit();
-		} catch (SQLException e) {
-			e.printStackTrace();
+				// Bounds the amount of tile data held in memory
+				if (!pending.isEmpty() && (!more || pending.size() >= maxPendingChunks)) {
+					final long[] result = pending.remove(0).get();
+					if (n + result.length > hashes.length) {
+						hashes = Arrays.copyOf(hashes, Math.max(2 * hashes.length, n + result.length));
+					}
+					System.arraycopy(result, 0, hashes, n, result.length);
+					n += result.length;
+				}
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new SQLException(e);
+		} catch (ExecutionException e) {
+			throw new SQLException(e.getCause());
+		} finally {
+			rs.close();
 		}
-		
-		// TODO: Update BoundingBox
-	}
 
-	@Override
-	public void deleteTiles(int[] id, byte baseZoomInterval) {
+		PreparedStatement ps = this.conn.prepareStatement("UPDATE tiles_" + baseZoomInterval
+				+ " SET hash = ? WHERE id == ?;");
 		try {
-			this.deleteTileByIDStmt[baseZoomInterval].clearBatch();
-			for (int i = 0; i < id.length; i++) {
-				this.deleteTileByIDStmt[baseZoomInterval].setInt(1, id[i]);
-
-				this.deleteTileByIDStmt[baseZoomInterval].addBatch();
+			for (int i = 0; i < n; i += 2) {
+				ps.setLong(1, hashes[i + 1]);
+				ps.setLong(2, hashes[i]);
+				ps.addBatch();
 			}
-			this.deleteTileByIDStmt[baseZoomInterval].executeBatch();
-			this.conn.commit();
-		} catch (SQLException e) {
-			e.printStackTrace();
+			ps.executeBatch();
+		} finally {
+			ps.close();
 		}
-		
-		// TODO: Update BoundingBox
 	}
-	
-	@Override
-	public int getTileHash(int xPos, int yPos, byte baseZoomInterval) {
-		return getTileHash(coordinatesToID(xPos, yPos, baseZoomInterval),
-				baseZoomInterval);
-	}
-	
-	@Override
-	public int getTileHash(int id, byte baseZoomInterval) {
-		int result = 0;
-
-		try {
-			if (this.getTileByIDStmt[baseZoomInterval] == null)
-				System.err.println("This should not happen. " + baseZoomInterval);
-			this.getTileByIDStmt[baseZoomInterval].setInt(1, id);
-			this.resultSet = this.getTileByIDStmt[baseZoomInterval]
-					.executeQuery();
 
-			if (this.resultSet.next()) {
-				result = this.resultSet.getInt(2);
+	/**
+	 * @return true if all tile tables have the codec column. Deduplicated
+	 *         files keep it in the blob table, which always had it.
+	 */
+	private boolean hasCodecColumns() throws SQLException {
+		if (this.fileStructure.isTileDeduplication()) {
+			return true;
+		}
+		for (int i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+			if (!hasCodecColumn(i)) {
+				return false;
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
 		}
-
-		return result;
+		return true;
 	}
 
-	@Override
-	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
-		return getTileData(coordinatesToID(xPos, yPos, baseZoomInterval),
-				baseZoomInterval);
+	private boolean hasCodecColumn(int baseZoomInterval) throws SQLException {
+		boolean hasCodec = false;
+		ResultSet rs = this.stmt.executeQuery("PRAGMA table_info(tiles_" + baseZoomInterval + ");");
+		try {
+			while (rs.next()) {
+				hasCodec |= "codec".equals(rs.getString("name"));
+			}
+		} finally {
+			rs.close();
+		}
+		return hasCodec;
 	}
 
-	@Override
-	public byte[] getTileData(int id, byte baseZoomInterval) {
-		byte[] result = null;
-
-		try {
-			this.getTileByIDStmt[baseZoomInterval].setInt(1, id);
-			this.resultSet = this.getTileByIDStmt[baseZoomInterval]
-					.executeQuery();
+	/**
+	 * Adds the codec column to the tile tables of a file written by a
+	 * version without compression. This happens before the first write, so
+	 * that opening such a file for reading leaves it unchanged. The tiles keep
+	 * their data and get {@link TileCodec#NONE}. Such files cannot be written
+	 * by older versions afterwards, because their inserts do not name the
+	 * columns. The schema change is committed on its own, so it must not be
+	 * called with uncommitted writes.
+	 */
+	private void addCodecColumns() throws SQLException {
+		if (this.codecColumns) {
+			return;
+		}
 
-			if (this.resultSet.next()) {
-				result = this.resultSet.getBytes(1);
+		System.out.println("Adding codec columns");
+		for (int i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+			if (!hasCodecColumn(i)) {
+				this.stmt.executeUpdate("ALTER TABLE tiles_" + i
+						+ " ADD COLUMN codec INTEGER NOT NULL DEFAULT 0;");
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
 		}
-
-		return result;
+		CompressionDictionaries.createTable(this.stmt);
+		this.conn.commit();
+
+		// Readers select the column from now on
+		this.codecColumns = true;
+		this.writerConnectionReader.setCodecColumns(true);
+		if (this.readerPool != null) {
+			this.readerPool.setCodecColumns(true);
+		}
 	}
 
-	@Override
-	public Collection<TileDataContainer> getTileData(int[] ids,
-			byte baseZoomInterval) {
-		Vector<TileDataContainer> ret = new Vector<TileDataContainer>();
-
-		// System.out.println("SELECT data FROM tiles_" + baseZoomLevel +
-		// " WHERE id IN " +
-		// getIDListString(ids) + ";");
-		// TODO Can we use a prepared statement here?
-		// TODO Set tile coordinates
+	/**
+	 * @return true if all tile tables have the hash index.
+	 */
+	private boolean hasHashIndexes() throws SQLException {
+		int indexes = 0;
+		ResultSet rs = this.stmt.executeQuery("SELECT name FROM sqlite_master WHERE type == 'index';");
 		try {
-			this.stmt.execute("SELECT * FROM tiles_" + baseZoomInterval
-					+ " WHERE id IN (" + getIDListString(ids) + ");");
-			this.resultSet = this.stmt.getResultSet();
-
-			while (this.resultSet.next()) {
-				// TODO calculate values (create constructor with id?)
-				ret.add(new TileDataContainer(this.resultSet.getBytes(1),
-						TileDataContainer.TILE_TYPE_VECTOR, -1, -1,
-						baseZoomInterval));
+			while (rs.next()) {
+				for (int i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+					if (TileReader.hashIndexName(i).equals(rs.getString(1))) {
+						indexes++;
+					}
+				}
 			}
-		} catch (SQLException e) {
-			e.printStackTrace();
+		} finally {
+			rs.close();
 		}
-
-		return ret;
-
+		return indexes == this.fileStructure.getAmountOfZoomIntervals();
 	}
 
-	private static String getIDListString(int ids[]) {
-		StringBuilder sb = new StringBuilder();
-		for (int i = 0; i < ids.length; i++) {
-			sb.append(ids[i]);
-
-			if (i != ids.length - 1) {
-				sb.append(',');
-			}
+	/**
+	 * Adds the hash indexes to the tile tables of a file written by a version
+	 * without them. Like {@link #addCodecColumns()} this happens before the
+	 * first write and is committed on its own, so it must not be called with
+	 * uncommitted writes.
+	 */
+	private void addHashIndexes() throws SQLException {
+		if (this.hashIndexes) {
+			return;
 		}
 
-		return sb.toString();
-	}
+		System.out.println("Adding hash indexes");
+		createHashIndexes(this.stmt, this.fileStructure.getAmountOfZoomIntervals());
+		this.conn.commit();
 
-	@Override
-	public MapFileMetaData getMetaData() {
-		return this.mapFileMetaData;
+		// Hash queries use the indexes from now on
+		this.hashIndexes = true;
+		this.writerConnectionReader.setHashIndexes(true);
+		if (this.readerPool != null) {
+			this.readerPool.setHashIndexes(true);
+		}
 	}
 
-	@Override
-	public void setMetaData(MapFileMetaData metaData) {
-		this.mapFileMetaData = metaData;
-		writeMetaDataToDB();
+	/**
+	 * Migrates the schema of a file written by an older version before it is
+	 * written for the first time. Opening such a file for reading leaves it
+	 * unchanged, so that it can be read from read-only media.
+	 */
+	private void prepareSchemaForWrite() throws SQLException {
+		addCodecColumns();
+		addHashIndexes();
+		rehashTiles();
 	}
 
 	/**
-	 * This synchronizes the metadata object with the DB. Entries in the
-	 * database will be updated. Keys that do not yet exist will be created.
+	 * Compresses a tile's data using the codec set in the metadata.
+	 * 
+	 * @param data
+	 *            The tile's data.
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @return The data to be stored and its codec.
 	 */
-	private void writeMetaDataToDB() {
-		System.out.println("Writing meta data");
-		try {
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('version', '"
-							+ this.mapFileMetaData.getFileVersion() + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('dateOfCreation', '"
-							+ this.mapFileMetaData.getDateOfCreation() + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('boundingBoxMinLat', "
-							+ this.mapFileMetaData.getMinLat() + " );");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('boundingBoxMaxLat', "
-							+ this.mapFileMetaData.getMaxLat() + " );");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('boundingBoxMinLon', "
-							+ this.mapFileMetaData.getMinLon() + " );");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('boundingBoxMaxLon', "
-							+ this.mapFileMetaData.getMaxLon() + " );");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('tileSize', '"
-							+ this.mapFileMetaData.getTileSize() + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('projection', '"
-							+ this.mapFileMetaData.getProjection() + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('languagePreference', '"
-							+ this.mapFileMetaData.getLanguagePreference()
-							+ "');");
-
-			// Flags
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('debugInformationFlag', '"
-							+ (this.mapFileMetaData.isDebugFlagSet() ? "1"
-									: "0") + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('mapPositionExistsFlag', '"
-							+ (this.mapFileMetaData.isMapStartPositionFlagSet() ? "1"
-									: "0") + "');");
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('startZoomLevelExistsFlag', '"
-							+ (this.mapFileMetaData.isStartZoomLevelFlagSet() ? "1"
-									: "0") + "');");
-
-			if (this.mapFileMetaData.isMapStartPositionFlagSet()) {
-				this.stmt
-						.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('mapStartLat', '"
-								+ this.mapFileMetaData.getMapStartLat() + "');");
-				this.stmt
-						.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('mapStartLon', '"
-								+ this.mapFileMetaData.getMapStartLon() + "');");
-			}
-
-			if (this.mapFileMetaData.isStartZoomLevelFlagSet()) {
-				this.stmt
-						.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('startZoomLevel', '"
-								+ this.mapFileMetaData.getStartZoomLevel()
-								+ "');");
-			}
-
-			this.stmt
-					.executeUpdate("INSERT OR REPLACE INTO metadata VALUES ('comment', '"
-							+ this.mapFileMetaData.getComment() + "');");
-		} catch (SQLException e) {
-			e.printStackTrace();
+	private EncodedTile encodeTileData(byte[] data, byte baseZoomInterval) {
+		final TileCodec codec = this.mapFileMetaData.getTileCodec();
+		byte[] dictionary = null;
+		if (codec == TileCodec.DEFLATE_DICTIONARY) {
+			CompressionDictionaries dictionaries = getCompressionDictionaries();
+			if (dictionaries != null) {
+				dictionary = dictionaries.getCurrent(baseZoomInterval);
+			}
 		}
 
+		return TileCodec.encodeTile(data, codec, dictionary);
 	}
 
-	private void readMetaDataFromDB() {
-		this.mapFileMetaData = new MapFileMetaData();
-
+	/**
+	 * Computes everything that is stored for a tile: its encoded data, its
+	 * hash and, if the map file is deduplicated, its digest. Safe to be called
+	 * from several threads.
+	 * 
+	 * @param rawData
+	 *            The tile's data.
+	 * @param id
+	 *            The tile's id.
+	 * @param xPos
+	 *            The tile's x coordinate.
+	 * @param yPos
+	 *            The tile's y coordinate.
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @return The tile ready to be written.
+	 */
+	PreparedTile prepareTile(byte[] rawData, long id, int xPos, int yPos, byte baseZoomInterval) {
+		final EncodedTile encoded = encodeTileData(rawData, baseZoomInterval);
+		return new PreparedTile(baseZoomInterval, id, xPos, yPos, encoded.getData(), encoded.getCodec(),
+				hashTileData(rawData), this.fileStructure.isTileDeduplication() ? TileWriter.digest(rawData)
+						: null);
+	}
+
+	/**
+	 * Restores a tile's data as it has been written.
+	 * 
+	 * @param data
+	 *            The stored data.
+	 * @param codecId
+	 *            The value of the tile's codec column.
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @return The tile's data.
+	 * @throws IOException
+	 *             if the data could not be decoded.
+	 */
+	private byte[] decodeTileData(byte[] data, int codecId, byte baseZoomInterval) throws IOException {
+		final TileCodec codec = TileCodec.fromId(codecId);
+		if (codec == TileCodec.NONE || data == null) {
+			return data;
+		}
+		if (codec == null) {
+			throw new IOException("Unknown tile codec: " + codecId);
+		}
+
+		Map<Integer, byte[]> dictionaries = null;
+		if (codec == TileCodec.DEFLATE_DICTIONARY) {
+			CompressionDictionaries all = getCompressionDictionaries();
+			if (all != null) {
+				dictionaries = all.getAll(baseZoomInterval);
+			}
+		}
+		return codec.decode(data, dictionaries);
+	}
+
+	/**
+	 * @return The compression dictionaries or null if they could not be
+	 *         read.
+	 */
+	private CompressionDictionaries getCompressionDictionaries() {
+		CompressionDictionaries dictionaries = this.compressionDictionaries;
+		// Files without the codec column have no dictionary table either
+		if (dictionaries == null && this.codecColumns) {
+			synchronized (this) {
+				if (this.compressionDictionaries == null) {
+					try {
+						this.compressionDictionaries = CompressionDictionaries.read(this.conn,
+								this.fileStructure.getAmountOfZoomIntervals());
+					} catch (SQLException e) {
+						e.printStackTrace();
+					}
+				}
+				dictionaries = this.compressionDictionaries;
+			}
+		}
+		return dictionaries;
+	}
+
+	/**
+	 * Trains a compression dictionary on a random sample of the tiles of a
+	 * zoom interval and stores it in the map file. Tiles written afterwards
+	 * are compressed using the new dictionary if the codec in the metadata
+	 * is {@link TileCodec#DEFLATE_DICTIONARY}. Tiles that have already been
+	 * written keep their codec and dictionary.
+	 * 
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param maxSamples
+	 *            The maximum number of tiles the dictionary is trained on.
+	 * @param maxDictionarySize
+	 *            The maximum size of the dictionary in bytes, at most 32768.
+	 *            Compressing with a smaller dictionary is faster.
+	 * @return true if a dictionary has been stored, false if the tiles have
+	 *         nothing in common or could not be read.
+	 */
+	public synchronized boolean trainCompressionDictionary(byte baseZoomInterval, int maxSamples,
+			int maxDictionarySize) {
+		flush();
+		try {
+			prepareSchemaForWrite();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return false;
+		}
+
+		final CompressionDictionaries dictionaries = getCompressionDictionaries();
+		if (dictionaries == null) {
+			return false;
+		}
+
+		try {
+			// The sample is drawn from the hash index, only the chosen tiles are read
+			final ArrayList<byte[]> samples = new ArrayList<byte[]>(maxSamples);
+			PreparedStatement ps = this.conn.prepareStatement("SELECT data, codec FROM "
+					+ TileWriter.tileTable(baseZoomInterval, this.fileStructure.isTileDeduplication())
+					+ " WHERE id IN (SELECT id FROM "
+					+ TileReader.hashTable(baseZoomInterval, this.hashIndexes) + " ORDER BY random() LIMIT ?);");
+			try {
+				ps.setInt(1, maxSamples);
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						byte[] data = decodeTileData(rs.getBytes(1), rs.getInt(2), baseZoomInterval);
+						if (data != null) {
+							samples.add(data);
+						}
+					}
+				} finally {
+					rs.close();
+				}
+			} finally {
+				ps.close();
+			}
+
+			final byte[] dictionary = DictionaryTrainer.train(samples, maxDictionarySize);
+			if (dictionary == null) {
+				return false;
+			}
+
+			final CompressionDictionaries updated = dictionaries.write(this.conn, baseZoomInterval, dictionary);
+			this.conn.commit();
+			this.compressionDictionaries = updated;
+			return true;
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		return false;
+	}
+
+	private void initializeTileBounds() {
+		this.tileBounds = new TileBounds[this.fileStructure.getAmountOfZoomIntervals()];
+		this.tileBoundsStale = new boolean[this.tileBounds.length];
+		for (int i = 0; i < this.tileBounds.length; i++) {
+			this.tileBounds[i] = new TileBounds();
+		}
+	}
+
+	/**
+	 * Reads the tile bounds stored along with the metadata. Files written by
+	 * older versions do not contain them. Their bounds are assumed to cover
+	 * the whole grid and are shrunk to the tiles in the tile tables when the
+	 * metadata is written next.
+	 * 
+	 * @param metaData
+	 *            The contents of the metadata table.
+	 */
+	private void readTileBounds(Map<String, String> metaData) {
+		for (int i = 0; i < this.tileBounds.length; i++) {
+			final String bounds = metaData.get(tileBoundsKey(i));
+			if (bounds != null) {
+				this.tileBounds[i] = TileBounds.parse(bounds);
+			} else {
+				final int maxCoordinate = (1 << this.fileStructure.getBaseZoomLevels()[i]) - 1;
+				this.tileBounds[i].add(0, 0);
+				this.tileBounds[i].add(maxCoordinate, maxCoordinate);
+				this.tileBoundsStale[i] = true;
+				this.tileBoundsChanged = true;
+			}
+		}
+	}
+
+	/**
+	 * Extends the bounds of a zoom interval by a written tile.
+	 */
+	private void addToTileBounds(long id, byte baseZoomInterval) {
+		this.tileBounds[baseZoomInterval].add(getXCoordinateFromId(id, baseZoomInterval),
+				getYCoordinateFromId(id, baseZoomInterval));
+		this.tileBoundsChanged = true;
+	}
+
+	/**
+	 * Marks the bounds of a zoom interval for recomputation if a deleted tile
+	 * may have been on its border.
+	 */
+	private void removeFromTileBounds(long id, byte baseZoomInterval) {
+		if (this.tileBoundsStale[baseZoomInterval]
+				|| !this.tileBounds[baseZoomInterval].isOnBorder(getXCoordinateFromId(id, baseZoomInterval),
+						getYCoordinateFromId(id, baseZoomInterval))) {
+			return;
+		}
+
+		this.tileBoundsStale[baseZoomInterval] = true;
+		this.tileBoundsChanged = true;
+	}
+
+	/**
+	 * Determines the bounds of a zoom interval from its tile table. The stale
+	 * bounds, which still contain all tiles, are shrunk side by side until
+	 * each side touches a tile. This takes one index seek per id range of a
+	 * probed row or column. Only if too many empty rows and columns are found
+	 * the whole hash index is scanned.
+	 */
+	private TileBounds computeTileBounds(byte baseZoomInterval) throws SQLException {
+		final TileBounds previous = this.tileBounds[baseZoomInterval];
+		if (!previous.isEmpty()) {
+			final TileBounds shrunk = shrinkTileBounds(baseZoomInterval, previous);
+			if (shrunk != null) {
+				return shrunk;
+			}
+		}
+
+		return scanTileBounds(baseZoomInterval);
+	}
+
+	/**
+	 * Moves each side of the bounds inward while the row or column it lies on
+	 * contains no tile.
+	 * 
+	 * @return The shrunk bounds or null if more than
+	 *         {@link #MAX_TILE_BOUNDS_SEEKS} seeks would be needed.
+	 */
+	private TileBounds shrinkTileBounds(byte baseZoomInterval, TileBounds previous) throws SQLException {
+		final byte baseZoomLevel = this.fileStructure.getBaseZoomLevels()[baseZoomInterval];
+		final TileIdLayout layout = this.fileStructure.getTileIdLayout();
+
+		TileBounds bounds = new TileBounds();
+		bounds.add(previous);
+
+		int seeks = 0;
+		PreparedStatement ps = this.conn.prepareStatement("SELECT 1 FROM tiles_" + baseZoomInterval
+				+ " WHERE id BETWEEN ? AND ? LIMIT 1;");
+		try {
+			// 0: top row, 1: bottom row, 2: left column, 3: right column
+			for (int side = 0; side < 4; side++) {
+				while (true) {
+					if (bounds.minX > bounds.maxX || bounds.minY > bounds.maxY) {
+						return new TileBounds();
+					}
+
+					final long[] ranges;
+					switch (side) {
+					case 0:
+						ranges = layout.idRangesInRect(bounds.minX, bounds.minY, bounds.maxX, bounds.minY, baseZoomLevel);
+						break;
+					case 1:
+						ranges = layout.idRangesInRect(bounds.minX, bounds.maxY, bounds.maxX, bounds.maxY, baseZoomLevel);
+						break;
+					case 2:
+						ranges = layout.idRangesInRect(bounds.minX, bounds.minY, bounds.minX, bounds.maxY, baseZoomLevel);
+						break;
+					default:
+						ranges = layout.idRangesInRect(bounds.maxX, bounds.minY, bounds.maxX, bounds.maxY, baseZoomLevel);
+						break;
+					}
+
+					seeks += ranges.length / 2;
+					if (seeks > MAX_TILE_BOUNDS_SEEKS) {
+						return null;
+					}
+					if (containsTile(ps, ranges)) {
+						break;
+					}
+
+					switch (side) {
+					case 0:
+						bounds.minY++;
+						break;
+					case 1:
+						bounds.maxY--;
+						break;
+					case 2:
+						bounds.minX++;
+						break;
+					default:
+						bounds.maxX--;
+						break;
+					}
+				}
+			}
+		} finally {
+			ps.close();
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * @return true if any of the id ranges contains a tile.
+	 */
+	private static boolean containsTile(PreparedStatement ps, long[] ranges) throws SQLException {
+		for (int i = 0; i < ranges.length; i += 2) {
+			ps.setLong(1, ranges[i]);
+			ps.setLong(2, ranges[i + 1]);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					return true;
+				}
+			} finally {
+				rs.close();
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Determines the bounds of a zoom interval from scratch. The ids are
+	 * masked so that only the bits of one coordinate remain, whose
+	 * minimum and maximum are found in a single scan of the hash index. This
+	 * takes time linear in the number of tiles.
+	 */
+	private TileBounds scanTileBounds(byte baseZoomInterval) throws SQLException {
+		final byte baseZoomLevel = this.fileStructure.getBaseZoomLevels()[baseZoomInterval];
+		final TileIdLayout layout = this.fileStructure.getTileIdLayout();
+		final long xBits = layout.xBits(baseZoomLevel);
+		final long yBits = layout.yBits(baseZoomLevel);
+
+		TileBounds bounds = new TileBounds();
+		PreparedStatement ps = this.conn.prepareStatement("SELECT MIN(id & ?), MAX(id & ?), MIN(id & ?), MAX(id & ?) FROM "
+				+ TileReader.hashTable(baseZoomInterval, this.hashIndexes) + ";");
+		try {
+			ps.setLong(1, xBits);
+			ps.setLong(2, xBits);
+			ps.setLong(3, yBits);
+			ps.setLong(4, yBits);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					long minX = rs.getLong(1);
+					// The aggregates are NULL for empty tables
+					if (!rs.wasNull()) {
+						bounds.add(layout.idToX(minX, baseZoomLevel), layout.idToY(rs.getLong(3), baseZoomLevel));
+						bounds.add(layout.idToX(rs.getLong(2), baseZoomLevel),
+								layout.idToY(rs.getLong(4), baseZoomLevel));
+					}
+				}
+			} finally {
+				rs.close();
+			}
+		} finally {
+			ps.close();
+		}
+
+		return bounds;
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The metadata key under which the interval's tile bounds are
+	 *         stored.
+	 */
+	static String tileBoundsKey(int baseZoomInterval) {
+		return "tileBounds_" + baseZoomInterval;
+	}
+	@Override
+	public void insertOrUpdateTile(byte[] rawData, int xPos, int yPos,
+			byte baseZoomInterval) {
+		insertOrUpdateTile(rawData,
+				coordinatesToID(xPos, yPos, baseZoomInterval), baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTile(byte[] rawData, long id, byte baseZoomInterval) {
+		if (this.writeBehindBuffer != null) {
+			addToTileBounds(id, baseZoomInterval);
+			bufferWrite(baseZoomInterval, id, rawData);
+			return;
+		}
+
+		try {
+			prepareSchemaForWrite();
+			this.tileWriter.write(prepareTile(rawData, id, getXCoordinateFromId(id, baseZoomInterval),
+					getYCoordinateFromId(id, baseZoomInterval), baseZoomInterval));
+			this.hashTree.add(baseZoomInterval, getXCoordinateFromId(id, baseZoomInterval),
+					getYCoordinateFromId(id, baseZoomInterval));
+			
+			addToTileBounds(id, baseZoomInterval);
+			
+			this.tileWriter.executeBatches();
+			this.hashTree.update();
+			writeChangedMetaData();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			rollback();
+		}
+
+	}
+
+	@Override
+	public synchronized void insertOrUpdateTiles(Collection<TileDataContainer> rawData) {
+		try {
+			// Pending writes are older, so they have to be written first
+			writePendingTiles();
+
+			// The tiles may belong to different zoom intervals
+			for (TileDataContainer tile : rawData) {
+				final byte interval = (byte) tile.getBaseZoomLevel();
+				this.tileWriter.write(prepareTile(tile.getData(),
+						coordinatesToID(tile.getxPos(), tile.getyPos(), interval),
+						tile.getxPos(), tile.getyPos(), interval));
+				this.hashTree.add(interval, tile.getxPos(), tile.getyPos());
+				
+				this.tileBounds[interval].add(tile.getxPos(), tile.getyPos());
+			}
+
+			this.tileWriter.executeBatches();
+			this.hashTree.update();
+			this.tileBoundsChanged = true;
+			writeChangedMetaData();
+			this.conn.commit();
+			if (this.writeBehindBuffer != null) {
+				this.writeBehindBuffer.clear();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			rollback();
+		}
+	}
+
+	/**
+	 * Writes tiles whose ids, hashes and encoded data have already been
+	 * computed in a single transaction. If anything fails the transaction is
+	 * rolled back along with the pending writes.
+	 * 
+	 * @param tiles
+	 *            The tiles to be written, possibly of different zoom
+	 *            intervals.
+	 * @throws SQLException
+	 *             if the tiles could not be written.
+	 */
+	synchronized void insertPreparedTiles(Collection<PreparedTile> tiles) throws SQLException {
+		boolean committed = false;
+		try {
+			writePendingTiles();
+
+			for (PreparedTile tile : tiles) {
+				this.tileWriter.write(tile);
+				this.hashTree.add(tile.baseZoomInterval, tile.xPos, tile.yPos);
+				this.tileBounds[tile.baseZoomInterval].add(tile.xPos, tile.yPos);
+			}
+
+			this.tileWriter.executeBatches();
+			this.hashTree.update();
+			this.tileBoundsChanged = true;
+			writeChangedMetaData();
+			this.conn.commit();
+			committed = true;
+			if (this.writeBehindBuffer != null) {
+				this.writeBehindBuffer.clear();
+			}
+		} finally {
+			if (!committed) {
+				rollback();
+			}
+		}
+	}
+
+	/**
+	 * Applies the tile records and metadata of a patch in a single
+	 * transaction, see {@link MapPatch#apply(PCTilePersistenceManager, InputStream)}.
+	 * Writes are executed in batches of {@link #PATCH_BATCH_SIZE} tiles but
+	 * only committed once the whole patch has been read. If anything fails
+	 * the transaction is rolled back and the metadata is read again.
+	 * 
+	 * @param patch
+	 *            The patch.
+	 * @throws IOException
+	 *             if the patch cannot be read.
+	 * @throws SQLException
+	 *             if the tiles could not be written.
+	 */
+	synchronized void applyPatch(MapPatch.Reader patch) throws IOException, SQLException {
+		boolean committed = false;
+		try {
+			writePendingTiles();
+
+			final MapFileMetaData patchedMetaData = this.mapFileMetaData.copy();
+			if (patch.readMetaData(patchedMetaData)) {
+				this.mapFileMetaData = patchedMetaData;
+			}
+
+			final boolean[] pendingDeletes = new boolean[this.fileStructure.getAmountOfZoomIntervals()];
+			int pending = 0;
+			while (patch.next()) {
+				final byte interval = patch.baseZoomInterval;
+				final long id = coordinatesToID(patch.xPos, patch.yPos, interval);
+				if (patch.tileData != null) {
+					this.tileWriter.write(prepareTile(patch.tileData, id, patch.xPos, patch.yPos, interval));
+					this.tileBounds[interval].add(patch.xPos, patch.yPos);
+				} else {
+					final PreparedStatement ps = getDeleteTileStatement(interval);
+					if (!pendingDeletes[interval]) {
+						ps.clearBatch();
+						pendingDeletes[interval] = true;
+					}
+					ps.setLong(1, id);
+					ps.addBatch();
+					removeFromTileBounds(id, interval);
+				}
+				this.hashTree.add(interval, patch.xPos, patch.yPos);
+
+				if (++pending == PATCH_BATCH_SIZE) {
+					executePatchBatches(pendingDeletes);
+					pending = 0;
+				}
+			}
+			executePatchBatches(pendingDeletes);
+
+			this.hashTree.update();
+			this.tileBoundsChanged = true;
+			writeChangedMetaData();
+			this.conn.commit();
+			committed = true;
+			if (this.writeBehindBuffer != null) {
+				this.writeBehindBuffer.clear();
+			}
+		} finally {
+			if (!committed) {
+				rollback();
+			}
+		}
+	}
+
+	private void executePatchBatches(boolean[] pendingDeletes) throws SQLException {
+		this.tileWriter.executeBatches();
+		for (byte i = 0; i < pendingDeletes.length; i++) {
+			if (pendingDeletes[i]) {
+				pendingDeletes[i] = false;
+				getDeleteTileStatement(i).executeBatch();
+			}
+		}
+	}
+
+	@Override
+	public void deleteTile(int xPos, int yPos, byte baseZoomInterval) {
+		deleteTile(coordinatesToID(xPos, yPos, baseZoomInterval),
+				baseZoomInterval);
+	}
+
+	@Override
+	public synchronized void deleteTile(long id, byte baseZoomInterval) {
+		removeFromTileBounds(id, baseZoomInterval);
+
+		if (this.writeBehindBuffer != null) {
+			bufferWrite(baseZoomInterval, id, WriteBehindBuffer.DELETED);
+			return;
+		}
+
+		try {
+			prepareSchemaForWrite();
+			final PreparedStatement ps = getDeleteTileStatement(baseZoomInterval);
+			ps.clearBatch();
+			ps.setLong(1, id);
+
+			ps.addBatch();
+			ps.executeBatch();
+			this.hashTree.add(baseZoomInterval, getXCoordinateFromId(id, baseZoomInterval),
+					getYCoordinateFromId(id, baseZoomInterval));
+			this.hashTree.update();
+			writeChangedMetaData();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			rollback();
+		}
+	}
+
+	@Override
+	public synchronized void deleteTiles(long[] id, byte baseZoomInterval) {
+		for (int i = 0; i < id.length; i++) {
+			removeFromTileBounds(id[i], baseZoomInterval);
+		}
+
+		if (this.writeBehindBuffer != null) {
+			for (int i = 0; i < id.length; i++) {
+				bufferWrite(baseZoomInterval, id[i], WriteBehindBuffer.DELETED);
+			}
+			return;
+		}
+
+		try {
+			prepareSchemaForWrite();
+			final PreparedStatement ps = getDeleteTileStatement(baseZoomInterval);
+			ps.clearBatch();
+			for (int i = 0; i < id.length; i++) {
+				ps.setLong(1, id[i]);
+
+				ps.addBatch();
+				this.hashTree.add(baseZoomInterval, getXCoordinateFromId(id[i], baseZoomInterval),
+						getYCoordinateFromId(id[i], baseZoomInterval));
+			}
+			ps.executeBatch();
+			this.hashTree.update();
+			writeChangedMetaData();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			rollback();
+		}
+	}
+	
+	@Override
+	public long getTileHash(int xPos, int yPos, byte baseZoomInterval) {
+		return getTileHash(coordinatesToID(xPos, yPos, baseZoomInterval),
+				baseZoomInterval);
+	}
+	
+	@Override
+	public long getTileHash(long id, byte baseZoomInterval) {
+		long result = 0;
+
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			return pending == WriteBehindBuffer.DELETED ? result : hashTileData(pending);
+		}
+		if (!this.storedHashes) {
+			return hashTileData(getTileData(id, baseZoomInterval));
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
+
+		try {
+			PreparedStatement ps = reader.getTileHashByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					result = rs.getLong(1);
+				}
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return result;
+	}
+
+	@Override
+	public long[] getTileHashes(long[] ids, byte baseZoomInterval) {
+		long[] ret = new long[ids.length];
+		if (!this.storedHashes) {
+			return computeTileHashes(ids, baseZoomInterval);
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return ret;
+		}
+
+		// Hashes are collected in id order and mapped back to the requested
+		// order afterwards
+		final long[] sortedIds = sortedUniqueIds(ids);
+		final long[] sortedHashes = new long[sortedIds.length];
+		final long[] queryIds = withoutPendingTiles(sortedIds, baseZoomInterval, sortedHashes, null);
+		try {
+			int offset = 0;
+			while (offset < queryIds.length) {
+				int arityIndex = TileReader.multiGetArityIndex(queryIds.length - offset);
+				int arity = TileReader.MULTI_GET_ARITIES[arityIndex];
+				int last = Math.min(offset + arity, queryIds.length) - 1;
+
+				PreparedStatement ps = reader.getTileHashesByIDStatement(baseZoomInterval, arityIndex);
+				for (int i = 0; i < arity; i++) {
+					ps.setLong(i + 1, queryIds[Math.min(offset + i, last)]);
+				}
+
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						int index = Arrays.binarySearch(sortedIds, rs.getLong(1));
+						sortedHashes[index] = rs.getLong(2);
+					}
+				} finally {
+					rs.close();
+				}
+
+				offset = last + 1;
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+			return ret;
+		} finally {
+			releaseReader(reader);
+		}
+
+		for (int i = 0; i < ids.length; i++) {
+			ret[i] = sortedHashes[Arrays.binarySearch(sortedIds, ids[i])];
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Hashes the data of the given tiles of a file whose stored hashes are
+	 * outdated.
+	 */
+	private long[] computeTileHashes(long[] ids, byte baseZoomInterval) {
+		final Map<Long, Long> hashes = new HashMap<Long, Long>();
+		for (TileDataContainer tile : getTileData(ids, baseZoomInterval)) {
+			hashes.put(Long.valueOf(tile.getId()), Long.valueOf(hashTileData(tile.getData())));
+		}
+
+		long[] ret = new long[ids.length];
+		for (int i = 0; i < ids.length; i++) {
+			final Long hash = hashes.get(Long.valueOf(ids[i]));
+			ret[i] = hash == null ? 0 : hash.longValue();
+		}
+		return ret;
+	}
+
+	@Override
+	public void getTileHashes(byte baseZoomInterval, TileHashHandler handler) {
+		scanTileHashes(new long[] { 0, Long.MAX_VALUE }, baseZoomInterval, handler);
+	}
+
+	@Override
+	public void getTileHashesInRect(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval, TileHashHandler handler) {
+		final byte baseZoomLevel = this.fileStructure.getBaseZoomLevels()[baseZoomInterval];
+		final int maxCoordinate = (int) ((1L << baseZoomLevel) - 1);
+		minX = Math.max(minX, 0);
+		minY = Math.max(minY, 0);
+		maxX = Math.min(maxX, maxCoordinate);
+		maxY = Math.min(maxY, maxCoordinate);
+		if (minX > maxX || minY > maxY) {
+			return;
+		}
+
+		scanTileHashes(this.fileStructure.getTileIdLayout().idRangesInRect(minX, minY, maxX, maxY,
+				baseZoomLevel), baseZoomInterval, handler);
+	}
+
+	/**
+	 * Passes the hashes of all tiles within the given id ranges to the
+	 * handler. Only the hash index is read, unless the stored hashes are
+	 * outdated and the hashes have to be computed from the tile data.
+	 * 
+	 * @param ranges
+	 *            Pairs of inclusive lower and upper id bounds in ascending
+	 *            order.
+	 */
+	private void scanTileHashes(long[] ranges, byte baseZoomInterval, final TileHashHandler handler) {
+		if (!this.storedHashes) {
+			scanTileData(ranges, baseZoomInterval, new TileDataHandler() {
+				@Override
+				public void handleTile(TileDataContainer tile) {
+					handler.handleTileHash(tile.getId(), tile.getxPos(), tile.getyPos(),
+							hashTileData(tile.getData()));
+				}
+			});
+			return;
+		}
+
+		flushBeforeScan();
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return;
+		}
+
+		try {
+			PreparedStatement ps = reader.getTileHashesByIDRangeStatement(baseZoomInterval);
+
+			for (int i = 0; i < ranges.length; i += 2) {
+				ps.setLong(1, ranges[i]);
+				ps.setLong(2, ranges[i + 1]);
+
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						long id = rs.getLong(1);
+						handler.handleTileHash(id,
+								getXCoordinateFromId(id, baseZoomInterval),
+								getYCoordinateFromId(id, baseZoomInterval),
+								rs.getLong(2));
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+	}
+
+	/**
+	 * Replaces the hash trees of this map file by new ones with the given
+	 * fan-out, built from the hashes of all tiles. From then on every write
+	 * updates the trees within its own transaction (see
+	 * {@link MapFileMetaData#setHashTreeFactor(int)}).
+	 * 
+	 * @param factor
+	 *            0 for removing the hash trees or a power of two between 2
+	 *            and 16.
+	 */
+	public synchronized void buildHashTree(int factor) {
+		if (!HashTree.isValidFactor(factor)) {
+			throw new IllegalArgumentException("invalid hash tree factor: " + factor);
+		}
+		flush();
+
+		try {
+			prepareSchemaForWrite();
+			this.hashTree.close();
+			HashTree.dropTables(this.stmt);
+			this.mapFileMetaData.setHashTreeFactor(factor);
+			this.fileStructure.setHashTreeFactor(factor);
+			HashTree.createTables(this.stmt, this.fileStructure);
+
+			this.hashTree = new HashTree(this.conn, this.fileStructure);
+			for (byte i = 0; i < this.fileStructure.getAmountOfZoomIntervals(); i++) {
+				this.hashTree.addAll(i);
+			}
+			this.hashTree.update();
+			writeChangedMetaData();
+			this.conn.commit();
+		} catch (SQLException e) {
+			e.printStackTrace();
+			// The old trees and factor are back after the rollback
+			this.hashTree.close();
+			rollback();
+			this.hashTree = new HashTree(this.conn, this.fileStructure);
+		}
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The height of the root of the zoom interval's hash tree or 0 if
+	 *         the map file has no hash trees.
+	 */
+	public int getHashTreeHeight(byte baseZoomInterval) {
+		final int factor = this.fileStructure.getHashTreeFactor();
+		return factor == 0 ? 0 : HashTree.height(factor,
+				this.fileStructure.getBaseZoomLevels()[baseZoomInterval]);
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return The hash of the root of the zoom interval's hash tree, 0 if
+	 *         there are no tiles. Two zoom intervals with the same root hash
+	 *         hold the same tiles.
+	 */
+	public long getHashTreeRoot(byte baseZoomInterval) {
+		return getHashTreeNode(baseZoomInterval, getHashTreeHeight(baseZoomInterval), 0, 0);
+	}
+
+	private void checkHashTreeHeight(byte baseZoomInterval, int height, int minHeight) {
+		if (this.fileStructure.getHashTreeFactor() == 0) {
+			throw new IllegalStateException("The map file has no hash trees");
+		}
+		if (height < minHeight || height > getHashTreeHeight(baseZoomInterval)) {
+			throw new IllegalArgumentException("invalid hash tree height: " + height);
+		}
+	}
+
+	/**
+	 * Reads the hash of a node of a stored hash tree (see {@link HashTree}).
+	 * Pending writes are flushed first.
+	 * 
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param height
+	 *            The node's height, 0 for a tile.
+	 * @param x
+	 *            The node's x coordinate, the tiles it covers have x
+	 *            coordinates starting at <code>x * factor^height</code>.
+	 * @param y
+	 *            The node's y coordinate.
+	 * @return The node's hash or 0 if there are no tiles below the node.
+	 */
+	public long getHashTreeNode(byte baseZoomInterval, int height, int x, int y) {
+		checkHashTreeHeight(baseZoomInterval, height, 0);
+		if (height == 0) {
+			return getTileHash(x, y, baseZoomInterval);
+		}
+		flushBeforeScan();
+
+		long result = 0;
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
+
+		try {
+			PreparedStatement ps = reader.getHashTreeNodesByIDRangeStatement(baseZoomInterval, height);
+			final long id = HashTree.nodeId(x, y);
+			ps.setLong(1, id);
+			ps.setLong(2, id);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					result = rs.getLong(2);
+				}
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Reads the hashes of the children of a node of a stored hash tree in a
+	 * single query, for descending into the subtrees that differ from another
+	 * tree. Pending writes are flushed first.
+	 * 
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param height
+	 *            The node's height, at least 1.
+	 * @param x
+	 *            The node's x coordinate.
+	 * @param y
+	 *            The node's y coordinate.
+	 * @return The hashes of the <code>factor * factor</code> children ordered
+	 *         by x and then by y, the child at index <code>i</code> has the
+	 *         coordinates <code>(x * factor + i / factor, y * factor + i %
+	 *         factor)</code>. Children without tiles have a hash of 0.
+	 */
+	public long[] getHashTreeChildren(byte baseZoomInterval, int height, int x, int y) {
+		checkHashTreeHeight(baseZoomInterval, height, 1);
+		flushBeforeScan();
+
+		final int factor = this.fileStructure.getHashTreeFactor();
+		final long[] children = new long[factor * factor];
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return children;
+		}
+
+		try {
+			PreparedStatement ps = height == 1 ? reader.getTileHashesByIDRangeStatement(baseZoomInterval)
+					: reader.getHashTreeNodesByIDRangeStatement(baseZoomInterval, height - 1);
+			HashTree.readChildren(ps, this.fileStructure.getTileIdLayout(),
+					this.fileStructure.getBaseZoomLevels()[baseZoomInterval], factor, height, x, y, children);
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return children;
+	}
+
+	@Override
+	public byte[] getTileData(int xPos, int yPos, byte baseZoomInterval) {
+		return getTileData(coordinatesToID(xPos, yPos, baseZoomInterval),
+				baseZoomInterval);
+	}
+
+	@Override
+	public byte[] getTileData(long id, byte baseZoomInterval) {
+		byte[] result = null;
+
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			return pending == WriteBehindBuffer.DELETED ? result : pending;
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
+
+		try {
+			PreparedStatement ps = reader.getTileByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					result = decodeTileData(rs.getBytes(1), rs.getInt(4), baseZoomInterval);
+				}
+			} finally {
+				rs.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return result;
+	}
+
+	@Override
+	public void getTilesInRect(int minX, int minY, int maxX, int maxY,
+			byte baseZoomInterval, TileDataHandler handler) {
+		final byte baseZoomLevel = this.fileStructure.getBaseZoomLevels()[baseZoomInterval];
+		final int maxCoordinate = (int) ((1L << baseZoomLevel) - 1);
+		minX = Math.max(minX, 0);
+		minY = Math.max(minY, 0);
+		maxX = Math.min(maxX, maxCoordinate);
+		maxY = Math.min(maxY, maxCoordinate);
+		if (minX > maxX || minY > maxY) {
+			return;
+		}
+
+		scanTileData(this.fileStructure.getTileIdLayout().idRangesInRect(minX, minY, maxX, maxY,
+				baseZoomLevel), baseZoomInterval, handler);
+	}
+
+	/**
+	 * Passes all tiles within the given id ranges to the handler.
+	 * 
+	 * @param ranges
+	 *            Pairs of inclusive lower and upper id bounds in ascending
+	 *            order.
+	 */
+	private void scanTileData(long[] ranges, byte baseZoomInterval, TileDataHandler handler) {
+		flushBeforeScan();
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return;
+		}
+
+		final byte tileType = this.fileStructure.getTileTypes()[baseZoomInterval];
+		try {
+			PreparedStatement ps = reader.getTilesByIDRangeStatement(baseZoomInterval);
+
+			for (int i = 0; i < ranges.length; i += 2) {
+				ps.setLong(1, ranges[i]);
+				ps.setLong(2, ranges[i + 1]);
+
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						long id = rs.getLong(1);
+						handler.handleTile(new TileDataContainer(decodeTileData(rs.getBytes(2), rs.getInt(3),
+								baseZoomInterval), tileType, id,
+								getXCoordinateFromId(id, baseZoomInterval),
+								getYCoordinateFromId(id, baseZoomInterval),
+								baseZoomInterval));
+					}
+				} finally {
+					rs.close();
+				}
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+	}
+
+	@Override
+	public void getTilesInBoundingBox(double minLat, double minLon,
+			double maxLat, double maxLon, byte baseZoomInterval,
+			TileDataHandler handler) {
+		final byte baseZoomLevel = this.fileStructure.getBaseZoomLevels()[baseZoomInterval];
+
+		// Tile rows are counted from north to south
+		getTilesInRect((int) MercatorProjection.longitudeToTileX(minLon, baseZoomLevel),
+				(int) MercatorProjection.latitudeToTileY(maxLat, baseZoomLevel),
+				(int) MercatorProjection.longitudeToTileX(maxLon, baseZoomLevel),
+				(int) MercatorProjection.latitudeToTileY(minLat, baseZoomLevel),
+				baseZoomInterval, handler);
+	}
+
+	@Override
+	public int getTileData(long id, byte baseZoomInterval, ByteBuffer dst) {
+		int result = -1;
+
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			if (pending == WriteBehindBuffer.DELETED) {
+				return result;
+			}
+			dst.put(pending);
+			return pending.length;
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
+
 		try {
-			// Version
-			this.getMetaDataStatement.setString(1, "version");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData
-						.setFileVersion(this.resultSet.getString(1));
-			}
-
-			// Date of creation
-			this.getMetaDataStatement.setString(1, "dateOfCreation");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData.setDateOfCreation(Long
-						.parseLong(this.resultSet.getString(1)));
-			}
-
-			// Bounding box
-			Rect boundingBox = new Rect(0, 0, 0, 0);
-			this.getMetaDataStatement.setString(1, "boundingBoxMinLat");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				boundingBox.minLatitudeE6 = Integer.parseInt(this.resultSet
-						.getString(1));
-			}
-			this.getMetaDataStatement.setString(1, "boundingBoxMaxLat");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				boundingBox.maxLatitudeE6 = Integer.parseInt(this.resultSet
-						.getString(1));
-			}
-			this.getMetaDataStatement.setString(1, "boundingBoxMinLon");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				boundingBox.minLongitudeE6 = Integer.parseInt(this.resultSet
-						.getString(1));
-			}
-			this.getMetaDataStatement.setString(1, "boundingBoxMaxLon");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				boundingBox.maxLongitudeE6 = Integer.parseInt(this.resultSet
-						.getString(1));
-			}
-			this.mapFileMetaData.setBoundingBox(boundingBox.minLatitudeE6,
-					boundingBox.minLongitudeE6, boundingBox.maxLatitudeE6,
-					boundingBox.maxLongitudeE6);
-
-			// Tile size
-			this.getMetaDataStatement.setString(1, "tileSize");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData.setTileSize(Integer
-						.parseInt(this.resultSet.getString(1)));
-			}
-
-			// Projection
-			this.getMetaDataStatement.setString(1, "projection");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData.setProjection(this.resultSet.getString(1));
-			}
-
-			// Language preference
-			this.getMetaDataStatement.setString(1, "languagePreference");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData.setLanguagePreference(this.resultSet
-						.getString(1));
-			}
-
-			byte flags = 0;
-			// Debug flag
-			this.getMetaDataStatement.setString(1, "debugInformationFlag");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				if (this.resultSet.getString(1).equals("1")) {
-					flags = (byte) (flags | (byte) 0x80);
+			PreparedStatement ps = reader.getTileByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+
+			try {
+				if (rs.next()) {
+					if (rs.getInt(4) != TileCodec.NONE.getId()) {
+						// Compressed tiles cannot be streamed
+						final byte[] data = decodeTileData(rs.getBytes(1), rs.getInt(4), baseZoomInterval);
+						dst.put(data);
+						result = data.length;
+					} else {
+						if (rs.getInt(3) > dst.remaining()) {
+							throw new BufferOverflowException();
+						}
+						result = transfer(rs.getBinaryStream(1), dst, reader.getTransferBuffer());
+					}
 				}
+			} finally {
+				rs.close();
 			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
 
-			// Map position flag
-			this.getMetaDataStatement.setString(1, "mapPositionExistsFlag");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				if (this.resultSet.getString(1).equals("1")) {
-					flags = (byte) (flags | (byte) 0x40);
-				}
+		return result;
+	}
+
+	@Override
+	public boolean getTileData(long id, byte baseZoomInterval, OutputStream out) throws IOException {
+		boolean result = false;
+
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			if (pending == WriteBehindBuffer.DELETED) {
+				return result;
 			}
+			out.write(pending);
+			return true;
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
+
+		try {
+			PreparedStatement ps = reader.getTileByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
 
-			// Start zoom level flag
-			this.getMetaDataStatement.setString(1, "startZoomLevelExistsFlag");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				if (this.resultSet.getString(1).equals("1")) {
-					flags = (byte) (flags | (byte) 0x20);
+			try {
+				if (rs.next()) {
+					if (rs.getInt(4) != TileCodec.NONE.getId()) {
+						out.write(decodeTileData(rs.getBytes(1), rs.getInt(4), baseZoomInterval));
+					} else {
+						transfer(rs.getBinaryStream(1), out, reader.getTransferBuffer());
+					}
+					result = true;
 				}
+			} finally {
+				rs.close();
 			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
+
+		return result;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The returned stream keeps the query's result set open and, if a reader
+	 * pool is used, its connection borrowed until it is closed. Without a
+	 * reader pool it has to be closed before the next tile is read.
+	 */
+	@Override
+	public InputStream getTileDataStream(long id, byte baseZoomInterval) {
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			return pending == WriteBehindBuffer.DELETED ? null : new ByteArrayInputStream(pending);
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return null;
+		}
 
-			this.mapFileMetaData.setFlags(flags);
+		InputStream result = null;
+		try {
+			PreparedStatement ps = reader.getTileByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
 
-			// Map start position
-			int mapStartLat = 0;
-			int mapStartLon = 0;
-			if (this.mapFileMetaData.isMapStartPositionFlagSet()) {
-				this.getMetaDataStatement.setString(1, "mapStartLat");
-				this.getMetaDataStatement.execute();
-				this.resultSet = this.getMetaDataStatement.getResultSet();
-				if (this.resultSet.next()) {
-					mapStartLat = Integer.parseInt(this.resultSet.getString(1));
+			try {
+				if (rs.next()) {
+					if (rs.getInt(4) != TileCodec.NONE.getId()) {
+						result = new ByteArrayInputStream(decodeTileData(rs.getBytes(1), rs.getInt(4),
+								baseZoomInterval));
+					} else {
+						InputStream in = rs.getBinaryStream(1);
+						if (in != null) {
+							result = new TileDataInputStream(in, rs, reader);
+						}
+					}
 				}
-				this.getMetaDataStatement.setString(1, "mapStartLon");
-				this.getMetaDataStatement.execute();
-				this.resultSet = this.getMetaDataStatement.getResultSet();
-				if (this.resultSet.next()) {
-					mapStartLon = Integer.parseInt(this.resultSet.getString(1));
+			} finally {
+				// Otherwise the stream closes them
+				if (!(result instanceof TileDataInputStream)) {
+					rs.close();
 				}
-
-				this.mapFileMetaData.setMapStartPosition(mapStartLat,
-						mapStartLon);
 			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			if (!(result instanceof TileDataInputStream)) {
+				releaseReader(reader);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Returns a tile's data as it is stored, without decompressing it. This
+	 * allows servers to send tiles compressed with
+	 * {@link TileCodec#DEFLATE} to HTTP clients as they are. Tiles with
+	 * pending writes are returned uncompressed.
+	 * 
+	 * @param id
+	 *            The tile's id.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @return The tile's stored data and codec or null if there is no such
+	 *         tile.
+	 */
+	public EncodedTile getEncodedTileData(long id, byte baseZoomInterval) {
+		EncodedTile result = null;
+
+		byte[] pending = getPendingTileData(id, baseZoomInterval);
+		if (pending != null) {
+			return pending == WriteBehindBuffer.DELETED ? result : new EncodedTile(TileCodec.NONE, pending);
+		}
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return result;
+		}
 
-			// Start zoom level
-			if (this.mapFileMetaData.isStartZoomLevelFlagSet()) {
-				this.getMetaDataStatement.setString(1, "startZoomLevel");
-				this.getMetaDataStatement.execute();
-				this.resultSet = this.getMetaDataStatement.getResultSet();
-				if (this.resultSet.next()) {
-					this.mapFileMetaData.setStartZoomLevel(Byte
-							.parseByte((this.resultSet.getString(1))));
+		try {
+			PreparedStatement ps = reader.getTileByIDStatement(baseZoomInterval);
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+			try {
+				if (rs.next()) {
+					final TileCodec codec = TileCodec.fromId(rs.getInt(4));
+					if (codec != null) {
+						result = new EncodedTile(codec, rs.getBytes(1));
+					}
 				}
+			} finally {
+				rs.close();
 			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
 
-			// Comment
-			this.getMetaDataStatement.setString(1, "comment");
-			this.getMetaDataStatement.execute();
-			this.resultSet = this.getMetaDataStatement.getResultSet();
-			if (this.resultSet.next()) {
-				this.mapFileMetaData.setComment(this.resultSet.getString(1));
+		return result;
+	}
+
+	/**
+	 * A stream on a tile's BLOB that releases the database resources when it
+	 * is closed.
+	 */
+	private class TileDataInputStream extends FilterInputStream {
+		private ResultSet rs;
+		private TileReader reader;
+
+		TileDataInputStream(InputStream in, ResultSet rs, TileReader reader) {
+			super(in);
+			this.rs = rs;
+			this.reader = reader;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (this.reader == null) {
+				return;
 			}
 
-			// POI tag mappings
-			int numPoiTags = 0;
-			this.stmt.execute("SELECT count(*) FROM poi_tags;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				numPoiTags = Integer.parseInt(this.resultSet.getString(1));
+			try {
+				super.close();
+				this.rs.close();
+			} catch (SQLException e) {
+				throw new IOException(e.getMessage());
+			} finally {
+				releaseReader(this.reader);
+				this.reader = null;
+				this.rs = null;
 			}
-			this.mapFileMetaData.setAmountOfPOIMappings(numPoiTags);
-			this.mapFileMetaData.preparePOIMappings();
+		}
+	}
+
+	/**
+	 * Copies a BLOB stream into a buffer. Heap buffers are filled directly,
+	 * direct buffers through the given scratch buffer.
+	 * 
+	 * @return The number of bytes copied.
+	 */
+	private static int transfer(InputStream in, ByteBuffer dst, byte[] buffer) throws IOException {
+		if (in == null) {
+			return 0;
+		}
 
-			this.stmt.execute("SELECT tag, value FROM poi_tags;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				this.mapFileMetaData.getPOIMappings()[this.resultSet.getInt(2)] = this.resultSet
-						.getString(1);
+		int total = 0;
+		int n;
+		if (dst.hasArray()) {
+			while (dst.hasRemaining()
+					&& (n = in.read(dst.array(), dst.arrayOffset() + dst.position(), dst.remaining())) > 0) {
+				dst.position(dst.position() + n);
+				total += n;
 			}
+		} else {
+			while ((n = in.read(buffer, 0, Math.min(buffer.length, dst.remaining()))) > 0) {
+				dst.put(buffer, 0, n);
+				total += n;
+			}
+		}
+		in.close();
+
+		return total;
+	}
+
+	private static void transfer(InputStream in, OutputStream out, byte[] buffer) throws IOException {
+		if (in == null) {
+			return;
+		}
+
+		int n;
+		while ((n = in.read(buffer)) > 0) {
+			out.write(buffer, 0, n);
+		}
+		in.close();
+	}
+
+	@Override
+	public Collection<TileDataContainer> getTileData(long[] ids,
+			byte baseZoomInterval) {
+		ArrayList<TileDataContainer> ret = new ArrayList<TileDataContainer>(ids.length);
+
+		TileReader reader = acquireReader();
+		if (reader == null) {
+			return ret;
+		}
+
+		final byte tileType = this.fileStructure.getTileTypes()[baseZoomInterval];
+		final long[] sortedIds = withoutPendingTiles(sortedUniqueIds(ids), baseZoomInterval, null, ret);
+		try {
+			// Fetch the ids in chunks using statements of fixed arity. The
+			// last chunk is padded by repeating its last id, which the IN
+			// operator ignores.
+			int offset = 0;
+			while (offset < sortedIds.length) {
+				int arityIndex = TileReader.multiGetArityIndex(sortedIds.length - offset);
+				int arity = TileReader.MULTI_GET_ARITIES[arityIndex];
+				int last = Math.min(offset + arity, sortedIds.length) - 1;
+
+				PreparedStatement ps = reader.getTilesByIDStatement(baseZoomInterval, arityIndex);
+				for (int i = 0; i < arity; i++) {
+					ps.setLong(i + 1, sortedIds[Math.min(offset + i, last)]);
+				}
+
+				ResultSet rs = ps.executeQuery();
+				try {
+					while (rs.next()) {
+						long id = rs.getLong(1);
+						ret.add(new TileDataContainer(decodeTileData(rs.getBytes(2), rs.getInt(3),
+								baseZoomInterval), tileType, id,
+								getXCoordinateFromId(id, baseZoomInterval),
+								getYCoordinateFromId(id, baseZoomInterval),
+								baseZoomInterval));
+					}
+				} finally {
+					rs.close();
+				}
 
-			// Way Tag mappings
-			int numWayTags = 0;
-			this.stmt.execute("SELECT count(*) FROM way_tags;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				numWayTags = Integer.parseInt(this.resultSet.getString(1));
+				offset = last + 1;
 			}
-			this.mapFileMetaData.setAmountOfWayTagMappings(numWayTags);
-			this.mapFileMetaData.prepareWayTagMappings();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			releaseReader(reader);
+		}
 
-			this.stmt.execute("SELECT tag, value FROM way_tags;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				this.mapFileMetaData.getWayTagMappings()[this.resultSet
-						.getInt(2)] = this.resultSet.getString(1);
+		return ret;
+	}
+
+	/**
+	 * Answers requests for tiles with pending writes from the write-behind
+	 * buffer.
+	 * 
+	 * @param sortedIds
+	 *            The requested ids in ascending order.
+	 * @param hashes
+	 *            If not null, receives the hashes of pending tiles at the
+	 *            indexes of their ids.
+	 * @param tiles
+	 *            If not null, receives the pending tiles.
+	 * @return The ids that still have to be read from the database.
+	 */
+	private long[] withoutPendingTiles(long[] sortedIds, byte baseZoomInterval, long[] hashes,
+			Collection<TileDataContainer> tiles) {
+		WriteBehindBuffer buffer = this.writeBehindBuffer;
+		if (buffer == null) {
+			return sortedIds;
+		}
+
+		final byte tileType = this.fileStructure.getTileTypes()[baseZoomInterval];
+		int n = 0;
+		long[] remaining = new long[sortedIds.length];
+		for (int i = 0; i < sortedIds.length; i++) {
+			long id = sortedIds[i];
+			byte[] pending = buffer.get(baseZoomInterval, id);
+			if (pending == null) {
+				remaining[n++] = id;
+			} else if (pending != WriteBehindBuffer.DELETED) {
+				if (hashes != null) {
+					hashes[i] = hashTileData(pending);
+				}
+				if (tiles != null) {
+					tiles.add(new TileDataContainer(pending, tileType, id,
+							getXCoordinateFromId(id, baseZoomInterval),
+							getYCoordinateFromId(id, baseZoomInterval),
+							baseZoomInterval));
+				}
 			}
+		}
+
+		return n == remaining.length ? sortedIds : Arrays.copyOf(remaining, n);
+	}
 
-			// Zoom interval configuration
-			byte numIntervals = 0;
-			this.stmt
-					.execute("SELECT count(*) FROM zoom_interval_configuration;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				numIntervals = Byte.parseByte(this.resultSet.getString(1));
+	/**
+	 * Sorts the given ids and removes duplicates, so that chunks do not
+	 * return the same tile twice and tiles are read in primary key order.
+	 */
+	private static long[] sortedUniqueIds(long[] ids) {
+		long[] sorted = Arrays.copyOf(ids, ids.length);
+		Arrays.sort(sorted);
+
+		int n = 0;
+		for (int i = 0; i < sorted.length; i++) {
+			if (n == 0 || sorted[i] != sorted[n - 1]) {
+				sorted[n++] = sorted[i];
 			}
-			this.mapFileMetaData.setAmountOfZoomIntervals(numIntervals);
-			this.mapFileMetaData.prepareZoomIntervalConfiguration();
+		}
 
-			this.stmt
-					.execute("SELECT interval, baseZoomLevel, minimalZoomLevel, maximalZoomLevel, dataType FROM zoom_interval_configuration;");
-			this.resultSet = this.stmt.getResultSet();
-			while (this.resultSet.next()) {
-				this.mapFileMetaData.setZoomIntervalConfiguration(
-						Integer.parseInt(this.resultSet.getString(1)),
-						Byte.parseByte(this.resultSet.getString(2)),
-						Byte.parseByte(this.resultSet.getString(3)),
-						Byte.parseByte(this.resultSet.getString(4)),
-						Byte.parseByte(this.resultSet.getString(5)));
+		return n == sorted.length ? sorted : Arrays.copyOf(sorted, n);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The bounding box is derived from the committed tiles and overrides any
+	 * bounding box set by the caller, unless there are no tiles. It is updated
+	 * whenever the metadata is written along with a commit. Changes of the
+	 * properties that are fixed by the file, see
+	 * {@link #setMetaData(MapFileMetaData)}, are reverted at the same time.
+	 */
+	@Override
+	public MapFileMetaData getMetaData() {
+		return this.mapFileMetaData;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * 
+	 * The tile id layout, the zoom interval configuration, tile deduplication
+	 * and the hash tree factor of the given object are ignored, they keep the
+	 * values the map file has been created with. The hash trees can only be changed by
+	 * {@link #buildHashTree(int)}.
+	 */
+	@Override
+	public synchronized void setMetaData(MapFileMetaData metaData) {
+		copyFileStructure(this.fileStructure, metaData);
+		this.mapFileMetaData = metaData;
+		this.tileBoundsChanged = true;
+		writeMetaDataToDB();
+	}
+
+	/**
+	 * Copies the properties of the metadata that are fixed by the schema of
+	 * the map file.
+	 * 
+	 * @param from
+	 *            The metadata of the map file.
+	 * @param to
+	 *            The metadata to be corrected.
+	 */
+	private static void copyFileStructure(MapFileMetaData from, MapFileMetaData to) {
+		to.setTileIdLayout(from.getTileIdLayout());
+		to.setTileDeduplication(from.isTileDeduplication());
+		to.setHashTreeFactor(from.getHashTreeFactor());
+
+		if (to.getAmountOfZoomIntervals() != from.getAmountOfZoomIntervals()
+				|| !Arrays.equals(to.getBaseZoomLevels(), from.getBaseZoomLevels())
+				|| !Arrays.equals(to.getMinimalZoomLevel(), from.getMinimalZoomLevel())
+				|| !Arrays.equals(to.getMaximalZoomLevel(), from.getMaximalZoomLevel())
+				|| !Arrays.equals(to.getTileTypes(), from.getTileTypes())) {
+			to.setAmountOfZoomIntervals(from.getAmountOfZoomIntervals());
+			to.prepareZoomIntervalConfiguration();
+			for (int i = 0; i < from.getAmountOfZoomIntervals(); i++) {
+				to.setZoomIntervalConfiguration(i, from.getBaseZoomLevels()[i], from.getMinimalZoomLevel()[i],
+						from.getMaximalZoomLevel()[i], from.getTileTypes()[i]);
 			}
+		}
+	}
 
+	/**
+	 * This synchronizes the metadata object with the DB. Stale tile bounds
+	 * are recomputed and all entries that have changed are written and
+	 * committed.
+	 */
+	private void writeMetaDataToDB() {
+		try {
+			// Pending deletions have to be executed before bounds are recomputed
+			flush();
+			if (writeChangedMetaData()) {
+				System.out.println("Writing meta data");
+				this.conn.commit();
+			}
 		} catch (SQLException e) {
 			e.printStackTrace();
 		}
 
 	}
 
+	/**
+	 * Writes the metadata entries that differ from the stored ones as part of
+	 * the current transaction. Changes of the bounding box are written along
+	 * with the tiles that caused them. Stale tile bounds are recomputed first,
+	 * so all buffered writes must have been executed.
+	 * 
+	 * @return true if anything has been written.
+	 */
+	private boolean writeChangedMetaData() throws SQLException {
+		// The metadata object may have been changed through getMetaData()
+		copyFileStructure(this.fileStructure, this.mapFileMetaData);
+		for (byte i = 0; i < this.tileBoundsStale.length; i++) {
+			if (this.tileBoundsStale[i]) {
+				this.tileBounds[i] = computeTileBounds(i);
+				this.tileBoundsStale[i] = false;
+			}
+		}
+		if (this.tileBoundsChanged) {
+			TileBounds.setBoundingBox(this.mapFileMetaData, this.tileBounds);
+			this.tileBoundsChanged = false;
+		}
+
+		final Map<String, String> entries = toMetaDataEntries(this.mapFileMetaData);
+		if (!this.storedHashes) {
+			// The file is only marked as migrated by rehashTiles()
+			entries.remove("tileHash");
+		}
+		for (int i = 0; i < this.tileBounds.length; i++) {
+			entries.put(tileBoundsKey(i), this.tileBounds[i].toString());
+		}
+
+		final Map<String, String> changedEntries = new LinkedHashMap<String, String>();
+		for (Map.Entry<String, String> entry : entries.entrySet()) {
+			final String storedValue = this.storedMetaData.get(entry.getKey());
+			if (!this.storedMetaData.containsKey(entry.getKey())
+					|| (storedValue == null ? entry.getValue() != null : !storedValue.equals(entry.getValue()))) {
+				changedEntries.put(entry.getKey(), entry.getValue());
+			}
+		}
+
+		if (changedEntries.isEmpty()) {
+			return false;
+		}
+
+		writeMetaData(this.conn, changedEntries);
+		this.storedMetaData.putAll(changedEntries);
+		return true;
+	}
+
+	/**
+	 * Converts the metadata object to the entries of the metadata table. The
+	 * tag mappings and the zoom interval configuration have tables of their
+	 * own and are not included.
+	 * 
+	 * @param mapFileMetaData
+	 *            The metadata.
+	 * @return The metadata entries in the order they are written.
+	 */
+	static Map<String, String> toMetaDataEntries(MapFileMetaData mapFileMetaData) {
+		final Map<String, String> entries = new LinkedHashMap<String, String>();
+
+		entries.put("version", mapFileMetaData.getFileVersion());
+		entries.put("dateOfCreation", Long.toString(mapFileMetaData.getDateOfCreation()));
+		entries.put("boundingBoxMinLat", Integer.toString(mapFileMetaData.getMinLat()));
+		entries.put("boundingBoxMaxLat", Integer.toString(mapFileMetaData.getMaxLat()));
+		entries.put("boundingBoxMinLon", Integer.toString(mapFileMetaData.getMinLon()));
+		entries.put("boundingBoxMaxLon", Integer.toString(mapFileMetaData.getMaxLon()));
+		entries.put("tileSize", Integer.toString(mapFileMetaData.getTileSize()));
+		entries.put("projection", mapFileMetaData.getProjection());
+		entries.put("languagePreference", mapFileMetaData.getLanguagePreference());
+
+		// Flags
+		entries.put("debugInformationFlag", mapFileMetaData.isDebugFlagSet() ? "1" : "0");
+		entries.put("mapPositionExistsFlag", mapFileMetaData.isMapStartPositionFlagSet() ? "1" : "0");
+		entries.put("startZoomLevelExistsFlag", mapFileMetaData.isStartZoomLevelFlagSet() ? "1" : "0");
+
+		if (mapFileMetaData.isMapStartPositionFlagSet()) {
+			entries.put("mapStartLat", Integer.toString(mapFileMetaData.getMapStartLat()));
+			entries.put("mapStartLon", Integer.toString(mapFileMetaData.getMapStartLon()));
+		}
+
+		if (mapFileMetaData.isStartZoomLevelFlagSet()) {
+			entries.put("startZoomLevel", Byte.toString(mapFileMetaData.getStartZoomLevel()));
+		}
+
+		entries.put("comment", mapFileMetaData.getComment());
+		entries.put("tileIdLayout", mapFileMetaData.getTileIdLayout().name());
+		entries.put("tileCodec", mapFileMetaData.getTileCodec().name());
+		entries.put("tileDeduplication", mapFileMetaData.isTileDeduplication() ? "1" : "0");
+		entries.put("tileHash", TILE_HASH);
+		entries.put("hashTreeFactor", Integer.toString(mapFileMetaData.getHashTreeFactor()));
+
+		return entries;
+	}
+
+	/**
+	 * Writes entries to the metadata table in a single batch. Entries in the
+	 * database will be updated. Keys that do not yet exist will be created.
+	 * 
+	 * @param conn
+	 *            A connection to the map database.
+	 * @param entries
+	 *            The entries to be written.
+	 * @throws SQLException
+	 *             if a statement fails.
+	 */
+	static void writeMetaData(Connection conn, Map<String, String> entries) throws SQLException {
+		if (entries.isEmpty()) {
+			return;
+		}
+
+		PreparedStatement ps = conn.prepareStatement("INSERT OR REPLACE INTO metadata VALUES (?, ?);");
+		try {
+			for (Map.Entry<String, String> entry : entries.entrySet()) {
+				ps.setString(1, entry.getKey());
+				ps.setString(2, entry.getValue());
+				ps.addBatch();
+			}
+			ps.executeBatch();
+		} finally {
+			ps.close();
+		}
+	}
+
+	/**
+	 * Reads the metadata of an existing map file. Each metadata table is read
+	 * with a single query.
+	 */
+	private void readMetaDataFromDB() throws SQLException {
+		this.mapFileMetaData = new MapFileMetaData();
+
+		final Map<String, String> metaData = new HashMap<String, String>();
+		ResultSet rs = this.stmt.executeQuery("SELECT key, value FROM metadata;");
+		try {
+			while (rs.next()) {
+				metaData.put(rs.getString(1), rs.getString(2));
+			}
+		} finally {
+			rs.close();
+		}
+		this.storedMetaData = metaData;
+
+		// Version
+		if (metaData.containsKey("version")) {
+			this.mapFileMetaData.setFileVersion(metaData.get("version"));
+		}
+
+		// Date of creation
+		if (metaData.containsKey("dateOfCreation")) {
+			this.mapFileMetaData.setDateOfCreation(Long.parseLong(metaData
+					.get("dateOfCreation")));
+		}
+
+		// Bounding box
+		this.mapFileMetaData.setBoundingBox(
+				parseInt(metaData.get("boundingBoxMinLat")),
+				parseInt(metaData.get("boundingBoxMinLon")),
+				parseInt(metaData.get("boundingBoxMaxLat")),
+				parseInt(metaData.get("boundingBoxMaxLon")));
+
+		// Tile size
+		if (metaData.containsKey("tileSize")) {
+			this.mapFileMetaData.setTileSize(Integer.parseInt(metaData
+					.get("tileSize")));
+		}
+
+		// Projection
+		if (metaData.containsKey("projection")) {
+			this.mapFileMetaData.setProjection(metaData.get("projection"));
+		}
+
+		// Language preference
+		if (metaData.containsKey("languagePreference")) {
+			this.mapFileMetaData.setLanguagePreference(metaData
+					.get("languagePreference"));
+		}
+
+		// Flags
+		byte flags = 0;
+		if ("1".equals(metaData.get("debugInformationFlag"))) {
+			flags = (byte) (flags | (byte) 0x80);
+		}
+		if ("1".equals(metaData.get("mapPositionExistsFlag"))) {
+			flags = (byte) (flags | (byte) 0x40);
+		}
+		if ("1".equals(metaData.get("startZoomLevelExistsFlag"))) {
+			flags = (byte) (flags | (byte) 0x20);
+		}
+		this.mapFileMetaData.setFlags(flags);
+
+		// Map start position
+		if (this.mapFileMetaData.isMapStartPositionFlagSet()) {
+			this.mapFileMetaData.setMapStartPosition(
+					parseInt(metaData.get("mapStartLat")),
+					parseInt(metaData.get("mapStartLon")));
+		}
+
+		// Start zoom level
+		if (this.mapFileMetaData.isStartZoomLevelFlagSet()
+				&& metaData.containsKey("startZoomLevel")) {
+			this.mapFileMetaData.setStartZoomLevel(Byte.parseByte(metaData
+					.get("startZoomLevel")));
+		}
+
+		// Comment
+		if (metaData.containsKey("comment")) {
+			this.mapFileMetaData.setComment(metaData.get("comment"));
+		}
+
+		// Tile id layout (files without this key use row-major ids)
+		if (metaData.containsKey("tileIdLayout")) {
+			this.mapFileMetaData.setTileIdLayout(TileIdLayout.valueOf(metaData
+					.get("tileIdLayout")));
+		}
+
+		// Deduplicated tile data
+		this.mapFileMetaData.setTileDeduplication("1".equals(metaData.get("tileDeduplication")));
+
+		// Hash trees (files without this key have none)
+		this.mapFileMetaData.setHashTreeFactor(parseInt(metaData.get("hashTreeFactor")));
+
+		// Tile codec (files without this key do not compress their tiles)
+		if (metaData.containsKey("tileCodec")) {
+			this.mapFileMetaData.setTileCodec(TileCodec.valueOf(metaData
+					.get("tileCodec")));
+		}
+
+		// Tag mappings, shared with other map files using the same tags
+		this.mapFileMetaData.setPOITagDictionary(readTagMappings("poi_tags"));
+		this.mapFileMetaData.setWayTagDictionary(readTagMappings("way_tags"));
+
+		// Zoom interval configuration
+		ArrayList<byte[]> intervals = new ArrayList<byte[]>();
+		rs = this.stmt
+				.executeQuery("SELECT baseZoomLevel, minimalZoomLevel, maximalZoomLevel, dataType FROM zoom_interval_configuration ORDER BY interval;");
+		try {
+			while (rs.next()) {
+				intervals.add(new byte[] { rs.getByte(1), rs.getByte(2),
+						rs.getByte(3), rs.getByte(4) });
+			}
+		} finally {
+			rs.close();
+		}
+
+		this.mapFileMetaData.setAmountOfZoomIntervals((byte) intervals.size());
+		this.mapFileMetaData.prepareZoomIntervalConfiguration();
+		for (int i = 0; i < intervals.size(); i++) {
+			final byte[] interval = intervals.get(i);
+			this.mapFileMetaData.setZoomIntervalConfiguration(i, interval[0],
+					interval[1], interval[2], interval[3]);
+		}
+		this.fileStructure = this.mapFileMetaData.copy();
+
+		initializeTileBounds();
+		readTileBounds(metaData);
+	}
+
+	/**
+	 * Reads a tag mapping table.
+	 * 
+	 * @param table
+	 *            The table's name.
+	 * @return The tags, indexed by their value.
+	 */
+	private TagDictionary readTagMappings(String table) throws SQLException {
+		ArrayList<String> tags = new ArrayList<String>();
+		ResultSet rs = this.stmt.executeQuery("SELECT tag, value FROM " + table
+				+ " ORDER BY value;");
+		try {
+			while (rs.next()) {
+				final int value = rs.getInt(2);
+				while (tags.size() <= value) {
+					tags.add(null);
+				}
+				tags.set(value, rs.getString(1));
+			}
+		} finally {
+			rs.close();
+		}
+
+		return TagDictionary.of(tags.toArray(new String[tags.size()]));
+	}
+
+	/**
+	 * @return The value or 0 if the key is missing.
+	 */
+	private static int parseInt(String value) {
+		return value == null ? 0 : Integer.parseInt(value);
+	}
+
 	@Override
-	public void close() {
+	public synchronized void close() {
+		disableWriteBehind();
 		writeMetaDataToDB();
 		
 		System.out.println("closing database");
+		if (this.readerPool != null) {
+			this.readerPool.close();
+		}
+
 		try {
+			// All changes have been committed, closing a database that has
+			// only been read does not write anything
 			if (!this.conn.isClosed()) {
-				this.conn.commit();
 				this.conn.close();
 			}
 		} catch (SQLException e) {
@@ -756,17 +2699,19 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 
 	}
 
-	private int coordinatesToID(int xPos, int yPos, int baseZoomInterval) {
-		return (int) (yPos * Math.pow(2, this.mapFileMetaData.getBaseZoomLevels()[baseZoomInterval]) + xPos);
+	private long coordinatesToID(int xPos, int yPos, int baseZoomInterval) {
+		return this.fileStructure.getTileIdLayout().coordinatesToId(xPos, yPos,
+				this.fileStructure.getBaseZoomLevels()[baseZoomInterval]);
 	}
 	
-	private int getXCoordinateFromId(int id, byte baseZoomInterval) {		
-		return (int) (id % Math.pow(2, this.mapFileMetaData.getBaseZoomLevels()[baseZoomInterval]));
+	private int getXCoordinateFromId(long id, byte baseZoomInterval) {		
+		return this.fileStructure.getTileIdLayout().idToX(id,
+				this.fileStructure.getBaseZoomLevels()[baseZoomInterval]);
 	}
 	
-	private int getYCoordinateFromId(int id, byte baseZoomInterval) {
-		return (int) (id / Math.pow(2, this.mapFileMetaData.getBaseZoomLevels()[baseZoomInterval]));
-
+	private int getYCoordinateFromId(long id, byte baseZoomInterval) {
+		return this.fileStructure.getTileIdLayout().idToY(id,
+				this.fileStructure.getBaseZoomLevels()[baseZoomInterval]);
 	}
 
 	/**
@@ -794,7 +2739,7 @@ public class PCTilePersistenceManager implements TilePersistenceManager {
 		tpm.insertOrUpdateTiles(tiles);
 
 		Collection<TileDataContainer> ret = tpm.getTileData(
-				new int[] { 2, 3, 4 }, (byte) 1);
+				new long[] { 2, 3, 4 }, (byte) 1);
 		for (TileDataContainer c : ret) {
 			// This line only makes sense if the debug flag is set
 			System.out.println(c.getData());
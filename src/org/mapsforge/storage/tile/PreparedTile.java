@@ -0,0 +1,61 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * A tile row whose id, hash and encoded data have already been computed, ready to be written by a
+ * {@link TileWriter}.
+ */
+class PreparedTile {
+	final byte baseZoomInterval;
+	final long id;
+	final int xPos;
+	final int yPos;
+	final byte[] data;
+	final TileCodec codec;
+	final long hash;
+	final byte[] digest;
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @param id
+	 *            The tile's id.
+	 * @param xPos
+	 *            The tile's x coordinate.
+	 * @param yPos
+	 *            The tile's y coordinate.
+	 * @param data
+	 *            The tile's data as it will be stored.
+	 * @param codec
+	 *            The codec the data has been encoded with.
+	 * @param hash
+	 *            The hash of the uncompressed data.
+	 * @param digest
+	 *            The digest of the uncompressed data (see {@link TileWriter#digest(byte[])}) or null
+	 *            if the map file is not deduplicated.
+	 */
+	PreparedTile(byte baseZoomInterval, long id, int xPos, int yPos, byte[] data, TileCodec codec, long hash,
+			byte[] digest) {
+		this.baseZoomInterval = baseZoomInterval;
+		this.id = id;
+		this.xPos = xPos;
+		this.yPos = yPos;
+		this.data = data;
+		this.codec = codec;
+		this.hash = hash;
+		this.digest = digest;
+	}
+}
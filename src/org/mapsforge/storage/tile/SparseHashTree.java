@@ -0,0 +1,525 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A hash tree over the whole tile grid of a base zoom level that only allocates memory where there
+ * are tiles. Each level is split into chunks of {@link #CHUNK_SIZE} x {@link #CHUNK_SIZE} nodes,
+ * held in primitive arrays and allocated when the first non-empty node is set. Empty nodes have a
+ * hash of 0. Level 0 is the root, the last level holds the tiles.
+ * 
+ * Nodes are combined like {@link HashTreeUtil#combineChildren(long[][], int, int, int)}, so for a
+ * power of two factor the nodes equal those of the tree stored in a map file (see
+ * {@link PCTilePersistenceManager#getHashTreeNode(byte, int, int, int)}).
+ * 
+ * Only the tile hashes are serialized by {@link #writeTo(OutputStream)}, the nodes above are
+ * recomputed when needed. A tree must only be used by one thread at a time.
+ */
+public class SparseHashTree {
+	/** The number of nodes along each axis of a chunk */
+	public static final int CHUNK_SIZE = 64;
+
+	private static final int CHUNK_BITS = 6;
+	private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+	private static final int MAGIC = 0x53485431; // "SHT1"
+	// Chunks with at most this many tiles store a list of their indices instead of a bitmap
+	private static final int MAX_LISTED_TILES = CHUNK_SIZE * CHUNK_SIZE / 16;
+
+	/**
+	 * The chunks of one level, found by an open addressing hash table on their coordinates.
+	 */
+	private static final class Level {
+		private static final long NO_CHUNK = -1;
+
+		final int size;
+		long[] keys;
+		long[][] chunks;
+		int count;
+
+		Level(int size) {
+			this.size = size;
+			this.keys = new long[16];
+			Arrays.fill(this.keys, NO_CHUNK);
+			this.chunks = new long[16][];
+		}
+
+		private static long key(int chunkX, int chunkY) {
+			return (long) chunkX << 32 | chunkY;
+		}
+
+		private int slot(long key) {
+			int mask = this.keys.length - 1;
+			int slot = (int) ((key * 0x9E3779B97F4A7C15L) >>> 40) & mask;
+			while (this.keys[slot] != key && this.keys[slot] != NO_CHUNK) {
+				slot = (slot + 1) & mask;
+			}
+			return slot;
+		}
+
+		long[] chunk(int chunkX, int chunkY) {
+			return this.chunks[slot(key(chunkX, chunkY))];
+		}
+
+		long[] createChunk(int chunkX, int chunkY) {
+			long key = key(chunkX, chunkY);
+			int slot = slot(key);
+			if (this.keys[slot] == NO_CHUNK) {
+				if (2 * (this.count + 1) > this.keys.length) {
+					grow();
+					slot = slot(key);
+				}
+				this.keys[slot] = key;
+				this.chunks[slot] = new long[CHUNK_SIZE * CHUNK_SIZE];
+				++this.count;
+			}
+			return this.chunks[slot];
+		}
+
+		private void grow() {
+			long[] oldKeys = this.keys;
+			long[][] oldChunks = this.chunks;
+			this.keys = new long[2 * oldKeys.length];
+			Arrays.fill(this.keys, NO_CHUNK);
+			this.chunks = new long[2 * oldKeys.length][];
+			for (int i = 0; i < oldKeys.length; i++) {
+				if (oldKeys[i] != NO_CHUNK) {
+					int slot = slot(oldKeys[i]);
+					this.keys[slot] = oldKeys[i];
+					this.chunks[slot] = oldChunks[i];
+				}
+			}
+		}
+
+		long get(int x, int y) {
+			if (x < 0 || y < 0 || x >= this.size || y >= this.size) {
+				return 0;
+			}
+			long[] chunk = chunk(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+			return chunk == null ? 0 : chunk[index(x, y)];
+		}
+
+		void set(int x, int y, long hash) {
+			long[] chunk = chunk(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+			if (chunk == null) {
+				if (hash == 0) {
+					return;
+				}
+				chunk = createChunk(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+			}
+			chunk[index(x, y)] = hash;
+		}
+
+		/**
+		 * @return The keys of all chunks in ascending order.
+		 */
+		long[] sortedKeys() {
+			long[] sorted = new long[this.count];
+			int n = 0;
+			for (long key : this.keys) {
+				if (key != NO_CHUNK) {
+					sorted[n++] = key;
+				}
+			}
+			Arrays.sort(sorted);
+			return sorted;
+		}
+	}
+
+	private final byte baseZoomLevel;
+	private final int factor;
+	private final Level[] levels;
+	private boolean nodesOutdated = false;
+
+	/**
+	 * Creates an empty tree.
+	 * 
+	 * @param baseZoomLevel
+	 *            The zoom level of the tiles.
+	 * @param factor
+	 *            The number of children of a node along each axis, at least 2.
+	 */
+	public SparseHashTree(byte baseZoomLevel, int factor) {
+		if (factor < 2) {
+			throw new IllegalArgumentException("invalid factor: " + factor);
+		}
+		this.baseZoomLevel = baseZoomLevel;
+		this.factor = factor;
+
+		int depth = 1;
+		for (long size = 1L << baseZoomLevel; size > 1; size = (size + factor - 1) / factor) {
+			++depth;
+		}
+		this.levels = new Level[depth];
+		long size = 1L << baseZoomLevel;
+		for (int z = depth - 1; z >= 0; z--) {
+			this.levels[z] = new Level((int) size);
+			size = (size + factor - 1) / factor;
+		}
+	}
+
+	/**
+	 * Builds the tree of a zoom interval from the tile hashes stored in a map file.
+	 * 
+	 * @param tpm
+	 *            The map file.
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @param factor
+	 *            The number of children of a node along each axis, at least 2.
+	 * @return The tree.
+	 */
+	public static SparseHashTree build(TilePersistenceManager tpm, byte baseZoomInterval, int factor) {
+		final SparseHashTree tree = new SparseHashTree(tpm.getMetaData().getBaseZoomLevels()[baseZoomInterval],
+				factor);
+		tpm.getTileHashes(baseZoomInterval, new TileHashHandler() {
+			@Override
+			public void handleTileHash(long id, int xPos, int yPos, long hash) {
+				tree.setTileHash(xPos, yPos, hash);
+			}
+		});
+		return tree;
+	}
+
+	/**
+	 * @return The zoom level of the tiles.
+	 */
+	public byte getBaseZoomLevel() {
+		return this.baseZoomLevel;
+	}
+
+	/**
+	 * @return The number of children of a node along each axis.
+	 */
+	public int getFactor() {
+		return this.factor;
+	}
+
+	/**
+	 * @return The number of levels including the root and the tiles.
+	 */
+	public int getDepth() {
+		return this.levels.length;
+	}
+
+	/**
+	 * @return The number of chunks allocated on all levels.
+	 */
+	public int getChunkCount() {
+		computeNodes();
+		int count = 0;
+		for (Level level : this.levels) {
+			count += level.count;
+		}
+		return count;
+	}
+
+	/**
+	 * Sets the hash of a tile. The nodes above are recomputed when they are read next.
+	 * 
+	 * @param x
+	 *            The tile's x coordinate.
+	 * @param y
+	 *            The tile's y coordinate.
+	 * @param hash
+	 *            The tile's hash, 0 if there is no tile.
+	 */
+	public void setTileHash(int x, int y, long hash) {
+		Level tiles = this.levels[this.levels.length - 1];
+		if (x < 0 || y < 0 || x >= tiles.size || y >= tiles.size) {
+			throw new IllegalArgumentException("tile outside the grid: " + x + ", " + y);
+		}
+		tiles.set(x, y, hash);
+		this.nodesOutdated = true;
+	}
+
+	/**
+	 * @param x
+	 *            The tile's x coordinate.
+	 * @param y
+	 *            The tile's y coordinate.
+	 * @return The tile's hash, 0 if there is no tile.
+	 */
+	public long getTileHash(int x, int y) {
+		return this.levels[this.levels.length - 1].get(x, y);
+	}
+
+	/**
+	 * @param z
+	 *            The level, 0 is the root.
+	 * @param x
+	 *            The node's x coordinate on its level.
+	 * @param y
+	 *            The node's y coordinate on its level.
+	 * @return The node's hash, 0 if there are no tiles below it.
+	 */
+	public long getNode(int z, int x, int y) {
+		computeNodes();
+		return this.levels[z].get(x, y);
+	}
+
+	/**
+	 * @return The hash of the root, 0 if the tree is empty.
+	 */
+	public long getRoot() {
+		return getNode(0, 0, 0);
+	}
+
+	/**
+	 * Recomputes all nodes above the tiles if a tile has changed since the last call. Only nodes
+	 * above allocated chunks are computed.
+	 */
+	private void computeNodes() {
+		if (!this.nodesOutdated) {
+			return;
+		}
+		this.nodesOutdated = false;
+
+		for (int z = this.levels.length - 2; z >= 0; z--) {
+			Level below = this.levels[z + 1];
+			Level level = new Level(this.levels[z].size);
+			for (int i = 0; i < below.keys.length; i++) {
+				if (below.keys[i] == Level.NO_CHUNK) {
+					continue;
+				}
+				int chunkX = (int) (below.keys[i] >>> 32);
+				int chunkY = (int) below.keys[i];
+				long[] chunk = below.chunks[i];
+
+				// Parents whose children span two chunks are computed for both, with the same result
+				int minX = (chunkX << CHUNK_BITS) / this.factor;
+				int maxX = Math.min(((chunkX << CHUNK_BITS) + CHUNK_MASK) / this.factor, level.size - 1);
+				int minY = (chunkY << CHUNK_BITS) / this.factor;
+				int maxY = Math.min(((chunkY << CHUNK_BITS) + CHUNK_MASK) / this.factor, level.size - 1);
+				for (int x = minX; x <= maxX; x++) {
+					for (int y = minY; y <= maxY; y++) {
+						level.set(x, y, combine(below, chunk, chunkX, chunkY, x, y));
+					}
+				}
+			}
+			this.levels[z] = level;
+		}
+	}
+
+	private long combine(Level below, long[] chunk, int chunkX, int chunkY, int x, int y) {
+		boolean empty = true;
+		long state = XXHash64.start(0);
+		for (int n = 0; n < this.factor; ++n) {
+			int childX = x * this.factor + n;
+			for (int m = 0; m < this.factor; ++m) {
+				int childY = y * this.factor + m;
+				long child = childX >>> CHUNK_BITS == chunkX && childY >>> CHUNK_BITS == chunkY ? chunk[index(
+						childX, childY)] : below.get(childX, childY);
+				empty &= child == 0;
+				state = XXHash64.combine(state, child);
+			}
+		}
+		return empty ? 0 : XXHash64.finish(state, this.factor * this.factor);
+	}
+
+	private static int index(int x, int y) {
+		return (x & CHUNK_MASK) << CHUNK_BITS | (y & CHUNK_MASK);
+	}
+
+	/**
+	 * Reports every tile whose hash differs between this tree and another one, in the same order
+	 * as {@link HashTreeUtil#findModifiedTiles(long[][][], long[][][], int, ModifiedTileHandler)}.
+	 * Only subtrees whose roots differ are visited.
+	 * 
+	 * @param other
+	 *            The tree to compare with, for the same base zoom level and factor.
+	 * @param handler
+	 *            Receives the modified tiles, with the hash of this tree as the old hash.
+	 * @throws IllegalArgumentException
+	 *             if the trees have a different zoom level or factor.
+	 */
+	public void findModifiedTiles(SparseHashTree other, ModifiedTileHandler handler) {
+		if (this.baseZoomLevel != other.baseZoomLevel || this.factor != other.factor) {
+			throw new IllegalArgumentException("The trees have a different zoom level or factor");
+		}
+		computeNodes();
+		other.computeNodes();
+
+		final int leaf = this.levels.length - 1;
+		final int[] xs = new int[this.levels.length];
+		final int[] ys = new int[this.levels.length];
+		int z = 0;
+		boolean differs = getRoot() != other.getRoot();
+
+		while (true) {
+			if (differs) {
+				if (z == leaf) {
+					handler.handleModifiedTile(xs[z], ys[z], this.levels[z].get(xs[z], ys[z]),
+							other.levels[z].get(xs[z], ys[z]));
+				} else {
+					++z;
+					xs[z] = xs[z - 1] * this.factor;
+					ys[z] = ys[z - 1] * this.factor;
+					differs = this.levels[z].get(xs[z], ys[z]) != other.levels[z].get(xs[z], ys[z]);
+					continue;
+				}
+			}
+
+			// Go to the next sibling, or to the parent's next sibling once all have been visited
+			while (true) {
+				if (z == 0) {
+					return;
+				}
+				if (++ys[z] == (ys[z - 1] + 1) * this.factor) {
+					ys[z] = ys[z - 1] * this.factor;
+					if (++xs[z] == (xs[z - 1] + 1) * this.factor) {
+						--z;
+						continue;
+					}
+				}
+				break;
+			}
+			differs = this.levels[z].get(xs[z], ys[z]) != other.levels[z].get(xs[z], ys[z]);
+		}
+	}
+
+	/**
+	 * Writes the tile hashes of the tree. Each chunk is written with the positions of its
+	 * non-empty tiles, as a list of indices or as a bitmap whichever is smaller, followed by their
+	 * hashes.
+	 * 
+	 * @param out
+	 *            The stream to write to. It is not closed.
+	 * @throws IOException
+	 *             if writing fails.
+	 */
+	public void writeTo(OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		Level tiles = this.levels[this.levels.length - 1];
+		long[] keys = tiles.sortedKeys();
+
+		data.writeInt(MAGIC);
+		data.writeByte(this.baseZoomLevel);
+		data.writeInt(this.factor);
+		data.writeInt(keys.length);
+		for (long key : keys) {
+			long[] chunk = tiles.chunks[tiles.slot(key)];
+			int count = 0;
+			for (long hash : chunk) {
+				if (hash != 0) {
+					++count;
+				}
+			}
+
+			data.writeLong(key);
+			data.writeShort(count);
+			if (count <= MAX_LISTED_TILES) {
+				for (int i = 0; i < chunk.length; i++) {
+					if (chunk[i] != 0) {
+						data.writeShort(i);
+					}
+				}
+			} else {
+				for (int i = 0; i < chunk.length; i += 64) {
+					long bits = 0;
+					for (int j = 0; j < 64; j++) {
+						if (chunk[i + j] != 0) {
+							bits |= 1L << j;
+						}
+					}
+					data.writeLong(bits);
+				}
+			}
+			for (long hash : chunk) {
+				if (hash != 0) {
+					data.writeLong(hash);
+				}
+			}
+		}
+		data.flush();
+	}
+
+	/**
+	 * Reads a tree written by {@link #writeTo(OutputStream)}.
+	 * 
+	 * @param in
+	 *            The stream to read from. It is not closed.
+	 * @return The tree.
+	 * @throws IOException
+	 *             if reading fails or the stream does not contain a tree.
+	 */
+	public static SparseHashTree readFrom(InputStream in) throws IOException {
+		DataInputStream data = new DataInputStream(in);
+		if (data.readInt() != MAGIC) {
+			throw new IOException("not a hash tree");
+		}
+		byte baseZoomLevel = data.readByte();
+		int factor = data.readInt();
+		int chunkCount = data.readInt();
+		if (baseZoomLevel < 0 || baseZoomLevel > 30 || factor < 2 || chunkCount < 0) {
+			throw new IOException("invalid hash tree header");
+		}
+
+		SparseHashTree tree = new SparseHashTree(baseZoomLevel, factor);
+		Level tiles = tree.levels[tree.levels.length - 1];
+		int[] indices = new int[CHUNK_SIZE * CHUNK_SIZE];
+		for (int c = 0; c < chunkCount; c++) {
+			long key = data.readLong();
+			int count = data.readUnsignedShort();
+			int chunkX = (int) (key >>> 32);
+			int chunkY = (int) key;
+			// Shifting the chunk coordinates instead could overflow
+			final int chunksPerSide = (tiles.size + CHUNK_MASK) >>> CHUNK_BITS;
+			if (chunkX < 0 || chunkY < 0 || chunkX >= chunksPerSide || chunkY >= chunksPerSide
+					|| count > indices.length) {
+				throw new IOException("invalid chunk " + chunkX + ", " + chunkY);
+			}
+
+			if (count <= MAX_LISTED_TILES) {
+				for (int i = 0; i < count; i++) {
+					indices[i] = data.readUnsignedShort();
+					if (indices[i] >= indices.length) {
+						throw new IOException("invalid tile index " + indices[i]);
+					}
+				}
+			} else {
+				int n = 0;
+				for (int i = 0; i < indices.length; i += 64) {
+					long bits = data.readLong();
+					if (n + Long.bitCount(bits) > count) {
+						throw new IOException("invalid chunk bitmap");
+					}
+					for (int j = 0; j < 64; j++) {
+						if ((bits & 1L << j) != 0) {
+							indices[n++] = i + j;
+						}
+					}
+				}
+				if (n != count) {
+					throw new IOException("invalid chunk bitmap");
+				}
+			}
+
+			long[] chunk = tiles.createChunk(chunkX, chunkY);
+			for (int i = 0; i < count; i++) {
+				chunk[indices[i]] = data.readLong();
+			}
+		}
+
+		tree.nodesOutdated = true;
+		return tree;
+	}
+}
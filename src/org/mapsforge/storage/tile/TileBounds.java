@@ -0,0 +1,167 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.writer.model.GeoCoordinate;
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * The smallest rectangle of the tile grid containing all tiles of a zoom interval. The bounds are
+ * kept in tile coordinates while tiles are written and are only projected to latitude and
+ * longitude when the metadata is needed.
+ */
+class TileBounds {
+	int minX;
+	int minY;
+	int maxX;
+	int maxY;
+
+	/**
+	 * Creates empty bounds.
+	 */
+	TileBounds() {
+		clear();
+	}
+
+	/**
+	 * Removes all tiles from the bounds.
+	 */
+	void clear() {
+		this.minX = Integer.MAX_VALUE;
+		this.minY = Integer.MAX_VALUE;
+		this.maxX = -1;
+		this.maxY = -1;
+	}
+
+	/**
+	 * @return true if the bounds do not contain any tile.
+	 */
+	boolean isEmpty() {
+		return this.maxX < 0;
+	}
+
+	/**
+	 * Extends the bounds to contain a tile.
+	 * 
+	 * @param xPos
+	 *            The tile's x coordinate.
+	 * @param yPos
+	 *            The tile's y coordinate.
+	 */
+	void add(int xPos, int yPos) {
+		if (xPos < this.minX) {
+			this.minX = xPos;
+		}
+		if (xPos > this.maxX) {
+			this.maxX = xPos;
+		}
+		if (yPos < this.minY) {
+			this.minY = yPos;
+		}
+		if (yPos > this.maxY) {
+			this.maxY = yPos;
+		}
+	}
+
+	/**
+	 * Extends the bounds to contain other bounds.
+	 * 
+	 * @param other
+	 *            The bounds to be added.
+	 */
+	void add(TileBounds other) {
+		if (!other.isEmpty()) {
+			add(other.minX, other.minY);
+			add(other.maxX, other.maxY);
+		}
+	}
+
+	/**
+	 * @param xPos
+	 *            The tile's x coordinate.
+	 * @param yPos
+	 *            The tile's y coordinate.
+	 * @return true if removing the tile may shrink the bounds.
+	 */
+	boolean isOnBorder(int xPos, int yPos) {
+		return xPos == this.minX || xPos == this.maxX || yPos == this.minY || yPos == this.maxY;
+	}
+
+	/**
+	 * @return The bounds as stored in the metadata table.
+	 */
+	@Override
+	public String toString() {
+		return this.minX + "," + this.minY + "," + this.maxX + "," + this.maxY;
+	}
+
+	/**
+	 * @param value
+	 *            Bounds in the format of {@link #toString()}.
+	 * @return The parsed bounds.
+	 */
+	static TileBounds parse(String value) {
+		String[] parts = value.split(",");
+		TileBounds bounds = new TileBounds();
+		bounds.minX = Integer.parseInt(parts[0]);
+		bounds.minY = Integer.parseInt(parts[1]);
+		bounds.maxX = Integer.parseInt(parts[2]);
+		bounds.maxY = Integer.parseInt(parts[3]);
+		return bounds;
+	}
+
+	/**
+	 * Sets the bounding box of the metadata to the area covered by the tiles of all zoom intervals.
+	 * If there are no tiles at all the bounding box is set to the inverted, empty box of
+	 * {@link MapFileMetaData#createInstanceWithDefaultValues()}.
+	 * 
+	 * @param mapFileMetaData
+	 *            The metadata to be updated.
+	 * @param bounds
+	 *            The bounds of each zoom interval.
+	 */
+	static void setBoundingBox(MapFileMetaData mapFileMetaData, TileBounds[] bounds) {
+		double minLat = Double.MAX_VALUE;
+		double minLon = Double.MAX_VALUE;
+		double maxLat = -Double.MAX_VALUE;
+		double maxLon = -Double.MAX_VALUE;
+
+		for (int i = 0; i < bounds.length; i++) {
+			if (bounds[i].isEmpty()) {
+				continue;
+			}
+
+			// A tile spans from its own north-west corner to that of its south-east neighbour
+			final byte zoomLevel = mapFileMetaData.getBaseZoomLevels()[i];
+			minLon = Math.min(minLon, MercatorProjection.tileXToLongitude(bounds[i].minX, zoomLevel));
+			maxLon = Math.max(maxLon, MercatorProjection.tileXToLongitude(bounds[i].maxX + 1L, zoomLevel));
+			maxLat = Math.max(maxLat, MercatorProjection.tileYToLatitude(bounds[i].minY, zoomLevel));
+			minLat = Math.min(minLat, MercatorProjection.tileYToLatitude(bounds[i].maxY + 1L, zoomLevel));
+		}
+
+		if (minLon <= maxLon) {
+			mapFileMetaData.setBoundingBox((int) Math.floor(minLat * GeoCoordinate.FACTOR_DOUBLE_TO_INT),
+					(int) Math.floor(minLon * GeoCoordinate.FACTOR_DOUBLE_TO_INT),
+					(int) Math.ceil(maxLat * GeoCoordinate.FACTOR_DOUBLE_TO_INT),
+					(int) Math.ceil(maxLon * GeoCoordinate.FACTOR_DOUBLE_TO_INT));
+		} else {
+			mapFileMetaData.setBoundingBox(90 * (int) GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+					180 * (int) GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+					-90 * (int) GeoCoordinate.FACTOR_DOUBLE_TO_INT,
+					-180 * (int) GeoCoordinate.FACTOR_DOUBLE_TO_INT);
+		}
+	}
+}
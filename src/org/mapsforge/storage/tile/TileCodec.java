@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * The compression of a tile's data in the database. The codec of each tile is stored in its row,
+ * so tiles of different codecs can be mixed in a map file. The codec used for writing tiles is
+ * taken from the map file's metadata.
+ */
+public enum TileCodec {
+	/**
+	 * The data is stored as it is. This is the codec of all tiles written by versions without
+	 * compression.
+	 */
+	NONE(0) {
+		@Override
+		byte[] encode(byte[] data, byte[] dictionary) {
+			return data;
+		}
+
+		@Override
+		byte[] decode(byte[] data, Map<Integer, byte[]> dictionaries) {
+			return data;
+		}
+	},
+
+	/**
+	 * An LZ4 block preceded by the length of the uncompressed data as a 4 byte big endian integer.
+	 * Compresses less than {@link #DEFLATE} but decompresses several times faster.
+	 */
+	LZ4(1) {
+		@Override
+		byte[] encode(byte[] data, byte[] dictionary) {
+			return Lz4Block.compress(data, data.length - 1);
+		}
+
+		@Override
+		byte[] decode(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException {
+			return Lz4Block.decompress(data);
+		}
+	},
+
+	/**
+	 * A zlib stream, which can be sent to HTTP clients as is using
+	 * <code>Content-Encoding: deflate</code>.
+	 */
+	DEFLATE(2) {
+		@Override
+		byte[] encode(byte[] data, byte[] dictionary) {
+			return deflate(data, null);
+		}
+
+		@Override
+		byte[] decode(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException {
+			return inflate(data, null);
+		}
+	},
+
+	/**
+	 * A zlib stream using a preset dictionary, which has been trained on the tiles of the zoom
+	 * interval (see {@link PCTilePersistenceManager#trainCompressionDictionary(byte, int, int)}). The
+	 * stream refers to its dictionary by the dictionary's Adler-32 checksum. Tiles are written
+	 * using {@link #DEFLATE} as long as there is no dictionary.
+	 */
+	DEFLATE_DICTIONARY(3) {
+		@Override
+		byte[] encode(byte[] data, byte[] dictionary) {
+			return deflate(data, dictionary);
+		}
+
+		@Override
+		byte[] decode(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException {
+			return inflate(data, dictionaries);
+		}
+	};
+
+	private static final TileCodec[] BY_ID = { NONE, LZ4, DEFLATE, DEFLATE_DICTIONARY };
+
+	// Deflaters and inflaters hold native memory, so they are reused
+	private static final ThreadLocal<Deflater> DEFLATER = new ThreadLocal<Deflater>() {
+		@Override
+		protected Deflater initialValue() {
+			return new Deflater();
+		}
+	};
+	private static final ThreadLocal<Inflater> INFLATER = new ThreadLocal<Inflater>() {
+		@Override
+		protected Inflater initialValue() {
+			return new Inflater();
+		}
+	};
+
+	private final int id;
+
+	private TileCodec(int id) {
+		this.id = id;
+	}
+
+	/**
+	 * @return The id stored in the <code>codec</code> column of the tile tables.
+	 */
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * @param id
+	 *            A codec id as returned by {@link #getId()}.
+	 * @return The codec or null if the id is unknown.
+	 */
+	public static TileCodec fromId(int id) {
+		return id >= 0 && id < BY_ID.length ? BY_ID[id] : null;
+	}
+
+	/**
+	 * @param data
+	 *            The tile's data.
+	 * @param dictionary
+	 *            The preset dictionary or null if the codec does not use one.
+	 * @return The encoded data or null if it would not be smaller than the data.
+	 */
+	abstract byte[] encode(byte[] data, byte[] dictionary);
+
+	/**
+	 * @param data
+	 *            The encoded data.
+	 * @param dictionaries
+	 *            The dictionaries of the tile's zoom interval by their Adler-32 checksum or null if
+	 *            the codec does not use one.
+	 * @return The tile's data.
+	 * @throws IOException
+	 *             if the data is corrupt or its dictionary is unknown.
+	 */
+	abstract byte[] decode(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException;
+
+	/**
+	 * Encodes a tile's data, falling back to {@link #DEFLATE} if there is no dictionary and to
+	 * {@link #NONE} if the data does not get smaller.
+	 * 
+	 * @param data
+	 *            The tile's data.
+	 * @param codec
+	 *            The preferred codec.
+	 * @param dictionary
+	 *            The current dictionary of the tile's zoom interval or null.
+	 * @return The encoded tile.
+	 */
+	static EncodedTile encodeTile(byte[] data, TileCodec codec, byte[] dictionary) {
+		if (codec == DEFLATE_DICTIONARY && dictionary == null) {
+			codec = DEFLATE;
+		}
+
+		final byte[] encoded = data == null ? null : codec.encode(data, dictionary);
+		if (encoded == null) {
+			return new EncodedTile(NONE, data);
+		}
+		return new EncodedTile(codec, encoded);
+	}
+
+	private static byte[] deflate(byte[] data, byte[] dictionary) {
+		final Deflater deflater = DEFLATER.get();
+		deflater.reset();
+		if (dictionary != null) {
+			deflater.setDictionary(dictionary);
+		}
+		deflater.setInput(data);
+		deflater.finish();
+
+		// Output that is not smaller than the input is discarded
+		final byte[] buffer = new byte[data.length];
+		final int n = deflater.deflate(buffer);
+		if (!deflater.finished() || n >= data.length) {
+			return null;
+		}
+
+		final byte[] result = new byte[n];
+		System.arraycopy(buffer, 0, result, 0, n);
+		return result;
+	}
+
+	private static byte[] inflate(byte[] data, Map<Integer, byte[]> dictionaries) throws IOException {
+		final Inflater inflater = INFLATER.get();
+		inflater.reset();
+		inflater.setInput(data);
+
+		final ByteArrayOutputStream out = new ByteArrayOutputStream(data.length * 4);
+		final byte[] buffer = new byte[Math.max(1024, data.length * 4)];
+		try {
+			while (!inflater.finished()) {
+				final int n = inflater.inflate(buffer);
+				if (n > 0) {
+					out.write(buffer, 0, n);
+				} else if (inflater.needsDictionary()) {
+					// The stream header names the dictionary by its checksum
+					final byte[] dictionary = dictionaries == null ? null : dictionaries.get(Integer
+							.valueOf(inflater.getAdler()));
+					if (dictionary == null) {
+						throw new IOException("Unknown compression dictionary: " + inflater.getAdler());
+					}
+					inflater.setDictionary(dictionary);
+				} else if (inflater.needsInput()) {
+					throw new IOException("Truncated deflate stream");
+				}
+			}
+		} catch (DataFormatException e) {
+			throw new IOException(e.getMessage());
+		}
+
+		return out.toByteArray();
+	}
+}
@@ -30,6 +30,7 @@ public class TileDataContainer {
 
 	private byte[] data;
 	private byte tileType;
+	private long id;
 	private int xPos;
 	private int yPos;
 	private int baseZoomLevel;
@@ -55,6 +56,26 @@ public class TileDataContainer {
 		setBaseZoomInterval(baseZoomLevel);
 	}
 
+	/**
+	 * 
+	 * @param data
+	 *            The tile's data.
+	 * @param tileType
+	 *            What kind of data does this tile contain? (Vector, PNG)
+	 * @param id
+	 *            The tile's coordinate in a 1-dimensional representation.
+	 * @param xPos
+	 *            The tile's x-coordinate in the grid.
+	 * @param yPos
+	 *            The tile's y-coordinate in the grid.
+	 * @param baseZoomLevel
+	 *            The tile's base zoom level.
+	 */
+	public TileDataContainer(byte[] data, byte tileType, long id, int xPos, int yPos, byte baseZoomLevel) {
+		this(data, tileType, xPos, yPos, baseZoomLevel);
+		setId(id);
+	}
+
 	/**
 	 * 
 	 * @return The tile's data.
@@ -94,6 +115,23 @@ public class TileDataContainer {
 		this.tileType = tileType;
 	}
 
+	/**
+	 * 
+	 * @return The tile's coordinate in a 1-dimensional representation or 0 if it has not been set.
+	 */
+	public long getId() {
+		return id;
+	}
+
+	/**
+	 * 
+	 * @param id
+	 *            The tile's coordinate in a 1-dimensional representation.
+	 */
+	public void setId(long id) {
+		this.id = id;
+	}
+
 	/**
 	 * 
 	 * @return The tile's x-coordinate in the grid.
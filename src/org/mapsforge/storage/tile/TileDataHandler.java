@@ -0,0 +1,29 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * Receives tiles one at a time from methods that stream their results, such as
+ * {@link TilePersistenceManager#getTilesInRect(int, int, int, int, byte, TileDataHandler)}.
+ */
+public interface TileDataHandler {
+	/**
+	 * Called once for every tile found.
+	 * 
+	 * @param tile
+	 *            The tile's data and coordinates.
+	 */
+	public void handleTile(TileDataContainer tile);
+}
@@ -0,0 +1,253 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.Arrays;
+
+/**
+ * The mapping between a tile's grid coordinates and its 1-dimensional id, which is the primary key
+ * of the tile tables. The layout determines which tiles are stored close to each other in the
+ * database file. It is chosen when a map file is created and stored in its metadata.
+ */
+public enum TileIdLayout {
+	/**
+	 * <code>id = (y &lt;&lt; baseZoomLevel) | x</code>. Each row of tiles is a contiguous range of ids,
+	 * but vertically adjacent tiles are <code>2^baseZoomLevel</code> ids apart. This is the layout
+	 * of all map files that do not specify one.
+	 */
+	ROW_MAJOR {
+		@Override
+		public long coordinatesToId(int xPos, int yPos, byte baseZoomLevel) {
+			return ((long) yPos << baseZoomLevel) | xPos;
+		}
+
+		@Override
+		public int idToX(long id, byte baseZoomLevel) {
+			return (int) (id & ((1L << baseZoomLevel) - 1));
+		}
+
+		@Override
+		public int idToY(long id, byte baseZoomLevel) {
+			return (int) (id >>> baseZoomLevel);
+		}
+
+		@Override
+		public long xBits(byte baseZoomLevel) {
+			return (1L << baseZoomLevel) - 1;
+		}
+
+		@Override
+		public long yBits(byte baseZoomLevel) {
+			return -1L << baseZoomLevel;
+		}
+
+		@Override
+		public long[] idRangesInRect(int minX, int minY, int maxX, int maxY, byte baseZoomLevel) {
+			// All rows form a single range if the rectangle spans the whole grid width
+			if (minX == 0 && maxX == (1L << baseZoomLevel) - 1) {
+				return new long[] { coordinatesToId(minX, minY, baseZoomLevel),
+						coordinatesToId(maxX, maxY, baseZoomLevel) };
+			}
+
+			long[] ranges = new long[2 * (maxY - minY + 1)];
+			for (int y = minY; y <= maxY; y++) {
+				ranges[2 * (y - minY)] = coordinatesToId(minX, y, baseZoomLevel);
+				ranges[2 * (y - minY) + 1] = coordinatesToId(maxX, y, baseZoomLevel);
+			}
+			return ranges;
+		}
+	},
+
+	/**
+	 * The bits of x and y are interleaved (Z-order curve): <code>id = ... y1 x1 y0 x0</code>. Tiles
+	 * that are close to each other in the grid mostly have close ids, so a viewport touches only a
+	 * few pages of the database file.
+	 */
+	MORTON {
+		@Override
+		public long coordinatesToId(int xPos, int yPos, byte baseZoomLevel) {
+			return spreadBits(xPos) | (spreadBits(yPos) << 1);
+		}
+
+		@Override
+		public int idToX(long id, byte baseZoomLevel) {
+			return compactBits(id);
+		}
+
+		@Override
+		public int idToY(long id, byte baseZoomLevel) {
+			return compactBits(id >>> 1);
+		}
+
+		@Override
+		public long xBits(byte baseZoomLevel) {
+			return 0x5555555555555555L;
+		}
+
+		@Override
+		public long yBits(byte baseZoomLevel) {
+			return 0xAAAAAAAAAAAAAAAAL;
+		}
+
+		@Override
+		public long[] idRangesInRect(int minX, int minY, int maxX, int maxY, byte baseZoomLevel) {
+			RangeList ranges = new RangeList();
+			addMortonRanges(0, 0, 1L << baseZoomLevel, minX, minY, maxX, maxY, ranges);
+			return ranges.toArray();
+		}
+	};
+
+	/**
+	 * @param xPos
+	 *            The tile's x coordinate in the grid for the given base zoom level.
+	 * @param yPos
+	 *            The tile's y coordinate in the grid for the given base zoom level.
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The tile's id.
+	 */
+	public abstract long coordinatesToId(int xPos, int yPos, byte baseZoomLevel);
+
+	/**
+	 * @param id
+	 *            The tile's id.
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The tile's x coordinate in the grid.
+	 */
+	public abstract int idToX(long id, byte baseZoomLevel);
+
+	/**
+	 * @param id
+	 *            The tile's id.
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The tile's y coordinate in the grid.
+	 */
+	public abstract int idToY(long id, byte baseZoomLevel);
+
+	/**
+	 * Masking an id with this value keeps exactly the bits of the x coordinate. The masked ids of
+	 * two tiles compare like their x coordinates, so <code>MIN(id &amp; xBits)</code> in SQL yields
+	 * the id of a tile with the smallest x coordinate, which {@link #idToX(long, byte)} converts.
+	 * 
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The bit mask of the x coordinate.
+	 */
+	public abstract long xBits(byte baseZoomLevel);
+
+	/**
+	 * Masking an id with this value keeps exactly the bits of the y coordinate (see
+	 * {@link #xBits(byte)}).
+	 * 
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return The bit mask of the y coordinate.
+	 */
+	public abstract long yBits(byte baseZoomLevel);
+
+	/**
+	 * Computes the id ranges covering exactly the tiles of a rectangle. The coordinates must lie
+	 * within the grid.
+	 * 
+	 * @param minX
+	 *            The leftmost column (inclusive).
+	 * @param minY
+	 *            The top row (inclusive).
+	 * @param maxX
+	 *            The rightmost column (inclusive).
+	 * @param maxY
+	 *            The bottom row (inclusive).
+	 * @param baseZoomLevel
+	 *            The base zoom level (not the interval).
+	 * @return Pairs of first and last id (inclusive) of each range in ascending order.
+	 */
+	public abstract long[] idRangesInRect(int minX, int minY, int maxX, int maxY, byte baseZoomLevel);
+
+	/**
+	 * Inserts a zero bit above each of the lower 32 bits.
+	 */
+	static long spreadBits(int value) {
+		long v = value & 0xffffffffL;
+		v = (v | (v << 16)) & 0x0000ffff0000ffffL;
+		v = (v | (v << 8)) & 0x00ff00ff00ff00ffL;
+		v = (v | (v << 4)) & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v << 2)) & 0x3333333333333333L;
+		v = (v | (v << 1)) & 0x5555555555555555L;
+		return v;
+	}
+
+	/**
+	 * Inverse of {@link #spreadBits(int)}: collects every other bit, starting with bit 0.
+	 */
+	static int compactBits(long value) {
+		long v = value & 0x5555555555555555L;
+		v = (v | (v >>> 1)) & 0x3333333333333333L;
+		v = (v | (v >>> 2)) & 0x0f0f0f0f0f0f0f0fL;
+		v = (v | (v >>> 4)) & 0x00ff00ff00ff00ffL;
+		v = (v | (v >>> 8)) & 0x0000ffff0000ffffL;
+		v = (v | (v >>> 16)) & 0x00000000ffffffffL;
+		return (int) v;
+	}
+
+	/**
+	 * Decomposes the rectangle along the quad tree. A quad that lies completely inside is a single
+	 * range, quads are visited in id order so adjacent ranges can be merged.
+	 */
+	static void addMortonRanges(long x0, long y0, long size, int minX, int minY, int maxX, int maxY,
+			RangeList ranges) {
+		if (x0 > maxX || y0 > maxY || x0 + size - 1 < minX || y0 + size - 1 < minY) {
+			return;
+		}
+
+		if (x0 >= minX && y0 >= minY && x0 + size - 1 <= maxX && y0 + size - 1 <= maxY) {
+			long first = MORTON.coordinatesToId((int) x0, (int) y0, (byte) 0);
+			ranges.add(first, first + size * size - 1);
+			return;
+		}
+
+		long half = size >> 1;
+		addMortonRanges(x0, y0, half, minX, minY, maxX, maxY, ranges);
+		addMortonRanges(x0 + half, y0, half, minX, minY, maxX, maxY, ranges);
+		addMortonRanges(x0, y0 + half, half, minX, minY, maxX, maxY, ranges);
+		addMortonRanges(x0 + half, y0 + half, half, minX, minY, maxX, maxY, ranges);
+	}
+
+	/**
+	 * A growable list of id ranges that merges adjacent ones.
+	 */
+	static final class RangeList {
+		private long[] ranges = new long[16];
+		private int size;
+
+		void add(long first, long last) {
+			if (this.size > 0 && this.ranges[this.size - 1] == first - 1) {
+				this.ranges[this.size - 1] = last;
+				return;
+			}
+
+			if (this.size == this.ranges.length) {
+				this.ranges = Arrays.copyOf(this.ranges, 2 * this.size);
+			}
+			this.ranges[this.size++] = first;
+			this.ranges[this.size++] = last;
+		}
+
+		long[] toArray() {
+			return Arrays.copyOf(this.ranges, this.size);
+		}
+	}
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.SQLException;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Copies a map database into a new file that uses a different {@link TileIdLayout}.
+ */
+public class TileIdLayoutConverter {
+	/**
+	 * Copies all tiles and the metadata of a map database into a new file.
+	 * 
+	 * @param sourcePath
+	 *            The existing map database.
+	 * @param targetPath
+	 *            The new map database. The file must not exist yet.
+	 * @param layout
+	 *            The tile id layout of the new file.
+	 * @throws SQLException
+	 *             if the new file could not be written.
+	 * @throws IOException
+	 *             if the new file could not be synced.
+	 */
+	public static void convert(String sourcePath, String targetPath, TileIdLayout layout) throws SQLException,
+			IOException {
+		if (new File(targetPath).exists()) {
+			throw new IllegalArgumentException("File already exists: " + targetPath);
+		}
+
+		final PCTilePersistenceManager source = new PCTilePersistenceManager(sourcePath);
+		final MapFileMetaData metaData = source.getMetaData().copy();
+		metaData.setTileIdLayout(layout);
+		final BulkLoader target = new BulkLoader(targetPath, metaData);
+
+		// The handler cannot throw checked exceptions
+		final SQLException[] error = new SQLException[1];
+		for (byte interval = 0; interval < metaData.getAmountOfZoomIntervals() && error[0] == null; interval++) {
+			final int maxCoordinate = (1 << metaData.getBaseZoomLevels()[interval]) - 1;
+			source.getTilesInRect(0, 0, maxCoordinate, maxCoordinate, interval, new TileDataHandler() {
+				@Override
+				public void handleTile(TileDataContainer tile) {
+					if (error[0] != null) {
+						return;
+					}
+					try {
+						target.addTile(tile.getData(), tile.getxPos(), tile.getyPos(), (byte) tile.getBaseZoomLevel());
+					} catch (SQLException e) {
+						error[0] = e;
+					}
+				}
+			});
+		}
+
+		source.close();
+		if (error[0] != null) {
+			throw error[0];
+		}
+		target.finish();
+	}
+
+	/**
+	 * Command line interface.
+	 * 
+	 * @param args
+	 *            Source file, target file and the target's layout (ROW_MAJOR or MORTON).
+	 */
+	public static void main(String[] args) {
+		if (args.length != 3) {
+			System.err.println("Usage: TileIdLayoutConverter <source> <target> <ROW_MAJOR|MORTON>");
+			System.exit(1);
+		}
+
+		try {
+			convert(args[0], args[1], TileIdLayout.valueOf(args[2]));
+		} catch (SQLException e) {
+			e.printStackTrace();
+			System.exit(1);
+		} catch (IOException e) {
+			e.printStackTrace();
+			System.exit(1);
+		}
+	}
+}
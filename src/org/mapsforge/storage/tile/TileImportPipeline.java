@@ -0,0 +1,275 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.mapsforge.storage.dataExtraction.MapFileMetaData;
+
+/**
+ * Imports tiles into a {@link PCTilePersistenceManager} using several threads. Worker threads
+ * compute the tiles' ids, hashes and digests and compress them, a single writer thread writes the
+ * prepared tiles in batches, each batch in its own transaction. Both stages are connected by
+ * bounded queues, so {@link #submit(TileDataContainer)} blocks while the writer is behind.
+ * 
+ * Tiles of all zoom intervals may be submitted in any order. All versions of a tile are handled by
+ * the same worker, so a tile submitted more than once ends up with the data submitted last. The
+ * bounding box of the map file is updated along with each batch. The tiles are written to the
+ * database directly, so caches wrapping the target are not invalidated.
+ */
+public class TileImportPipeline {
+	private static final int DEFAULT_QUEUE_CAPACITY = 4096;
+	private static final int DEFAULT_BATCH_SIZE = 1000;
+	/** How long the writer waits for more tiles before it writes an incomplete batch. */
+	private static final long BATCH_FILL_TIMEOUT_MILLIS = 10;
+
+	/** Tells a worker that no more tiles will be submitted. */
+	private static final TileDataContainer END_OF_INPUT = new TileDataContainer(null,
+			TileDataContainer.TILE_TYPE_INVALID, 0, 0, (byte) 0);
+	/** Tells the writer that a worker has finished. */
+	private static final PreparedTile END_OF_WORKER = new PreparedTile((byte) 0, 0, 0, 0, null, null, 0, null);
+
+	private final PCTilePersistenceManager tpm;
+	private final MapFileMetaData mapFileMetaData;
+	private final int batchSize;
+	private final Worker[] workers;
+	private final BlockingQueue<PreparedTile> preparedTiles;
+	private final Thread writer;
+
+	// The first exception of the writer or a worker
+	private volatile Exception failure = null;
+	private volatile long tileCount = 0;
+	private boolean finished = false;
+
+	/**
+	 * Starts a pipeline with one worker per available processor, a queue capacity of 4096 tiles and
+	 * batches of 1000 tiles.
+	 * 
+	 * @param tpm
+	 *            The map database the tiles will be written to.
+	 */
+	public TileImportPipeline(PCTilePersistenceManager tpm) {
+		this(tpm, Runtime.getRuntime().availableProcessors(), DEFAULT_QUEUE_CAPACITY, DEFAULT_BATCH_SIZE);
+	}
+
+	/**
+	 * Starts a pipeline.
+	 * 
+	 * @param tpm
+	 *            The map database the tiles will be written to.
+	 * @param workers
+	 *            The number of threads preparing tiles.
+	 * @param queueCapacity
+	 *            The number of tiles that may be waiting for a worker and, separately, for the
+	 *            writer.
+	 * @param batchSize
+	 *            The maximum number of tiles written in one transaction.
+	 */
+	public TileImportPipeline(PCTilePersistenceManager tpm, int workers, int queueCapacity, int batchSize) {
+		this.tpm = tpm;
+		this.mapFileMetaData = tpm.getMetaData();
+		this.batchSize = batchSize;
+		this.preparedTiles = new ArrayBlockingQueue<PreparedTile>(queueCapacity);
+
+		this.workers = new Worker[workers];
+		for (int i = 0; i < workers; i++) {
+			this.workers[i] = new Worker(i, Math.max(1, queueCapacity / workers));
+			this.workers[i].start();
+		}
+
+		this.writer = new Thread("TileImportPipeline writer") {
+			@Override
+			public void run() {
+				write();
+			}
+		};
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	/**
+	 * Hands a tile to the pipeline. Blocks while the queue of the responsible worker is full.
+	 * 
+	 * @param tile
+	 *            The tile's data and coordinates.
+	 * @throws InterruptedException
+	 *             if the calling thread has been interrupted while waiting.
+	 * @throws IllegalArgumentException
+	 *             if the tile's zoom interval does not exist in the map file.
+	 */
+	public void submit(TileDataContainer tile) throws InterruptedException {
+		if (this.finished) {
+			throw new IllegalStateException("The pipeline has already been finished");
+		}
+		if (tile.getBaseZoomLevel() < 0 || tile.getBaseZoomLevel() >= this.mapFileMetaData.getAmountOfZoomIntervals()) {
+			throw new IllegalArgumentException("invalid zoom interval: " + tile.getBaseZoomLevel());
+		}
+
+		// Tiles at the same position always go to the same worker, which keeps
+		// their order
+		final int hash = tile.getxPos() * 31 + tile.getyPos();
+		this.workers[(hash & Integer.MAX_VALUE) % this.workers.length].input.put(tile);
+	}
+
+	/**
+	 * Hands a set of tiles to the pipeline.
+	 * 
+	 * @param tiles
+	 *            The tiles' data and coordinates.
+	 * @throws InterruptedException
+	 *             if the calling thread has been interrupted while waiting.
+	 */
+	public void submit(Collection<TileDataContainer> tiles) throws InterruptedException {
+		for (TileDataContainer tile : tiles) {
+			submit(tile);
+		}
+	}
+
+	/**
+	 * Waits until all submitted tiles have been written. The pipeline cannot be used afterwards.
+	 * 
+	 * @throws InterruptedException
+	 *             if the calling thread has been interrupted while waiting.
+	 * @throws SQLException
+	 *             if writing a batch failed. Tiles of the failed batch and all later tiles have not
+	 *             been written.
+	 * @throws RuntimeException
+	 *             if preparing a tile failed, for example because it could not be compressed. The
+	 *             tiles after it have not been written.
+	 */
+	public void finish() throws InterruptedException, SQLException {
+		if (!this.finished) {
+			this.finished = true;
+			for (Worker worker : this.workers) {
+				worker.input.put(END_OF_INPUT);
+			}
+		}
+
+		for (Worker worker : this.workers) {
+			worker.join();
+		}
+		this.writer.join();
+
+		if (this.failure instanceof SQLException) {
+			throw (SQLException) this.failure;
+		} else if (this.failure instanceof RuntimeException) {
+			throw (RuntimeException) this.failure;
+		}
+	}
+
+	/**
+	 * @return The number of tiles written so far.
+	 */
+	public long getTileCount() {
+		return this.tileCount;
+	}
+
+	/**
+	 * Drains the prepared tiles into batches until all workers have finished.
+	 */
+	private void write() {
+		final ArrayList<PreparedTile> batch = new ArrayList<PreparedTile>(this.batchSize);
+		int runningWorkers = this.workers.length;
+
+		try {
+			while (runningWorkers > 0) {
+				PreparedTile tile = this.preparedTiles.take();
+				do {
+					if (tile == END_OF_WORKER) {
+						--runningWorkers;
+					} else {
+						batch.add(tile);
+					}
+				} while (batch.size() < this.batchSize
+						&& runningWorkers > 0
+						&& (tile = this.preparedTiles.poll(BATCH_FILL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS)) != null);
+
+				// After a failure the tiles are only drained, so that nobody blocks
+				if (!batch.isEmpty() && this.failure == null) {
+					try {
+						this.tpm.insertPreparedTiles(batch);
+						this.tileCount += batch.size();
+					} catch (SQLException e) {
+						this.failure = e;
+					}
+				}
+				batch.clear();
+			}
+		} catch (InterruptedException e) {
+			this.failure = new SQLException("Writer interrupted");
+		}
+	}
+
+	/**
+	 * Prepares the tiles of one partition of the tile grid.
+	 */
+	private class Worker extends Thread {
+		final BlockingQueue<TileDataContainer> input;
+
+		Worker(int index, int queueCapacity) {
+			super("TileImportPipeline worker " + index);
+			setDaemon(true);
+			this.input = new ArrayBlockingQueue<TileDataContainer>(queueCapacity);
+		}
+
+		@Override
+		public void run() {
+			final MapFileMetaData metaData = TileImportPipeline.this.mapFileMetaData;
+			final BlockingQueue<PreparedTile> output = TileImportPipeline.this.preparedTiles;
+
+			try {
+				TileDataContainer tile;
+				while ((tile = this.input.take()) != END_OF_INPUT) {
+					// After a failure the tiles are only drained, so that submit() does not block
+					if (TileImportPipeline.this.failure != null) {
+						continue;
+					}
+
+					final byte interval = (byte) tile.getBaseZoomLevel();
+					final int x = tile.getxPos();
+					final int y = tile.getyPos();
+					try {
+						final long id = metaData.getTileIdLayout().coordinatesToId(x, y,
+								metaData.getBaseZoomLevels()[interval]);
+						output.put(TileImportPipeline.this.tpm.prepareTile(tile.getData(), id, x, y, interval));
+					} catch (RuntimeException e) {
+						TileImportPipeline.this.failure = e;
+					}
+				}
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			} finally {
+				// The writer waits for every worker, the queue is always drained
+				boolean interrupted = false;
+				while (true) {
+					try {
+						output.put(END_OF_WORKER);
+						break;
+					} catch (InterruptedException e) {
+						interrupted = true;
+					}
+				}
+				if (interrupted) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+}
@@ -14,6 +14,10 @@
  */
 package org.mapsforge.storage.tile;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Collection;
 
 import org.mapsforge.storage.dataExtraction.MapFileMetaData;
@@ -28,7 +32,8 @@ import org.mapsforge.storage.dataExtraction.MapFileMetaData;
  * 
  *         TODO Distinguish between image and vector tiles
  * 
- *         TODO Cache data tiles (does it make sense?)
+ *         Tiles can be cached in memory by wrapping an instance into a
+ *         {@link org.mapsforge.storage.cache.CachingTilePersistenceManager}.
  */
 public interface TilePersistenceManager {
 
@@ -54,17 +59,17 @@ public interface TilePersistenceManager {
 	 * @param rawData
 	 *            The tile's data in binary representation.
 	 * @param id
-	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation:
-	 *            id = (y * 4^baseZoomLevel) + x
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
 	 * @param baseZoomInterval
 	 *            The tile's base zoom level.
 	 */
-	public void insertOrUpdateTile(final byte[] rawData, final int id, final byte baseZoomInterval);
+	public void insertOrUpdateTile(final byte[] rawData, final long id, final byte baseZoomInterval);
 
 	/**
 	 * Replaces a set of tiles in the database with the given data. If a tile does not exist it will be
-	 * created. Use this method instead of {@link #insertOrUpdateTile(byte[], int, byte)} whenever you
-	 * want to add a batch of tiles.
+	 * created. Use this method instead of {@link #insertOrUpdateTile(byte[], long, byte)} whenever you
+	 * want to add a batch of tiles. The tiles may belong to different zoom intervals.
 	 * 
 	 * @param rawData
 	 *            The tiles' data and meta data.
@@ -87,12 +92,12 @@ public interface TilePersistenceManager {
 	 * Deletes a tile at the specified position. If there is no such tile the methods does nothing.
 	 * 
 	 * @param id
-	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation:
-	 *            id = (y * 4^baseZoomLevel) + x
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
 	 * @param baseZoomInterval
 	 *            The tile's base zoom level.
 	 */
-	public void deleteTile(final int id, final byte baseZoomInterval);
+	public void deleteTile(final long id, final byte baseZoomInterval);
 
 	/**
 	 * Deletes a set of tiles at the specified position. If there is no such tile the methods does
@@ -100,11 +105,11 @@ public interface TilePersistenceManager {
 	 * 
 	 * @param ids
 	 *            The tiles' coordinates for the given base zoom level in a 1-dimensional
-	 *            representation: id = (y * 4^baseZoomLevel) + x
+	 *            representation (see {@link TileIdLayout})
 	 * @param baseZoomInterval
 	 *            The tile's base zoom level.
 	 */
-	public void deleteTiles(final int[] ids, final byte baseZoomInterval);
+	public void deleteTiles(final long[] ids, final byte baseZoomInterval);
 
 	/**
 	 * Retrieves a tile's data as a byte array from the database. The data can be a vector
@@ -125,34 +130,191 @@ public interface TilePersistenceManager {
 	 * representation or an image. If the tile does not exist null will be returned.
 	 * 
 	 * @param id
-	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation:
-	 *            id = (y * 4^baseZoomLevel) + x
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
 	 * 
 	 * @param baseZoomInterval
 	 *            The tile's base zoom level.
 	 * 
 	 * @return The tile as a byte array.
 	 */
-	public byte[] getTileData(final int id, final byte baseZoomInterval);
+	public byte[] getTileData(final long id, final byte baseZoomInterval);
 
 	/**
 	 * Retrieves a set of tiles' data as a collection of byte arrays from the database. The data can be
 	 * a vector representation or an image. If a tile does not exist null will be returned.
 	 * 
 	 * @param ids
-	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation:
-	 *            id = (y * 4^baseZoomLevel) + x
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
 	 * 
 	 * @param baseZoomInterval
 	 *            The tile's base zoom level.
 	 * 
 	 * @return An collection of all tiles found.
 	 */
-	public Collection<TileDataContainer> getTileData(final int[] ids, final byte baseZoomInterval);
-	
-	public int getTileHash(int xPos, int yPos, byte baseZoomInterval);
-	
-	public int getTileHash(int id, byte baseZoomInterval);
+	public Collection<TileDataContainer> getTileData(final long[] ids, final byte baseZoomInterval);
+
+	/**
+	 * Retrieves all tiles within a rectangle of the tile grid. The tiles are passed to the handler
+	 * as they are read, in ascending order of their ids. The handler must not call methods of this
+	 * object.
+	 * 
+	 * @param minX
+	 *            The leftmost column (inclusive).
+	 * @param minY
+	 *            The top row (inclusive).
+	 * @param maxX
+	 *            The rightmost column (inclusive).
+	 * @param maxY
+	 *            The bottom row (inclusive).
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom level.
+	 * @param handler
+	 *            Receives every tile found.
+	 */
+	public void getTilesInRect(final int minX, final int minY, final int maxX, final int maxY,
+			final byte baseZoomInterval, final TileDataHandler handler);
+
+	/**
+	 * Retrieves all tiles that intersect a geographic bounding box. The tiles are passed to the
+	 * handler as they are read. The handler must not call methods of this object.
+	 * 
+	 * @param minLat
+	 *            The southern boundary in degrees.
+	 * @param minLon
+	 *            The western boundary in degrees.
+	 * @param maxLat
+	 *            The northern boundary in degrees.
+	 * @param maxLon
+	 *            The eastern boundary in degrees.
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom level.
+	 * @param handler
+	 *            Receives every tile found.
+	 */
+	public void getTilesInBoundingBox(final double minLat, final double minLon, final double maxLat,
+			final double maxLon, final byte baseZoomInterval, final TileDataHandler handler);
+
+	/**
+	 * Copies a tile's data into the given buffer, starting at its current position. Use this method
+	 * instead of {@link #getTileData(long, byte)} to avoid allocating a new array for every tile.
+	 * 
+	 * @param id
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @param dst
+	 *            The buffer the data will be written to.
+	 * @return The number of bytes written or -1 if the tile does not exist.
+	 * @throws java.nio.BufferOverflowException
+	 *             if the tile does not fit into the buffer's remaining space. Nothing will be written
+	 *             in this case.
+	 */
+	public int getTileData(final long id, final byte baseZoomInterval, final ByteBuffer dst);
+
+	/**
+	 * Writes a tile's data to the given stream. Use this method instead of
+	 * {@link #getTileData(long, byte)} to avoid allocating a new array for every tile.
+	 * 
+	 * @param id
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @param out
+	 *            The stream the data will be written to. It will not be closed.
+	 * @return true if the tile exists and has been written, false otherwise.
+	 * @throws IOException
+	 *             if writing to the stream fails.
+	 */
+	public boolean getTileData(final long id, final byte baseZoomInterval, final OutputStream out)
+			throws IOException;
+
+	/**
+	 * Opens a stream on a tile's data. The stream has to be closed by the caller. Implementations
+	 * may hold database resources until then.
+	 * 
+	 * @param id
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @return A stream of the tile's data or null if the tile does not exist.
+	 */
+	public InputStream getTileDataStream(final long id, final byte baseZoomInterval);
+
+	/**
+	 * Retrieves a tile's hash without reading its data.
+	 * 
+	 * @param xPos
+	 *            The tile's x coordinate in the grid for the given base zoom level.
+	 * @param yPos
+	 *            The tile's y coordinate in the grid for the given base zoom level.
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @return The tile's hash or 0 if the tile does not exist.
+	 */
+	public long getTileHash(int xPos, int yPos, byte baseZoomInterval);
+
+	/**
+	 * Retrieves a tile's hash without reading its data.
+	 * 
+	 * @param id
+	 *            The tile's coordinate for the given base zoom level in a 1-dimensional representation (see
+	 *            {@link TileIdLayout})
+	 * @param baseZoomInterval
+	 *            The tile's base zoom level.
+	 * @return The tile's hash or 0 if the tile does not exist.
+	 */
+	public long getTileHash(long id, byte baseZoomInterval);
+
+	/**
+	 * Retrieves the hashes of a set of tiles. Use this method instead of
+	 * {@link #getTileHash(long, byte)} whenever you need more than a few hashes.
+	 * 
+	 * @param ids
+	 *            The tiles' coordinates for the given base zoom level in a 1-dimensional
+	 *            representation (see {@link TileIdLayout})
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom level.
+	 * @return The hashes in the order of <code>ids</code>, 0 for tiles that do not exist.
+	 */
+	public long[] getTileHashes(final long[] ids, final byte baseZoomInterval);
+
+	/**
+	 * Retrieves the hashes of all tiles of a base zoom interval in a single scan. The hashes are
+	 * passed to the handler in ascending order of the tiles' ids. The handler must not call methods
+	 * of this object.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom level.
+	 * @param handler
+	 *            Receives the hash of every tile found.
+	 */
+	public void getTileHashes(final byte baseZoomInterval, final TileHashHandler handler);
+
+	/**
+	 * Retrieves the hashes of all tiles within a rectangle of the tile grid. The hashes are passed
+	 * to the handler in ascending order of the tiles' ids. The handler must not call methods of
+	 * this object.
+	 * 
+	 * @param minX
+	 *            The leftmost column (inclusive).
+	 * @param minY
+	 *            The top row (inclusive).
+	 * @param maxX
+	 *            The rightmost column (inclusive).
+	 * @param maxY
+	 *            The bottom row (inclusive).
+	 * @param baseZoomInterval
+	 *            The tiles' base zoom level.
+	 * @param handler
+	 *            Receives the hash of every tile found.
+	 */
+	public void getTileHashesInRect(final int minX, final int minY, final int maxX, final int maxY,
+			final byte baseZoomInterval, final TileHashHandler handler);
 
 	/**
 	 * Retrieves the map files metadata such as file version, bounding box, zoom interval configuration
@@ -171,6 +333,12 @@ public interface TilePersistenceManager {
 	 */
 	public void setMetaData(MapFileMetaData mapFileMetaData);
 
+	/**
+	 * Makes all previous writes durable. Implementations that commit every write immediately do
+	 * nothing.
+	 */
+	public void flush();
+
 	/**
 	 * Closes the db.
 	 */
@@ -0,0 +1,370 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Arrays;
+
+/**
+ * Bundles a database connection with the prepared statements needed for reading tiles. A reader
+ * must only be used by one thread at a time.
+ */
+class TileReader {
+	/**
+	 * Number of ids bound by the multi-get statements. Requests are split into chunks of the
+	 * smallest arity that fits, the largest one stays well below SQLite's default host parameter
+	 * limit of 999.
+	 */
+	static final int[] MULTI_GET_ARITIES = { 8, 64, 256 };
+
+	private final Connection conn;
+	private final boolean deduplicated;
+	private boolean codecColumns = true;
+	private boolean hashIndexes = true;
+	private final PreparedStatement getTileByIDStmt[];
+	private final PreparedStatement getTilesByIDStmt[][];
+	private final PreparedStatement getTilesByIDRangeStmt[];
+	private final PreparedStatement getTileHashByIDStmt[];
+	private final PreparedStatement getTileHashesByIDStmt[][];
+	private final PreparedStatement getTileHashesByIDRangeStmt[];
+	private final PreparedStatement getHashTreeNodesByIDRangeStmt[][];
+	private final byte[] transferBuffer = new byte[8192];
+
+	/**
+	 * Creates a reader on the given connection. All statements are prepared on first use, so that
+	 * opening a map file only pays for the zoom intervals that are actually read.
+	 * 
+	 * @param conn
+	 *            An open connection to the map database.
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals (and therefore tile tables) of the map file.
+	 * @param deduplicated
+	 *            Whether the map file stores tile data in the <code>blobs</code> table (see
+	 *            {@link TileWriter}).
+	 */
+	TileReader(Connection conn, int amountOfZoomIntervals, boolean deduplicated) {
+		this.conn = conn;
+		this.deduplicated = deduplicated;
+
+		this.getTileByIDStmt = new PreparedStatement[amountOfZoomIntervals];
+		this.getTilesByIDStmt = new PreparedStatement[amountOfZoomIntervals][MULTI_GET_ARITIES.length];
+		this.getTilesByIDRangeStmt = new PreparedStatement[amountOfZoomIntervals];
+
+		// The hash statements depend on the hash indexes, see setHashIndexes()
+		this.getTileHashByIDStmt = new PreparedStatement[amountOfZoomIntervals];
+		this.getTileHashesByIDStmt = new PreparedStatement[amountOfZoomIntervals][MULTI_GET_ARITIES.length];
+		this.getTileHashesByIDRangeStmt = new PreparedStatement[amountOfZoomIntervals];
+		this.getHashTreeNodesByIDRangeStmt = new PreparedStatement[amountOfZoomIntervals][HashTree.MAX_HEIGHT + 1];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @return The name of the covering index on <code>(id, hash)</code> of the tile table.
+	 */
+	static String hashIndexName(int baseZoomInterval) {
+		return "tiles_" + baseZoomInterval + "_hash";
+	}
+
+	/**
+	 * Lookups by id would otherwise be answered from the table itself, where the hash is stored
+	 * behind the tile's BLOB. Forcing the covering index keeps the data pages out of hash queries.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @param hashIndexes
+	 *            Whether the tile tables have the hash index. Files written by older versions
+	 *            only get it before the first write and are read from the table until then.
+	 * @return The table expression for selecting ids and hashes.
+	 */
+	static String hashTable(byte baseZoomInterval, boolean hashIndexes) {
+		if (!hashIndexes) {
+			return "tiles_" + baseZoomInterval;
+		}
+		return "tiles_" + baseZoomInterval + " INDEXED BY " + hashIndexName(baseZoomInterval);
+	}
+
+	/**
+	 * Chooses the arity of the multi-get statement for the next chunk of ids.
+	 * 
+	 * @param remaining
+	 *            The number of ids that still have to be fetched.
+	 * @return The index of the smallest arity that is able to hold all remaining ids or the index of
+	 *         the largest arity.
+	 */
+	static int multiGetArityIndex(int remaining) {
+		for (int i = 0; i < MULTI_GET_ARITIES.length; i++) {
+			if (remaining <= MULTI_GET_ARITIES[i]) {
+				return i;
+			}
+		}
+		return MULTI_GET_ARITIES.length - 1;
+	}
+
+	/**
+	 * @param codecColumns
+	 *            Whether the tile tables have the codec column.
+	 * @return The column or expression to be selected as a tile's codec. Tiles of tables without
+	 *         the column are not compressed.
+	 */
+	static String codecColumn(boolean codecColumns) {
+		return codecColumns ? "codec" : "0";
+	}
+
+	/**
+	 * Selects the codec column from now on or stops doing so. The statements reading tile data
+	 * are prepared again on their next use.
+	 * 
+	 * @param codecColumns
+	 *            Whether the tile tables have the codec column.
+	 */
+	void setCodecColumns(boolean codecColumns) {
+		if (this.codecColumns == codecColumns) {
+			return;
+		}
+
+		this.codecColumns = codecColumns;
+		try {
+			closeAll(this.getTileByIDStmt);
+			closeAll(this.getTilesByIDRangeStmt);
+			for (PreparedStatement[] statements : this.getTilesByIDStmt) {
+				closeAll(statements);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Arrays.fill(this.getTileByIDStmt, null);
+		Arrays.fill(this.getTilesByIDRangeStmt, null);
+		for (PreparedStatement[] statements : this.getTilesByIDStmt) {
+			Arrays.fill(statements, null);
+		}
+	}
+
+	/**
+	 * Uses the hash indexes from now on or stops doing so. The statements reading hashes are
+	 * prepared again on their next use.
+	 * 
+	 * @param hashIndexes
+	 *            Whether the tile tables have the hash index.
+	 */
+	void setHashIndexes(boolean hashIndexes) {
+		if (this.hashIndexes == hashIndexes) {
+			return;
+		}
+
+		this.hashIndexes = hashIndexes;
+		try {
+			closeAll(this.getTileHashByIDStmt);
+			closeAll(this.getTileHashesByIDRangeStmt);
+			for (PreparedStatement[] statements : this.getTileHashesByIDStmt) {
+				closeAll(statements);
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+		Arrays.fill(this.getTileHashByIDStmt, null);
+		Arrays.fill(this.getTileHashesByIDRangeStmt, null);
+		for (PreparedStatement[] statements : this.getTileHashesByIDStmt) {
+			Arrays.fill(statements, null);
+		}
+	}
+
+	/**
+	 * @return The connection this reader operates on.
+	 */
+	Connection getConnection() {
+		return this.conn;
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @return The statement selecting <code>data, hash, length(data), codec</code> of a single tile
+	 *         by its id.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTileByIDStatement(byte baseZoomInterval) throws SQLException {
+		if (this.getTileByIDStmt[baseZoomInterval] == null) {
+			this.getTileByIDStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT data, hash, length(data), "
+					+ codecColumn(this.codecColumns) + " FROM "
+					+ TileWriter.tileTable(baseZoomInterval, this.deduplicated) + " WHERE id == ?;");
+		}
+
+		return this.getTileByIDStmt[baseZoomInterval];
+	}
+
+	/**
+	 * @return A scratch buffer for copying tile data between streams and buffers.
+	 */
+	byte[] getTransferBuffer() {
+		return this.transferBuffer;
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @param arityIndex
+	 *            Index into {@link #MULTI_GET_ARITIES}.
+	 * @return The statement selecting <code>id, data, codec</code> of up to
+	 *         <code>MULTI_GET_ARITIES[arityIndex]</code> tiles.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTilesByIDStatement(byte baseZoomInterval, int arityIndex) throws SQLException {
+		if (this.getTilesByIDStmt[baseZoomInterval][arityIndex] == null) {
+			this.getTilesByIDStmt[baseZoomInterval][arityIndex] = prepareMultiGetStatement("SELECT id, data, "
+					+ codecColumn(this.codecColumns) + " FROM "
+					+ TileWriter.tileTable(baseZoomInterval, this.deduplicated), MULTI_GET_ARITIES[arityIndex]);
+		}
+
+		return this.getTilesByIDStmt[baseZoomInterval][arityIndex];
+	}
+
+	private PreparedStatement prepareMultiGetStatement(String select, int arity) throws SQLException {
+		StringBuilder sb = new StringBuilder(select);
+		sb.append(" WHERE id IN (?");
+		for (int i = 1; i < arity; i++) {
+			sb.append(",?");
+		}
+		sb.append(");");
+
+		return this.conn.prepareStatement(sb.toString());
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @return The statement selecting <code>id, data, codec</code> of all tiles with
+	 *         <code>? &lt;= id &lt;= ?</code>, ordered by id.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTilesByIDRangeStatement(byte baseZoomInterval) throws SQLException {
+		if (this.getTilesByIDRangeStmt[baseZoomInterval] == null) {
+			this.getTilesByIDRangeStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT id, data, "
+					+ codecColumn(this.codecColumns) + " FROM "
+					+ TileWriter.tileTable(baseZoomInterval, this.deduplicated) + " WHERE id BETWEEN ? AND ? ORDER BY id;");
+		}
+
+		return this.getTilesByIDRangeStmt[baseZoomInterval];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @return The statement selecting the <code>hash</code> of a single tile by its id.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTileHashByIDStatement(byte baseZoomInterval) throws SQLException {
+		if (this.getTileHashByIDStmt[baseZoomInterval] == null) {
+			this.getTileHashByIDStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT hash FROM "
+					+ hashTable(baseZoomInterval, this.hashIndexes) + " WHERE id == ?;");
+		}
+
+		return this.getTileHashByIDStmt[baseZoomInterval];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @param arityIndex
+	 *            Index into {@link #MULTI_GET_ARITIES}.
+	 * @return The statement selecting <code>id, hash</code> of up to
+	 *         <code>MULTI_GET_ARITIES[arityIndex]</code> tiles.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTileHashesByIDStatement(byte baseZoomInterval, int arityIndex) throws SQLException {
+		if (this.getTileHashesByIDStmt[baseZoomInterval][arityIndex] == null) {
+			this.getTileHashesByIDStmt[baseZoomInterval][arityIndex] = prepareMultiGetStatement("SELECT id, hash FROM "
+					+ hashTable(baseZoomInterval, this.hashIndexes), MULTI_GET_ARITIES[arityIndex]);
+		}
+
+		return this.getTileHashesByIDStmt[baseZoomInterval][arityIndex];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @return The statement selecting <code>id, hash</code> of all tiles with
+	 *         <code>? &lt;= id &lt;= ?</code>, ordered by id.
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getTileHashesByIDRangeStatement(byte baseZoomInterval) throws SQLException {
+		if (this.getTileHashesByIDRangeStmt[baseZoomInterval] == null) {
+			this.getTileHashesByIDRangeStmt[baseZoomInterval] = this.conn.prepareStatement("SELECT id, hash FROM "
+					+ hashTable(baseZoomInterval, this.hashIndexes) + " WHERE id BETWEEN ? AND ? ORDER BY id;");
+		}
+
+		return this.getTileHashesByIDRangeStmt[baseZoomInterval];
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The hash tree's zoom interval.
+	 * @param height
+	 *            The height of the nodes, at least 1.
+	 * @return The statement selecting <code>id, hash</code> of all nodes with
+	 *         <code>? &lt;= id &lt;= ?</code> (see {@link HashTree}).
+	 * @throws SQLException
+	 *             if the statement could not be prepared.
+	 */
+	PreparedStatement getHashTreeNodesByIDRangeStatement(byte baseZoomInterval, int height) throws SQLException {
+		if (this.getHashTreeNodesByIDRangeStmt[baseZoomInterval][height] == null) {
+			this.getHashTreeNodesByIDRangeStmt[baseZoomInterval][height] = this.conn.prepareStatement(
+					"SELECT id, hash FROM " + HashTree.tableName(baseZoomInterval, height)
+							+ " WHERE id BETWEEN ? AND ?;");
+		}
+
+		return this.getHashTreeNodesByIDRangeStmt[baseZoomInterval][height];
+	}
+
+	/**
+	 * Closes all statements and the underlying connection.
+	 */
+	void close() {
+		try {
+			closeAll(this.getTileByIDStmt);
+			closeAll(this.getTilesByIDRangeStmt);
+			closeAll(this.getTileHashByIDStmt);
+			closeAll(this.getTileHashesByIDRangeStmt);
+			for (PreparedStatement[] statements : this.getTilesByIDStmt) {
+				closeAll(statements);
+			}
+			for (PreparedStatement[] statements : this.getTileHashesByIDStmt) {
+				closeAll(statements);
+			}
+			for (PreparedStatement[] statements : this.getHashTreeNodesByIDRangeStmt) {
+				closeAll(statements);
+			}
+			this.conn.close();
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private static void closeAll(PreparedStatement[] statements) throws SQLException {
+		for (PreparedStatement ps : statements) {
+			if (ps != null) {
+				ps.close();
+			}
+		}
+	}
+}
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * A fixed size pool of read-only connections to a map database. The database has to be in WAL
+ * mode so that readers neither block each other nor the writer.
+ */
+class TileReaderPool {
+	/** SQLITE_OPEN_READONLY as understood by the Xerial driver's <code>open_mode</code> property */
+	private static final String OPEN_MODE_READ_ONLY = "1";
+
+	private final List<TileReader> readers;
+	private final BlockingQueue<TileReader> idleReaders;
+	private volatile boolean codecColumns = true;
+	private volatile boolean hashIndexes = true;
+
+	/**
+	 * Opens <code>size</code> read-only connections to the given database.
+	 * 
+	 * @param path
+	 *            Path to the map database file.
+	 * @param size
+	 *            The number of connections.
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals of the map file.
+	 * @param deduplicated
+	 *            Whether the map file stores tile data in the <code>blobs</code> table.
+	 * @throws SQLException
+	 *             if a connection could not be opened.
+	 */
+	TileReaderPool(String path, int size, int amountOfZoomIntervals, boolean deduplicated) throws SQLException {
+		this.readers = new ArrayList<TileReader>(size);
+		this.idleReaders = new ArrayBlockingQueue<TileReader>(size);
+
+		Properties properties = new Properties();
+		properties.setProperty("open_mode", OPEN_MODE_READ_ONLY);
+
+		for (int i = 0; i < size; i++) {
+			Connection readConn = DriverManager.getConnection("jdbc:sqlite:/" + path, properties);
+			// Each query runs in its own implicit transaction and therefore sees the latest commit
+			readConn.setAutoCommit(true);
+
+			TileReader reader = new TileReader(readConn, amountOfZoomIntervals, deduplicated);
+			this.readers.add(reader);
+			this.idleReaders.add(reader);
+		}
+	}
+
+	/**
+	 * @return The number of connections in this pool.
+	 */
+	int size() {
+		return this.readers.size();
+	}
+
+	/**
+	 * Takes a reader from the pool, waiting until one becomes available.
+	 * 
+	 * @return An exclusive reader or null if the calling thread has been interrupted.
+	 */
+	TileReader acquire() {
+		try {
+			TileReader reader = this.idleReaders.take();
+			reader.setCodecColumns(this.codecColumns);
+			reader.setHashIndexes(this.hashIndexes);
+			return reader;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		}
+	}
+
+	/**
+	 * Lets readers select the codec column from their next acquisition on or stop doing so.
+	 * 
+	 * @param codecColumns
+	 *            Whether the tile tables have the codec column.
+	 */
+	void setCodecColumns(boolean codecColumns) {
+		this.codecColumns = codecColumns;
+	}
+
+	/**
+	 * Lets readers use the hash indexes from their next acquisition on or stop doing so.
+	 * 
+	 * @param hashIndexes
+	 *            Whether the tile tables have the hash index.
+	 */
+	void setHashIndexes(boolean hashIndexes) {
+		this.hashIndexes = hashIndexes;
+	}
+
+	/**
+	 * Returns a reader obtained by {@link #acquire()} to the pool.
+	 * 
+	 * @param reader
+	 *            The reader.
+	 */
+	void release(TileReader reader) {
+		this.idleReaders.offer(reader);
+	}
+
+	/**
+	 * Closes all connections of this pool.
+	 */
+	void close() {
+		for (TileReader reader : this.readers) {
+			reader.close();
+		}
+		this.idleReaders.clear();
+	}
+}
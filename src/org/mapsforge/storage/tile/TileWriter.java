@@ -0,0 +1,230 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Bundles a database connection with the prepared statements needed for writing tiles. Tiles of
+ * map files with deduplicated tile data are written immediately, all others are batched until
+ * {@link #executeBatches()} is called. Nothing is committed. A writer must only be used by one
+ * thread at a time.
+ * 
+ * In a deduplicated map file the tile tables only hold the id and hash of each tile and refer to a
+ * row of the <code>blobs</code> table, which holds each distinct tile data once, identified by its
+ * SHA-256 digest. Triggers on the tile tables count the references to each blob and delete blobs
+ * that are no longer referenced.
+ */
+class TileWriter {
+	private static final ThreadLocal<MessageDigest> SHA256 = new ThreadLocal<MessageDigest>() {
+		@Override
+		protected MessageDigest initialValue() {
+			try {
+				return MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				// Every Java platform is required to support SHA-256
+				throw new IllegalStateException(e);
+			}
+		}
+	};
+
+	private final Connection conn;
+	private final boolean deduplicated;
+	private final PreparedStatement insertTileStmt[];
+	private final PreparedStatement updateTileStmt[];
+	private final boolean[] pendingBatches;
+	private PreparedStatement insertBlobStmt = null;
+
+	/**
+	 * Creates a writer on the given connection. All statements are prepared on first use.
+	 * 
+	 * @param conn
+	 *            An open connection to the map database.
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals (and therefore tile tables) of the map file.
+	 * @param deduplicated
+	 *            Whether the map file stores tile data in the <code>blobs</code> table.
+	 */
+	TileWriter(Connection conn, int amountOfZoomIntervals, boolean deduplicated) {
+		this.conn = conn;
+		this.deduplicated = deduplicated;
+		this.insertTileStmt = new PreparedStatement[amountOfZoomIntervals];
+		this.updateTileStmt = new PreparedStatement[amountOfZoomIntervals];
+		this.pendingBatches = new boolean[amountOfZoomIntervals];
+	}
+
+	/**
+	 * Creates the tile tables of a new map file.
+	 * 
+	 * @param stmt
+	 *            A statement on the new database.
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals.
+	 * @param deduplicated
+	 *            Whether tile data should be stored in the <code>blobs</code> table.
+	 * @throws SQLException
+	 *             if a table could not be created.
+	 */
+	static void createTileTables(Statement stmt, int amountOfZoomIntervals, boolean deduplicated)
+			throws SQLException {
+		if (!deduplicated) {
+			for (int i = 0; i < amountOfZoomIntervals; i++) {
+				stmt.executeUpdate("CREATE TABLE IF NOT EXISTS tiles_" + i
+						+ " (id INTEGER, data BLOB, hash INTEGER, codec INTEGER NOT NULL DEFAULT 0, PRIMARY KEY (id));");
+			}
+			return;
+		}
+
+		stmt.executeUpdate("CREATE TABLE IF NOT EXISTS blobs (blob INTEGER PRIMARY KEY, digest BLOB NOT NULL UNIQUE, "
+				+ "data BLOB, codec INTEGER NOT NULL DEFAULT 0, refs INTEGER NOT NULL DEFAULT 0);");
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			stmt.executeUpdate("CREATE TABLE IF NOT EXISTS tiles_" + i
+					+ " (id INTEGER, hash INTEGER, blob INTEGER, PRIMARY KEY (id));");
+
+			// Tiles are never replaced, so there are no deletions that bypass the triggers
+			stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS tiles_" + i + "_insert AFTER INSERT ON tiles_" + i
+					+ " BEGIN UPDATE blobs SET refs = refs + 1 WHERE blob = NEW.blob; END;");
+			stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS tiles_" + i + "_update AFTER UPDATE OF blob ON tiles_"
+					+ i + " WHEN OLD.blob IS NOT NEW.blob BEGIN"
+					+ " UPDATE blobs SET refs = refs + 1 WHERE blob = NEW.blob;"
+					+ " UPDATE blobs SET refs = refs - 1 WHERE blob = OLD.blob;"
+					+ " DELETE FROM blobs WHERE blob = OLD.blob AND refs <= 0; END;");
+			stmt.executeUpdate("CREATE TRIGGER IF NOT EXISTS tiles_" + i + "_delete AFTER DELETE ON tiles_" + i
+					+ " BEGIN UPDATE blobs SET refs = refs - 1 WHERE blob = OLD.blob;"
+					+ " DELETE FROM blobs WHERE blob = OLD.blob AND refs <= 0; END;");
+		}
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile table's zoom interval.
+	 * @param deduplicated
+	 *            Whether the map file stores tile data in the <code>blobs</code> table.
+	 * @return The table or join providing the columns <code>id, data, hash, codec</code>.
+	 */
+	static String tileTable(int baseZoomInterval, boolean deduplicated) {
+		return deduplicated ? "tiles_" + baseZoomInterval + " JOIN blobs USING (blob)" : "tiles_"
+				+ baseZoomInterval;
+	}
+
+	/**
+	 * @param data
+	 *            A tile's data.
+	 * @return The SHA-256 digest identifying the data in the <code>blobs</code> table.
+	 */
+	static byte[] digest(byte[] data) {
+		final MessageDigest sha256 = SHA256.get();
+		sha256.reset();
+		return sha256.digest(data == null ? new byte[0] : data);
+	}
+
+	/**
+	 * Inserts or replaces a tile.
+	 * 
+	 * @param tile
+	 *            The tile. Its digest must be set if the map file is deduplicated.
+	 * @throws SQLException
+	 *             if the tile could not be written.
+	 */
+	void write(PreparedTile tile) throws SQLException {
+		final byte i = tile.baseZoomInterval;
+		if (!this.deduplicated) {
+			if (this.insertTileStmt[i] == null) {
+				this.insertTileStmt[i] = this.conn.prepareStatement("INSERT OR REPLACE INTO tiles_" + i
+						+ " (id, data, hash, codec) VALUES (?,?,?,?);");
+			}
+			if (!this.pendingBatches[i]) {
+				this.insertTileStmt[i].clearBatch();
+				this.pendingBatches[i] = true;
+			}
+
+			this.insertTileStmt[i].setLong(1, tile.id);
+			this.insertTileStmt[i].setBytes(2, tile.data);
+			this.insertTileStmt[i].setLong(3, tile.hash);
+			this.insertTileStmt[i].setInt(4, tile.codec.getId());
+			this.insertTileStmt[i].addBatch();
+			return;
+		}
+
+		if (this.insertBlobStmt == null) {
+			this.insertBlobStmt = this.conn.prepareStatement("INSERT OR IGNORE INTO blobs (digest, data, codec) "
+					+ "VALUES (?,?,?);");
+		}
+		if (this.updateTileStmt[i] == null) {
+			this.updateTileStmt[i] = this.conn.prepareStatement("UPDATE tiles_" + i
+					+ " SET hash = ?, blob = (SELECT blob FROM blobs WHERE digest = ?) WHERE id == ?;");
+			this.insertTileStmt[i] = this.conn.prepareStatement("INSERT INTO tiles_" + i
+					+ " (id, hash, blob) SELECT ?, ?, blob FROM blobs WHERE digest = ?;");
+		}
+
+		// The blob has to exist before a tile can refer to it. Updating an existing tile
+		// instead of replacing it lets the triggers see the old reference.
+		this.insertBlobStmt.setBytes(1, tile.digest);
+		this.insertBlobStmt.setBytes(2, tile.data);
+		this.insertBlobStmt.setInt(3, tile.codec.getId());
+		this.insertBlobStmt.executeUpdate();
+
+		this.updateTileStmt[i].setLong(1, tile.hash);
+		this.updateTileStmt[i].setBytes(2, tile.digest);
+		this.updateTileStmt[i].setLong(3, tile.id);
+		if (this.updateTileStmt[i].executeUpdate() == 0) {
+			this.insertTileStmt[i].setLong(1, tile.id);
+			this.insertTileStmt[i].setLong(2, tile.hash);
+			this.insertTileStmt[i].setBytes(3, tile.digest);
+			this.insertTileStmt[i].executeUpdate();
+		}
+	}
+
+	/**
+	 * Executes all tile writes that have been batched.
+	 * 
+	 * @throws SQLException
+	 *             if a batch fails.
+	 */
+	void executeBatches() throws SQLException {
+		for (int i = 0; i < this.pendingBatches.length; i++) {
+			if (this.pendingBatches[i]) {
+				this.pendingBatches[i] = false;
+				this.insertTileStmt[i].executeBatch();
+			}
+		}
+	}
+
+	/**
+	 * Closes all statements. The connection stays open.
+	 */
+	void close() {
+		try {
+			for (int i = 0; i < this.insertTileStmt.length; i++) {
+				if (this.insertTileStmt[i] != null) {
+					this.insertTileStmt[i].close();
+				}
+				if (this.updateTileStmt[i] != null) {
+					this.updateTileStmt[i].close();
+				}
+			}
+			if (this.insertBlobStmt != null) {
+				this.insertBlobStmt.close();
+			}
+		} catch (SQLException e) {
+			e.printStackTrace();
+		}
+	}
+}
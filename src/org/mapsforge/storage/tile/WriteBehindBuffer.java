@@ -0,0 +1,117 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Collects tile writes that have not yet been written to the database. Only the latest write to a
+ * tile is kept. Modifications have to be serialized by the caller, lookups may be done
+ * concurrently.
+ */
+class WriteBehindBuffer {
+	/**
+	 * Marks a tile whose deletion is pending. It is compared by identity, so empty tiles are not
+	 * mistaken for deletions.
+	 */
+	static final byte[] DELETED = new byte[0];
+
+	private final List<Map<Long, byte[]>> pending;
+	private final int maxOperations;
+	private final long maxBytes;
+	private int operations = 0;
+	private long bytes = 0;
+
+	/**
+	 * @param amountOfZoomIntervals
+	 *            The number of zoom intervals (and therefore tile tables) of the map file.
+	 * @param maxOperations
+	 *            The number of writes after which the buffer should be flushed.
+	 * @param maxBytes
+	 *            The amount of pending tile data after which the buffer should be flushed.
+	 */
+	WriteBehindBuffer(int amountOfZoomIntervals, int maxOperations, long maxBytes) {
+		this.pending = new ArrayList<Map<Long, byte[]>>(amountOfZoomIntervals);
+		for (int i = 0; i < amountOfZoomIntervals; i++) {
+			this.pending.add(new ConcurrentHashMap<Long, byte[]>());
+		}
+		this.maxOperations = maxOperations;
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Records a write, replacing any pending write to the same tile.
+	 * 
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @param id
+	 *            The tile's id.
+	 * @param data
+	 *            The tile's new data or {@link #DELETED}.
+	 * @return true if the buffer should be flushed now.
+	 */
+	boolean put(byte baseZoomInterval, long id, byte[] data) {
+		byte[] previous = this.pending.get(baseZoomInterval).put(Long.valueOf(id), data);
+		if (previous != null) {
+			this.bytes -= previous.length;
+		}
+		this.bytes += data.length;
+		this.operations++;
+
+		return this.operations >= this.maxOperations || this.bytes >= this.maxBytes;
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The tile's zoom interval.
+	 * @param id
+	 *            The tile's id.
+	 * @return The tile's pending data, {@link #DELETED} if its deletion is pending or null if
+	 *         there is no pending write to this tile.
+	 */
+	byte[] get(byte baseZoomInterval, long id) {
+		return this.pending.get(baseZoomInterval).get(Long.valueOf(id));
+	}
+
+	/**
+	 * @param baseZoomInterval
+	 *            The zoom interval.
+	 * @return All pending writes of the given zoom interval, mapped by tile id.
+	 */
+	Map<Long, byte[]> getPending(byte baseZoomInterval) {
+		return this.pending.get(baseZoomInterval);
+	}
+
+	/**
+	 * @return true if there are no pending writes.
+	 */
+	boolean isEmpty() {
+		return this.operations == 0;
+	}
+
+	/**
+	 * Discards all pending writes. Call this after they have been committed.
+	 */
+	void clear() {
+		for (Map<Long, byte[]> tiles : this.pending) {
+			tiles.clear();
+		}
+		this.operations = 0;
+		this.bytes = 0;
+	}
+}
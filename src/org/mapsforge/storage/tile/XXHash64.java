@@ -0,0 +1,142 @@
+/*
+ * Copyright 2010, 2011 mapsforge.org
+ *
+ * This program is free software: you can redistribute it and/or modify it under the
+ * terms of the GNU Lesser General Public License as published by the Free Software
+ * Foundation, either version 3 of the License, or (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful, but WITHOUT ANY
+ * WARRANTY; without even the implied warranty of MERCHANTABILITY or FITNESS FOR A
+ * PARTICULAR PURPOSE. See the GNU Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public License along with
+ * this program. If not, see <http://www.gnu.org/licenses/>.
+ */
+package org.mapsforge.storage.tile;
+
+/**
+ * The 64 bit xxHash (XXH64) of byte arrays, and a combiner for sequences of hashes based on the
+ * same rounds. Results are identical to those of the reference implementation with the same seed.
+ */
+final class XXHash64 {
+	private static final long PRIME1 = 0x9E3779B185EBCA87L;
+	private static final long PRIME2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long PRIME3 = 0x165667B19E3779F9L;
+	private static final long PRIME4 = 0x85EBCA77C2B2AE63L;
+	private static final long PRIME5 = 0x27D4EB2F165667C5L;
+
+	private XXHash64() {
+	}
+
+	private static long readLong(byte[] b, int i) {
+		return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+				| (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48
+				| (b[i + 7] & 0xFFL) << 56;
+	}
+
+	private static long readInt(byte[] b, int i) {
+		return (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24;
+	}
+
+	private static long round(long acc, long input) {
+		return Long.rotateLeft(acc + input * PRIME2, 31) * PRIME1;
+	}
+
+	private static long mergeRound(long acc, long value) {
+		return (acc ^ round(0, value)) * PRIME1 + PRIME4;
+	}
+
+	private static long avalanche(long h) {
+		h ^= h >>> 33;
+		h *= PRIME2;
+		h ^= h >>> 29;
+		h *= PRIME3;
+		return h ^ (h >>> 32);
+	}
+
+	/**
+	 * @param data
+	 *            The data.
+	 * @param seed
+	 *            The seed.
+	 * @return The hash of the data.
+	 */
+	static long hash(byte[] data, long seed) {
+		final int length = data.length;
+		int i = 0;
+		long h;
+
+		if (length >= 32) {
+			long v1 = seed + PRIME1 + PRIME2;
+			long v2 = seed + PRIME2;
+			long v3 = seed;
+			long v4 = seed - PRIME1;
+			for (; i <= length - 32; i += 32) {
+				v1 = round(v1, readLong(data, i));
+				v2 = round(v2, readLong(data, i + 8));
+				v3 = round(v3, readLong(data, i + 16));
+				v4 = round(v4, readLong(data, i + 24));
+			}
+			h = Long.rotateLeft(v1, 1) + Long.rotateLeft(v2, 7) + Long.rotateLeft(v3, 12) + Long.rotateLeft(v4, 18);
+			h = mergeRound(h, v1);
+			h = mergeRound(h, v2);
+			h = mergeRound(h, v3);
+			h = mergeRound(h, v4);
+		} else {
+			h = seed + PRIME5;
+		}
+
+		h += length;
+		for (; i <= length - 8; i += 8) {
+			h = combine(h, readLong(data, i));
+		}
+		if (i <= length - 4) {
+			h ^= readInt(data, i) * PRIME1;
+			h = Long.rotateLeft(h, 23) * PRIME2 + PRIME3;
+			i += 4;
+		}
+		for (; i < length; i++) {
+			h ^= (data[i] & 0xFFL) * PRIME5;
+			h = Long.rotateLeft(h, 11) * PRIME1;
+		}
+
+		return avalanche(h);
+	}
+
+	/**
+	 * Starts combining a sequence of values, see {@link #combine(long, long)}.
+	 * 
+	 * @param seed
+	 *            The seed.
+	 * @return The initial state.
+	 */
+	static long start(long seed) {
+		return seed + PRIME5;
+	}
+
+	/**
+	 * Adds the next value of a sequence to a combined hash. The result depends on the order of the
+	 * values, so a sequence that has been combined in a fixed order also covers the positions of
+	 * its values.
+	 * 
+	 * @param state
+	 *            The state returned by {@link #start(long)} or the last call to this method.
+	 * @param value
+	 *            The next value.
+	 * @return The new state.
+	 */
+	static long combine(long state, long value) {
+		return Long.rotateLeft(state ^ round(0, value), 27) * PRIME1 + PRIME4;
+	}
+
+	/**
+	 * @param state
+	 *            The state after the last value has been combined.
+	 * @param count
+	 *            The number of values combined.
+	 * @return The hash of the sequence.
+	 */
+	static long finish(long state, int count) {
+		return avalanche(state + 8L * count);
+	}
+}
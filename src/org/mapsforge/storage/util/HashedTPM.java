@@ -4,9 +4,9 @@ import org.mapsforge.storage.tile.TilePersistenceManager;
 
 public class HashedTPM {
 	public TilePersistenceManager tpm;
-	public int[][][] hashes;
+	public long[][][] hashes;
 	
-	public HashedTPM(TilePersistenceManager tpm, int[][][] hashes) {
+	public HashedTPM(TilePersistenceManager tpm, long[][][] hashes) {
 		this.tpm = tpm;
 		this.hashes = hashes;
 	}